@@ -0,0 +1,73 @@
+package ocsf.bench;
+
+import java.io.*;
+
+import ocsf.common.*;
+
+/**
+ * Measures the cost of one broadcast to N recipients, the way
+ * <code>sendToAllClients</code> performs it: either encoding the message
+ * for every recipient, or encoding it once and copying the bytes to every
+ * recipient's writer. The writers write to a sink that discards the bytes,
+ * so the figures are the CPU cost of the fan-out, without the sockets.
+ *
+ * <pre>
+ * java ocsf.bench.BroadcastBenchmark [broadcasts]
+ * </pre>
+ */
+public class BroadcastBenchmark {
+
+	static final int[] RECIPIENTS = { 100, 1000, 5000 };
+
+	public static void main(String[] args) throws Exception {
+		int broadcasts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		String line = "alice> has anyone seen the build failure on main since this morning?";
+
+		System.out.printf("%-20s %10s %16s %16s %12s%n", "codec", "recipients", "per-client us", "encode-once us",
+				"bytes/msg");
+		for (MessageCodec codec : new MessageCodec[] { new SerializationCodec(), new BinaryCodec() }) {
+			for (int recipients : RECIPIENTS) {
+				MessageWriter[] writers = new MessageWriter[recipients];
+				for (int i = 0; i < recipients; i++)
+					writers[i] = codec.newWriter(OutputStream.nullOutputStream());
+
+				int rounds = Math.max(10, broadcasts * 100 / recipients);
+				// Warm up both paths, then measure.
+				perClient(writers, line, rounds);
+				encodeOnce(codec, writers, line, rounds);
+				double perClient = perClient(writers, line, rounds);
+				double once = encodeOnce(codec, writers, line, rounds);
+
+				System.out.printf("%-20s %10d %16.1f %16.1f %12d%n", codec.getClass().getSimpleName(), recipients,
+						perClient, once, codec.encode(line).size());
+			}
+		}
+	}
+
+	/**
+	 * @return microseconds per broadcast when every recipient encodes.
+	 */
+	static double perClient(MessageWriter[] writers, String line, int rounds) throws IOException {
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			String msg = line + r;
+			for (MessageWriter writer : writers)
+				writer.writeMessage(msg);
+		}
+		return (System.nanoTime() - start) / 1e3 / rounds;
+	}
+
+	/**
+	 * @return microseconds per broadcast when the message is encoded once.
+	 */
+	static double encodeOnce(MessageCodec codec, MessageWriter[] writers, String line, int rounds)
+			throws IOException {
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			EncodedMessage msg = codec.encode(line + r);
+			for (MessageWriter writer : writers)
+				writer.writeEncoded(msg);
+		}
+		return (System.nanoTime() - start) / 1e3 / rounds;
+	}
+}
@@ -0,0 +1,89 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.util.Random;
+
+import ocsf.common.*;
+
+/**
+ * Compares the codecs on chat lines: bytes on the wire per message, and
+ * how many messages per second one thread encodes and decodes. Each codec
+ * writes through one writer and reads through one reader, as a connection
+ * does.
+ *
+ * <pre>
+ * java ocsf.bench.CodecBenchmark [messages]
+ * </pre>
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String[] corpus = chatCorpus(4096, new Random(42));
+
+		MessageCodec[] codecs = { new SerializationCodec(), new BinaryCodec() };
+		System.out.printf("%-20s %10s %14s %14s%n", "codec", "bytes/msg", "encode msg/s", "decode msg/s");
+		for (int round = 0; round < 2; round++) {
+			for (MessageCodec codec : codecs) {
+				Result result = run(codec, corpus, messages);
+				if (round == 1) // the first round only warms up
+					System.out.printf("%-20s %10.1f %14.0f %14.0f%n", codec.getClass().getSimpleName(),
+							result.bytesPerMessage, result.encodeRate, result.decodeRate);
+			}
+		}
+	}
+
+	static class Result {
+		double bytesPerMessage;
+		double encodeRate;
+		double decodeRate;
+	}
+
+	static Result run(MessageCodec codec, String[] corpus, int messages) throws Exception {
+		// Encode into memory so that the decode pass reads the same bytes.
+		ByteArrayOutputStream wire = new ByteArrayOutputStream(messages * 64);
+		MessageWriter writer = codec.newWriter(wire);
+		int header = wire.size();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++)
+			writer.writeMessage(new String(corpus[i % corpus.length]));
+		long encodeTime = System.nanoTime() - start;
+
+		byte[] bytes = wire.toByteArray();
+		MessageReader reader = codec.newReader(new ByteArrayInputStream(bytes));
+		start = System.nanoTime();
+		long check = 0;
+		for (int i = 0; i < messages; i++)
+			check += reader.readMessage().hashCode();
+		long decodeTime = System.nanoTime() - start;
+		if (check == 42)
+			System.out.print("");
+
+		Result result = new Result();
+		result.bytesPerMessage = (bytes.length - header) / (double) messages;
+		result.encodeRate = messages / (encodeTime / 1e9);
+		result.decodeRate = messages / (decodeTime / 1e9);
+		return result;
+	}
+
+	/**
+	 * Builds chat lines of typical lengths: mostly short, some long.
+	 */
+	static String[] chatCorpus(int size, Random random) {
+		String[] words = { "hi", "ok", "the", "server", "is", "down", "again", "lol", "can", "you", "see", "my",
+				"message", "thanks", "deploy", "tonight", "build", "failed", "on", "main", "caf\u00e9", "na\u00efve" };
+		String[] corpus = new String[size];
+		for (int i = 0; i < size; i++) {
+			int length = random.nextInt(10) == 0 ? 40 + random.nextInt(80) : 2 + random.nextInt(10);
+			StringBuilder line = new StringBuilder();
+			for (int w = 0; w < length; w++) {
+				if (w > 0)
+					line.append(' ');
+				line.append(words[random.nextInt(words.length)]);
+			}
+			corpus[i] = line.toString();
+		}
+		return corpus;
+	}
+}
@@ -0,0 +1,152 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.util.Random;
+
+import ocsf.common.*;
+
+/**
+ * Weighs the CPU spent compressing frames against the bytes it saves, on
+ * three kinds of chat traffic: everyday chat lines, pasted logs and stack
+ * traces, and text pasted again and again. For each compression setting
+ * it reports the bytes on the wire per message, the share saved, and the
+ * time one thread spends encoding and decoding a message. A broadcast pays
+ * the encoding once whatever the number of recipients, and the savings on
+ * every copy.
+ *
+ * <pre>
+ * java ocsf.bench.CompressionBenchmark [messages]
+ * </pre>
+ */
+public class CompressionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		String[][] corpora = { CodecBenchmark.chatCorpus(4096, new Random(42)), logCorpus(4096, new Random(42)),
+				repeatedCorpus(4096, new Random(42)) };
+		String[] names = { "chat", "logs", "repeated" };
+		BinaryCodec[] codecs = { new BinaryCodec(), new BinaryCodec(128, 1), new BinaryCodec(128, 6),
+				new BinaryCodec(512, 1), new BinaryCodec(32, 1) };
+
+		System.out.printf("%-10s %-16s %10s %8s %12s %12s%n", "corpus", "compression", "bytes/msg", "saved",
+				"encode ns", "decode ns");
+		for (int c = 0; c < corpora.length; c++) {
+			double plain = 0;
+			for (int round = 0; round < 2; round++) {
+				for (BinaryCodec codec : codecs) {
+					Result result = run(codec, corpora[c], messages);
+					if (codec.getThreshold() == 0)
+						plain = result.bytesPerMessage;
+					if (round == 1) // the first round only warms up
+						System.out.printf("%-10s %-16s %10.1f %7.1f%% %12.0f %12.0f%n", names[c],
+								codec.getThreshold() == 0 ? "off"
+										: ">= " + codec.getThreshold() + " B, level " + codec.getLevel(),
+								result.bytesPerMessage, 100 * (1 - result.bytesPerMessage / plain),
+								result.encodeNanos, result.decodeNanos);
+				}
+			}
+		}
+	}
+
+	static class Result {
+		double bytesPerMessage;
+		double encodeNanos;
+		double decodeNanos;
+	}
+
+	static Result run(BinaryCodec codec, String[] corpus, int messages) throws Exception {
+		// The writer of a server whose client offered compression.
+		ByteArrayOutputStream offer = new ByteArrayOutputStream();
+		codec.newWriter(offer);
+		MessageReader client = codec.newReader(new ByteArrayInputStream(offer.toByteArray()));
+
+		ByteArrayOutputStream wire = new ByteArrayOutputStream(messages * 64);
+		MessageWriter writer = codec.newWriter(wire, client);
+		int header = wire.size();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++)
+			writer.writeMessage(corpus[i % corpus.length]);
+		long encodeTime = System.nanoTime() - start;
+
+		byte[] bytes = wire.toByteArray();
+		MessageReader reader = codec.newReader(new ByteArrayInputStream(bytes));
+		start = System.nanoTime();
+		long check = 0;
+		for (int i = 0; i < messages; i++)
+			check += reader.readMessage().hashCode();
+		long decodeTime = System.nanoTime() - start;
+		if (check == 42)
+			System.out.print("");
+		writer.close();
+		reader.close();
+
+		Result result = new Result();
+		result.bytesPerMessage = (bytes.length - header) / (double) messages;
+		result.encodeNanos = encodeTime / (double) messages;
+		result.decodeNanos = decodeTime / (double) messages;
+		return result;
+	}
+
+	/**
+	 * Builds pasted logs: one chat line in four is a run of log lines or a
+	 * stack trace, the others are short remarks about it.
+	 */
+	static String[] logCorpus(int size, Random random) {
+		String[] levels = { "DEBUG", "INFO", "WARN", "ERROR" };
+		String[] classes = { "com.example.order.OrderService", "com.example.http.RequestHandler",
+				"com.example.db.ConnectionPool", "org.springframework.web.servlet.DispatcherServlet" };
+		String[] texts = { "Started in 4211 ms", "Connection reset by peer", "Retrying request 3 of 5",
+				"Pool exhausted, waiting for a connection", "GET /api/v1/orders/1842 returned 500" };
+		String[] remarks = CodecBenchmark.chatCorpus(size, random);
+		String[] corpus = new String[size];
+		for (int i = 0; i < size; i++) {
+			if (random.nextInt(4) != 0) {
+				corpus[i] = remarks[i];
+				continue;
+			}
+			StringBuilder paste = new StringBuilder();
+			if (random.nextBoolean()) {
+				int lines = 3 + random.nextInt(20);
+				for (int l = 0; l < lines; l++)
+					paste.append(String.format("2024-05-%02d 10:%02d:%02d.%03d %s [main] %s - %s%n",
+							1 + random.nextInt(28), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+							levels[random.nextInt(levels.length)], classes[random.nextInt(classes.length)],
+							texts[random.nextInt(texts.length)]));
+			} else {
+				paste.append("java.lang.IllegalStateException: ").append(texts[random.nextInt(texts.length)])
+						.append('\n');
+				int frames = 5 + random.nextInt(30);
+				for (int f = 0; f < frames; f++)
+					paste.append("\tat ").append(classes[random.nextInt(classes.length)]).append(".handle")
+							.append(random.nextInt(9)).append("(").append("Handler.java:")
+							.append(random.nextInt(900)).append(")\n");
+			}
+			corpus[i] = paste.toString();
+		}
+		return corpus;
+	}
+
+	/**
+	 * Builds text pasted again and again: announcements, copied paragraphs
+	 * and lines repeated within a message.
+	 */
+	static String[] repeatedCorpus(int size, Random random) {
+		String[] pastes = {
+				"Reminder: the build server goes down for maintenance tonight at 22:00, please push your "
+						+ "changes before then and do not start long jobs after 21:30.",
+				"Please read the pinned message before asking about access: requests go through the form, "
+						+ "not through direct messages, and take up to two days.",
+				"+1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1 +1" };
+		String[] corpus = new String[size];
+		for (int i = 0; i < size; i++) {
+			String paste = pastes[random.nextInt(pastes.length)];
+			StringBuilder line = new StringBuilder(paste);
+			int copies = random.nextInt(4);
+			for (int c = 0; c < copies; c++)
+				line.append('\n').append(paste);
+			corpus[i] = line.toString();
+		}
+		return corpus;
+	}
+}
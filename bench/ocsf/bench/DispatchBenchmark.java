@@ -0,0 +1,76 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.seg2105.edu.server.backend.EchoServer;
+import ocsf.server.*;
+
+/**
+ * Cost of <code>EchoServer.handleMessageFromClient</code> for a chat line
+ * sent to the lobby and for a private message, with N logged-on clients.
+ * The handler is called directly, as the server's reader would; the
+ * console output it produces is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+AlwaysPreTouch" })
+public class DispatchBenchmark {
+
+	@Param({ "2", "100" })
+	int clients;
+
+	@Param({ "lobby", "private" })
+	String kind;
+
+	EchoServer server;
+	List<LoopbackClient> connected;
+	ConnectionToClient sender;
+	String message;
+	PrintStream console;
+
+	@Setup
+	public void setUp() throws Exception {
+		console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		int port = LoopbackClient.freePort();
+		server = new EchoServer(port, msg -> {
+		}, ServerEngine.THREAD_PER_CONNECTION);
+		server.listen();
+
+		connected = new ArrayList<LoopbackClient>(clients);
+		for (int i = 0; i < clients; i++) {
+			LoopbackClient client = new LoopbackClient(port, false);
+			client.openConnection();
+			client.sendToServer("#login user" + i);
+			client.sendToServer("#join " + EchoServer.DEFAULT_ROOM);
+			// Wait for the acknowledgement of the join.
+			client.awaitReceived(1);
+			connected.add(client);
+		}
+
+		sender = server.getClientConnection("user0");
+		message = kind.equals("private") ? "#msg user1 see you at the standup" : "see you at the standup";
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		for (LoopbackClient client : connected)
+			client.closeConnection();
+		server.close();
+		System.setOut(console);
+	}
+
+	@Benchmark
+	public void handleMessageFromClient() {
+		server.handleMessageFromClient(message, sender);
+	}
+}
@@ -0,0 +1,74 @@
+package ocsf.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.server.*;
+
+/**
+ * Cost of <code>sendToAllClients</code> with N clients connected over
+ * loopback, each reading what it receives on its own thread. The time
+ * includes waiting for slow sockets, as a broadcasting handler would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch" })
+public class FanoutBenchmark {
+
+	/**
+	 * A server that ignores what clients send.
+	 */
+	static class SilentServer extends AbstractServer {
+		SilentServer(int port, ServerEngine engine) {
+			super(port, engine);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+
+	@Param({ "10", "100", "1000" })
+	int clients;
+
+	@Param({ "THREAD_PER_CONNECTION", "SELECTOR" })
+	ServerEngine engine;
+
+	SilentServer server;
+	List<LoopbackClient> connected;
+	int sequence;
+
+	@Setup
+	public void setUp() throws Exception {
+		int port = LoopbackClient.freePort();
+		server = new SilentServer(port, engine);
+		server.setBacklog(1024);
+		server.listen();
+
+		connected = new ArrayList<LoopbackClient>(clients);
+		for (int i = 0; i < clients; i++) {
+			LoopbackClient client = new LoopbackClient(port, false);
+			client.openConnection();
+			connected.add(client);
+		}
+		while (server.getNumberOfClients() < clients)
+			Thread.sleep(1);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		for (LoopbackClient client : connected)
+			client.closeConnection();
+		server.close();
+	}
+
+	@Benchmark
+	public void sendToAllClients() {
+		server.sendToAllClients("bob> the build is green again, thanks all " + sequence++);
+	}
+}
@@ -0,0 +1,126 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import ocsf.server.*;
+
+/**
+ * Opens many idle clients against an in-process server and reports how
+ * many connections it holds, how many threads it runs and how much memory
+ * the process uses. Run it once per engine, each in a fresh JVM:
+ *
+ * <pre>
+ * java ocsf.bench.IdleConnectionsBenchmark thread   10000
+ * java ocsf.bench.IdleConnectionsBenchmark virtual  10000
+ * java ocsf.bench.IdleConnectionsBenchmark selector 10000
+ * </pre>
+ *
+ * The clients are blocking channels that only send the object stream
+ * header, so they run no thread of their own; their cost is the same for
+ * every engine. The open file limit must allow two descriptors per client.
+ */
+public class IdleConnectionsBenchmark {
+
+	/**
+	 * A server that ignores every message.
+	 */
+	static class IdleServer extends AbstractServer {
+		IdleServer(int port, ServerEngine engine) {
+			super(port, engine);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ServerEngine engine = ServerEngine.THREAD_PER_CONNECTION;
+		if (args.length > 0 && args[0].equalsIgnoreCase("selector"))
+			engine = ServerEngine.SELECTOR;
+		else if (args.length > 0 && args[0].equalsIgnoreCase("virtual"))
+			engine = ServerEngine.VIRTUAL_THREAD_PER_CONNECTION;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 5599;
+
+		IdleServer server = new IdleServer(port, engine);
+		server.setBacklog(1024);
+		server.listen();
+
+		Snapshot before = Snapshot.take();
+		long start = System.nanoTime();
+
+		// The header an ObjectOutputStream writes when it is created.
+		byte[] header = new byte[] { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+		List<SocketChannel> channels = new ArrayList<SocketChannel>(clients);
+		for (int i = 0; i < clients; i++) {
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+			channel.write(ByteBuffer.wrap(header));
+			channels.add(channel);
+		}
+
+		while (server.getNumberOfClients() < clients)
+			Thread.sleep(50);
+		long elapsed = System.nanoTime() - start;
+
+		Snapshot after = Snapshot.take();
+
+		System.out.printf("engine            %s%n", engine);
+		System.out.printf("connected clients %d%n", server.getNumberOfClients());
+		System.out.printf("connect time      %d ms%n", elapsed / 1000000);
+		System.out.printf("live threads      %d (+%d)%n", after.threads, after.threads - before.threads);
+		System.out.printf("heap used         %d MB (+%d MB)%n", after.heap >> 20, (after.heap - before.heap) >> 20);
+		System.out.printf("resident memory   %d MB (+%d MB)%n", after.rss >> 20, (after.rss - before.rss) >> 20);
+
+		for (SocketChannel channel : channels)
+			channel.close();
+		server.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Thread count and memory use of this process at one point in time.
+	 */
+	static class Snapshot {
+		int threads;
+		long heap;
+		long rss;
+
+		static Snapshot take() throws IOException {
+			for (int i = 0; i < 3; i++) {
+				System.gc();
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+			}
+
+			Snapshot snapshot = new Snapshot();
+			snapshot.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			snapshot.heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			snapshot.rss = residentSetSize();
+			return snapshot;
+		}
+
+		/**
+		 * Reads the resident set size, which unlike the heap includes the
+		 * stacks of the connection threads. Linux only; 0 elsewhere.
+		 */
+		static long residentSetSize() throws IOException {
+			Path status = Paths.get("/proc/self/status");
+			if (!Files.exists(status))
+				return 0;
+			for (String line : Files.readAllLines(status)) {
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package ocsf.bench;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.client.AbstractClient;
+
+/**
+ * A client for the benchmarks: it counts what the server sends and, if
+ * asked to, queues it for the benchmark thread to take.
+ */
+class LoopbackClient extends AbstractClient {
+
+	final AtomicLong received = new AtomicLong();
+	final BlockingQueue<Object> queue;
+
+	LoopbackClient(int port, boolean queueing) {
+		super("localhost", port);
+		this.queue = queueing ? new LinkedBlockingQueue<Object>() : null;
+	}
+
+	protected void handleMessageFromServer(Object msg) {
+		received.incrementAndGet();
+		if (queue != null)
+			queue.add(msg);
+	}
+
+	/**
+	 * Waits until the client has received a number of messages.
+	 */
+	void awaitReceived(long count) throws InterruptedException {
+		while (received.get() < count)
+			Thread.sleep(1);
+	}
+
+	/**
+	 * @return a port that was free a moment ago.
+	 */
+	static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
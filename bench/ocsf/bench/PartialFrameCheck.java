@@ -0,0 +1,93 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * Checks that clients stalling in the middle of a message hold no thread of
+ * the selector engine: more clients than the engine has dispatch threads
+ * each send the header and half a frame, then a well-behaved client must
+ * still get its message echoed. Exits with status 1 if it does not.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar ocsf.bench.PartialFrameCheck
+ * </pre>
+ */
+public class PartialFrameCheck {
+
+	/**
+	 * A server sending every message back to its sender.
+	 */
+	static class EchoServer extends AbstractServer {
+		EchoServer(int port) {
+			super(port, ServerEngine.SELECTOR);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			try {
+				client.sendToClient(msg);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = LoopbackClient.freePort();
+		EchoServer server = new EchoServer(port);
+		server.listen();
+
+		// Twice the dispatch threads of the engine, and then some.
+		int stalled = 2 * Math.max(4, 2 * Runtime.getRuntime().availableProcessors()) + 4;
+		byte[] frame = halfFrame();
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < stalled; i++) {
+			Socket socket = new Socket("localhost", port);
+			socket.setTcpNoDelay(true);
+			socket.getOutputStream().write(frame);
+			sockets.add(socket);
+		}
+		Thread.sleep(200);
+
+		LoopbackClient client = new LoopbackClient(port, true);
+		Object echo = null;
+		try {
+			client.openConnection();
+			client.sendToServer("hello");
+			echo = client.queue.poll(5, java.util.concurrent.TimeUnit.SECONDS);
+			client.closeConnection();
+		} catch (IOException e) {
+			// Dropped by the server: its handshake was never read.
+		}
+
+		for (Socket socket : sockets)
+			socket.close();
+		server.close();
+
+		if (!"hello".equals(echo)) {
+			System.out.println("FAILED: " + stalled + " clients sending half a frame starve the others");
+			System.exit(1);
+		}
+		System.out.println("OK: served a client while " + stalled + " others sent half a frame");
+		System.exit(0);
+	}
+
+	/**
+	 * @return the stream header of the binary codec and the first half of
+	 *         the frame of a 1000-character string.
+	 */
+	static byte[] halfFrame() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MessageWriter writer = new BinaryCodec().newWriter(bytes);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 1000)
+			text.append("partial ");
+		writer.writeMessage(text.toString());
+		byte[] stream = bytes.toByteArray();
+		return java.util.Arrays.copyOf(stream, stream.length / 2);
+	}
+}
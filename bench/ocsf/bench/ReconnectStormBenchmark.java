@@ -0,0 +1,164 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * Reproduces the reconnect storm that follows a server restart: N clients
+ * are connected, the server is stopped and closed, and every client
+ * reconnects at once as soon as it listens again. It reports how long the
+ * server takes to re-admit them all, how long each connect took, how many
+ * attempts were refused, and how long a stop/start cycle takes.
+ *
+ * <pre>
+ * java ocsf.bench.ReconnectStormBenchmark [engine] [clients] [backlog] [rounds]
+ * java ocsf.bench.ReconnectStormBenchmark thread 5000
+ * java ocsf.bench.ReconnectStormBenchmark selector 5000 10
+ * </pre>
+ *
+ * The clients are blocking channels that only send the binary codec
+ * header, opened by a pool of connector threads. The open file limit must
+ * allow two descriptors per client.
+ */
+public class ReconnectStormBenchmark {
+
+	/**
+	 * The header a binary codec writer sends when it is created.
+	 */
+	static final byte[] HEADER = headerOf();
+
+	/**
+	 * A server that ignores every message.
+	 */
+	static class IdleServer extends AbstractServer {
+		IdleServer(int port, ServerEngine engine) {
+			super(port, engine);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ServerEngine engine = ServerEngine.THREAD_PER_CONNECTION;
+		if (args.length > 0 && args[0].equalsIgnoreCase("selector"))
+			engine = ServerEngine.SELECTOR;
+		else if (args.length > 0 && args[0].equalsIgnoreCase("virtual"))
+			engine = ServerEngine.VIRTUAL_THREAD_PER_CONNECTION;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int port = 5640;
+
+		IdleServer server = new IdleServer(port, engine);
+		if (args.length > 2)
+			server.setBacklog(Integer.parseInt(args[2]));
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+		System.out.printf("engine %s, %d clients, backlog %d%n", engine, clients, server.getBacklog());
+		System.out.printf("%8s %12s %10s %10s %10s %10s %12s%n", "round", "re-admit ms", "refused", "p50 ms",
+				"p99 ms", "max ms", "restart ms");
+
+		ExecutorService connectors = Executors.newFixedThreadPool(64);
+		SocketChannel[] channels = new SocketChannel[clients];
+		server.listen();
+		storm(server, connectors, channels, port);
+
+		for (int round = 1; round <= rounds; round++) {
+			// The restart: the server drops every client, then all
+			// reconnect. Closing on the server side also keeps TIME_WAIT
+			// there, so the clients do not run out of local ports.
+			long stop = System.nanoTime();
+			server.close();
+			for (SocketChannel channel : channels)
+				channel.close();
+			server.listen();
+			long restart = System.nanoTime() - stop;
+
+			Result result = storm(server, connectors, channels, port);
+			System.out.printf("%8d %12d %10d %10.1f %10.1f %10.1f %12.1f%n", round, result.elapsed / 1000000,
+					result.refused.get(), result.connect.getValueAt(0.5) / 1e6, result.connect.getValueAt(0.99) / 1e6,
+					result.connect.getMax() / 1e6, restart / 1e6);
+		}
+
+		// Stop/start cycles with every client connected.
+		int cycles = 20;
+		long start = System.nanoTime();
+		for (int i = 0; i < cycles; i++) {
+			server.stopListening();
+			server.listen();
+		}
+		System.out.printf("stop/start cycle %.2f ms%n", (System.nanoTime() - start) / 1e6 / cycles);
+
+		for (SocketChannel channel : channels)
+			channel.close();
+		server.close();
+		connectors.shutdown();
+		System.exit(0);
+	}
+
+	/**
+	 * The outcome of one storm.
+	 */
+	static class Result {
+		long elapsed;
+		final AtomicLong refused = new AtomicLong();
+		final LatencyHistogram connect = new LatencyHistogram();
+	}
+
+	/**
+	 * Connects all clients at once and waits until the server holds them
+	 * all. A refused attempt is retried after a short pause.
+	 */
+	static Result storm(AbstractServer server, ExecutorService connectors, SocketChannel[] channels, int port)
+			throws Exception {
+		Result result = new Result();
+		InetSocketAddress address = new InetSocketAddress("localhost", port);
+		CountDownLatch connected = new CountDownLatch(channels.length);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < channels.length; i++) {
+			final int n = i;
+			connectors.execute(() -> {
+				long begin = System.nanoTime();
+				while (true) {
+					try {
+						SocketChannel channel = SocketChannel.open(address);
+						channel.write(ByteBuffer.wrap(HEADER));
+						channels[n] = channel;
+						break;
+					} catch (IOException e) {
+						result.refused.incrementAndGet();
+						try {
+							Thread.sleep(10);
+						} catch (InterruptedException ie) {
+							return;
+						}
+					}
+				}
+				result.connect.record(System.nanoTime() - begin);
+				connected.countDown();
+			});
+		}
+		connected.await();
+		while (server.getNumberOfClients() < channels.length)
+			Thread.sleep(1);
+		result.elapsed = System.nanoTime() - start;
+		return result;
+	}
+
+	static byte[] headerOf() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			new BinaryCodec().newWriter(bytes);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
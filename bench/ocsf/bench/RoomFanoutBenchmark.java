@@ -0,0 +1,122 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.seg2105.edu.server.backend.EchoServer;
+import ocsf.client.AbstractClient;
+import ocsf.server.ServerEngine;
+
+/**
+ * Runs an in-process <code>EchoServer</code> with N logged-on clients that
+ * each send the same number of chat lines, once with everybody in the
+ * lobby and once with the clients split into rooms of a fixed size. It
+ * reports how many messages the server delivers per line sent: N in the
+ * lobby, the room size in rooms, whatever N.
+ *
+ * <pre>
+ * java ocsf.bench.RoomFanoutBenchmark [roomSize] [linesPerClient] [clients...]
+ * java ocsf.bench.RoomFanoutBenchmark 10 20 50 100 200 400
+ * </pre>
+ */
+public class RoomFanoutBenchmark {
+
+	/**
+	 * A chat client that counts the chat lines it receives.
+	 */
+	static class CountingClient extends AbstractClient {
+		final AtomicLong lines;
+		final AtomicLong replies;
+
+		CountingClient(int port, AtomicLong lines, AtomicLong replies) {
+			super("localhost", port);
+			this.lines = lines;
+			this.replies = replies;
+		}
+
+		protected void handleMessageFromServer(Object msg) {
+			if (msg.toString().contains("> "))
+				lines.incrementAndGet();
+			else
+				replies.incrementAndGet();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int roomSize = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int linesPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int[] sizes = { 50, 100, 200, 400 };
+		if (args.length > 2) {
+			sizes = new int[args.length - 2];
+			for (int i = 2; i < args.length; i++)
+				sizes[i - 2] = Integer.parseInt(args[i]);
+		}
+
+		// EchoServer logs every message it receives.
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		console.printf("%8s %8s %10s %14s %12s %14s%n", "clients", "room", "lines", "deliveries", "per line",
+				"elapsed ms");
+		int port = 5620;
+		for (int clients : sizes) {
+			console.println(run(clients, clients, linesPerClient, port++));
+			console.println(run(clients, roomSize, linesPerClient, port++));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Runs one configuration and formats its results.
+	 *
+	 * @param clients  the number of clients.
+	 * @param roomSize the number of clients per room; equal to the number
+	 *                 of clients to keep everybody in the lobby.
+	 */
+	static String run(int clients, int roomSize, int linesPerClient, int port) throws Exception {
+		EchoServer server = new EchoServer(port, message -> {
+		}, ServerEngine.SELECTOR);
+		server.listen();
+
+		AtomicLong lines = new AtomicLong();
+		AtomicLong replies = new AtomicLong();
+		List<CountingClient> list = new ArrayList<CountingClient>(clients);
+		for (int i = 0; i < clients; i++) {
+			CountingClient client = new CountingClient(port, lines, replies);
+			client.openConnection();
+			client.sendToServer("#login user" + i);
+			// Joining is acknowledged, which tells when the client is ready.
+			client.sendToServer("#join " + (roomSize < clients ? "room" + i / roomSize : EchoServer.DEFAULT_ROOM));
+			list.add(client);
+		}
+		while (replies.get() < clients)
+			Thread.sleep(10);
+
+		// Every line reaches each member of the sender's room.
+		long expected = 0;
+		for (int first = 0; first < clients; first += roomSize) {
+			long members = Math.min(roomSize, clients - first);
+			expected += members * members * linesPerClient;
+		}
+
+		long start = System.nanoTime();
+		for (int n = 0; n < linesPerClient; n++) {
+			for (CountingClient client : list)
+				client.sendToServer("line " + n);
+		}
+		long deadline = System.currentTimeMillis() + 120000;
+		while (lines.get() < expected && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		for (CountingClient client : list)
+			client.closeConnection();
+		server.close();
+
+		long sent = (long) clients * linesPerClient;
+		return String.format("%8d %8s %10d %14d %12.1f %14d", clients, roomSize < clients ? roomSize : "lobby",
+				sent, lines.get(), lines.get() / (double) sent, elapsed);
+	}
+}
@@ -0,0 +1,73 @@
+package ocsf.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * Latency of one message from an <code>AbstractClient</code> to an
+ * <code>AbstractServer</code> and back over loopback, for each engine and
+ * codec. Sampled, so that the report includes the percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+AlwaysPreTouch" })
+public class RoundTripBenchmark {
+
+	/**
+	 * A server that sends every message back to its sender.
+	 */
+	static class ReplyServer extends AbstractServer {
+		ReplyServer(int port, ServerEngine engine) {
+			super(port, engine);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			try {
+				client.sendToClient(msg);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	@Param({ "THREAD_PER_CONNECTION", "SELECTOR" })
+	ServerEngine engine;
+
+	@Param({ "binary", "serialization" })
+	String codec;
+
+	ReplyServer server;
+	LoopbackClient client;
+
+	@Setup
+	public void setUp() throws Exception {
+		int port = LoopbackClient.freePort();
+		server = new ReplyServer(port, engine);
+		server.listen();
+
+		client = new LoopbackClient(port, true);
+		client.setCodec(codec.equals("binary") ? new BinaryCodec() : new SerializationCodec());
+		client.openConnection();
+		while (server.getNumberOfClients() < 1)
+			Thread.sleep(1);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		client.closeConnection();
+		server.close();
+	}
+
+	@Benchmark
+	public Object roundTrip() throws Exception {
+		client.sendToServer("alice> are we still on for the review at three?");
+		return client.queue.take();
+	}
+}
@@ -0,0 +1,71 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ocsf.common.*;
+
+/**
+ * Cost of encoding and decoding one chat string with each codec, the
+ * serialization codec being <code>writeObject</code> and
+ * <code>readObject</code> on object streams. No sockets are involved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "-XX:+AlwaysPreTouch" })
+public class SerializationBenchmark {
+
+	/**
+	 * Messages decoded per invocation of the decode benchmark.
+	 */
+	static final int BATCH = 10000;
+
+	@Param({ "serialization", "binary" })
+	String codec;
+
+	@Param({ "12", "120" })
+	int length;
+
+	MessageCodec messageCodec;
+	MessageWriter writer;
+	String line;
+	byte[] encoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		messageCodec = codec.equals("binary") ? new BinaryCodec() : new SerializationCodec();
+		writer = messageCodec.newWriter(OutputStream.nullOutputStream());
+
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < length)
+			builder.append("hello world ");
+		line = builder.substring(0, length);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(BATCH * (length + 16));
+		MessageWriter batch = messageCodec.newWriter(bytes);
+		for (int i = 0; i < BATCH; i++)
+			batch.writeMessage(new String(line));
+		encoded = bytes.toByteArray();
+	}
+
+	@Benchmark
+	public void encode() throws IOException {
+		// A fresh string each time: the object stream would otherwise send
+		// a back-reference to the first copy.
+		writer.writeMessage(new String(line));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void decode(Blackhole blackhole) throws IOException, ClassNotFoundException {
+		MessageReader reader = messageCodec.newReader(new ByteArrayInputStream(encoded));
+		for (int i = 0; i < BATCH; i++)
+			blackhole.consume(reader.readMessage());
+	}
+}
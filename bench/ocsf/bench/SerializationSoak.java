@@ -0,0 +1,78 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+
+import ocsf.common.*;
+
+/**
+ * Pushes millions of distinct chat lines through one serialization-codec
+ * connection over loopback and samples the heap after a full collection at
+ * regular intervals. With resets the heap stays flat; without them both
+ * stream ends keep every line ever sent and the heap grows with the count.
+ *
+ * <pre>
+ * java -Xmx512m ocsf.bench.SerializationSoak [messages] [resetInterval]
+ * java -Xmx512m ocsf.bench.SerializationSoak 5000000 1024
+ * java -Xmx512m ocsf.bench.SerializationSoak 5000000 0
+ * </pre>
+ */
+public class SerializationSoak {
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		int resetInterval = args.length > 1 ? Integer.parseInt(args[1]) : SerializationCodec.DEFAULT_RESET_INTERVAL;
+		int samples = 10;
+		final SerializationCodec codec = new SerializationCodec(resetInterval,
+				resetInterval == 0 ? 0 : SerializationCodec.DEFAULT_RESET_BYTES);
+
+		final ServerSocket listener = new ServerSocket(0);
+		Socket sending = new Socket("localhost", listener.getLocalPort());
+		final Socket receiving = listener.accept();
+
+		MessageWriter writer = codec.newWriter(new BufferedOutputStream(sending.getOutputStream()));
+		final MessageReader[] reader = new MessageReader[1];
+		final long[] received = new long[1];
+		Thread consumer = new Thread(() -> {
+			try {
+				reader[0] = codec.newReader(new BufferedInputStream(receiving.getInputStream()));
+				while (true) {
+					reader[0].readMessage();
+					synchronized (received) {
+						received[0]++;
+						received.notifyAll();
+					}
+				}
+			} catch (Exception e) {
+				// End of the run.
+			}
+		});
+		consumer.start();
+
+		System.out.printf("reset interval %d%n", resetInterval);
+		System.out.printf("%12s %12s%n", "messages", "heap MB");
+		long step = messages / samples;
+		for (long sent = 0; sent < messages;) {
+			for (long i = 0; i < step; i++, sent++)
+				writer.writeMessage("line " + sent + " of the soak test");
+
+			// Let the reader catch up before sampling.
+			synchronized (received) {
+				while (received[0] < sent)
+					received.wait();
+			}
+			System.out.printf("%12d %12d%n", sent, usedHeap() >> 20);
+		}
+
+		sending.close();
+		receiving.close();
+		listener.close();
+	}
+
+	static long usedHeap() {
+		for (int i = 0; i < 2; i++)
+			System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
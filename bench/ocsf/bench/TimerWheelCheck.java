@@ -0,0 +1,61 @@
+package ocsf.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ocsf.common.TimerWheel;
+
+/**
+ * Checks that a task scheduled from another thread while the wheel turns
+ * fires within a few ticks, never a turn of the wheel late: several threads
+ * (more than the processors, so some are preempted mid-schedule) keep
+ * scheduling one-tick tasks and the latest firing is compared with the
+ * tick. Exits with status 1 if a task fires too late.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar ocsf.bench.TimerWheelCheck
+ * </pre>
+ */
+public class TimerWheelCheck {
+
+	static final long TICK_MILLIS = 2;
+	static final int SLOTS = 256;
+	static final long LIMIT_TICKS = SLOTS / 4;
+
+	public static void main(String[] args) throws Exception {
+		TimerWheel wheel = new TimerWheel("check wheel", TICK_MILLIS, SLOTS);
+		AtomicLong latest = new AtomicLong();
+		AtomicLong fired = new AtomicLong();
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+		int threadCount = 4 * Runtime.getRuntime().availableProcessors() + 2;
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			threads[t] = new Thread(() -> {
+				while (System.nanoTime() < end) {
+					long scheduled = System.nanoTime();
+					wheel.schedule(now -> {
+						latest.accumulateAndGet(now - scheduled, Math::max);
+						fired.incrementAndGet();
+						return -1;
+					}, TICK_MILLIS);
+					LockSupport.parkNanos(20000);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		Thread.sleep(LIMIT_TICKS * TICK_MILLIS * 2);
+
+		long lateTicks = TimeUnit.NANOSECONDS.toMillis(latest.get()) / TICK_MILLIS;
+		if (lateTicks > LIMIT_TICKS) {
+			System.out.println("FAILED: a task fired " + lateTicks + " ticks after it was scheduled");
+			System.exit(1);
+		}
+		System.out.println("OK: " + fired.get() + " tasks fired within " + lateTicks + " ticks");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,219 @@
+package ocsf.bench;
+
+import java.io.*;
+import java.nio.file.*;
+
+import ocsf.common.*;
+import ocsf.server.*;
+
+/**
+ * Weighs what TLS costs the chat stack against plain TCP. With
+ * certificates generated by keytool in a temporary directory, it
+ * measures:
+ * <ul>
+ * <li>handshakes per second: connections opened, logged on with one round
+ * trip and closed, by clients that keep one TLS configuration and resume
+ * their sessions, and by clients that create a configuration for each
+ * connection and always go through a full handshake, with TLS 1.3 and
+ * 1.2. A resumed TLS 1.3 handshake still agrees on a new key; a resumed
+ * TLS 1.2 one does not;</li>
+ * <li>throughput: messages a client sends and gets echoed, for each
+ * cipher suite given.</li>
+ * </ul>
+ *
+ * <pre>
+ * java ocsf.bench.TlsBenchmark [connections] [messages] [size] [cipher suites...]
+ * java ocsf.bench.TlsBenchmark 1000 200000 128 TLS_AES_128_GCM_SHA256 TLS_CHACHA20_POLY1305_SHA256
+ * </pre>
+ */
+public class TlsBenchmark {
+
+	static final char[] PASSWORD = "benchmark".toCharArray();
+
+	/**
+	 * A server sending every message back to its sender.
+	 */
+	static class EchoServer extends AbstractServer {
+		EchoServer(int port) {
+			super(port, ServerEngine.THREAD_PER_CONNECTION);
+		}
+
+		protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
+			try {
+				client.sendToClient(msg);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Creates TLS configurations for the clients.
+	 */
+	interface ClientTls {
+		TlsConfig get() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+		String[] suites = args.length > 3 ? java.util.Arrays.copyOfRange(args, 3, args.length)
+				: new String[] { "TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384",
+						"TLS_CHACHA20_POLY1305_SHA256" };
+
+		Path directory = Files.createTempDirectory("ocsf-tls");
+		String keyStore = directory.resolve("server.p12").toString();
+		String trustStore = directory.resolve("trust.p12").toString();
+		generateCertificates(directory, keyStore, trustStore);
+
+		int port = LoopbackClient.freePort();
+		EchoServer server = new EchoServer(port);
+		TlsConfig serverTls = TlsConfig.load(keyStore, PASSWORD, null, null);
+		String[] protocols = { "TLSv1.3", "TLSv1.2" };
+		TlsConfig[] clientTls = new TlsConfig[protocols.length];
+		for (int p = 0; p < protocols.length; p++)
+			clientTls[p] = client(trustStore, protocols[p]);
+
+		System.out.printf("%-34s %14s %12s%n", "handshakes", "connections/s", "ms each");
+		for (int round = 0; round < 2; round++) { // the first round only warms up
+			server.setTls(null);
+			server.listen();
+			report(round, "plain", connections, handshakes(port, connections, () -> null));
+			close(server);
+
+			server.setTls(serverTls);
+			server.listen();
+			for (int p = 0; p < protocols.length; p++) {
+				String protocol = protocols[p];
+				TlsConfig shared = clientTls[p];
+				report(round, protocol + ", new configuration each", connections,
+						handshakes(port, connections, () -> client(trustStore, protocol)));
+				report(round, protocol + ", sessions resumed", connections,
+						handshakes(port, connections, () -> shared));
+			}
+			close(server);
+		}
+
+		System.out.printf("%n%-34s %14s %12s%n", "throughput, " + size + " B messages", "msg/s", "MB/s");
+		String message = text(size);
+		for (int round = 0; round < 2; round++) {
+			server.setTls(null);
+			server.listen();
+			report(round, "plain", messages, size, throughput(port, null, message, messages));
+			close(server);
+
+			server.setTls(serverTls);
+			server.listen();
+			for (String suite : suites) {
+				TlsConfig tls = client(trustStore, "TLSv1.3");
+				tls.setCipherSuites(suite);
+				report(round, suite, messages, size, throughput(port, tls, message, messages));
+			}
+			close(server);
+		}
+
+		for (File file : directory.toFile().listFiles())
+			file.delete();
+		Files.delete(directory);
+		System.exit(0);
+	}
+
+	/**
+	 * Creates the configuration of a client offering a single protocol.
+	 */
+	static TlsConfig client(String trustStore, String protocol) throws Exception {
+		TlsConfig tls = TlsConfig.load(null, null, trustStore, PASSWORD);
+		tls.setProtocols(protocol);
+		return tls;
+	}
+
+	/**
+	 * Closes the server and waits for its listening thread to end, so it
+	 * can listen again at once.
+	 */
+	static void close(AbstractServer server) throws Exception {
+		server.close();
+		while (server.isListening())
+			Thread.sleep(1);
+	}
+
+	static void report(int round, String name, int connections, long nanos) {
+		if (round == 1)
+			System.out.printf("%-34s %14.0f %12.2f%n", name, connections * 1e9 / nanos, nanos / 1e6 / connections);
+	}
+
+	static void report(int round, String name, int messages, int size, long nanos) {
+		if (round == 1)
+			System.out.printf("%-34s %14.0f %12.1f%n", name, messages * 1e9 / nanos,
+					(double) messages * size * 1e3 / nanos);
+	}
+
+	/**
+	 * Opens, logs on and closes connections one after the other.
+	 *
+	 * @return the time taken, in ns.
+	 */
+	static long handshakes(int port, int connections, ClientTls tls) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			LoopbackClient client = new LoopbackClient(port, false);
+			client.setTls(tls.get());
+			client.openConnection();
+			client.sendToServer("#login user" + i);
+			client.awaitReceived(1);
+			client.closeConnection();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Sends messages as fast as the connection takes them and waits for
+	 * all their echoes.
+	 *
+	 * @return the time taken, in ns.
+	 */
+	static long throughput(int port, TlsConfig tls, String message, int messages) throws Exception {
+		LoopbackClient client = new LoopbackClient(port, false);
+		client.setTls(tls);
+		client.openConnection();
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++)
+			client.sendToServer(message);
+		client.awaitReceived(messages);
+		long elapsed = System.nanoTime() - start;
+		client.closeConnection();
+		return elapsed;
+	}
+
+	static String text(int size) {
+		StringBuilder text = new StringBuilder(size);
+		while (text.length() < size)
+			text.append("the quick brown fox jumps over the lazy dog ");
+		return text.substring(0, size);
+	}
+
+	/**
+	 * Generates a self-signed server certificate for localhost, and a
+	 * trust store holding it, with keytool.
+	 */
+	static void generateCertificates(Path directory, String keyStore, String trustStore) throws Exception {
+		String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+		String password = new String(PASSWORD);
+		String certificate = directory.resolve("server.cer").toString();
+		keytool(keytool, "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+				"-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+				"-keystore", keyStore, "-storepass", password, "-keypass", password);
+		keytool(keytool, "-exportcert", "-alias", "server", "-keystore", keyStore, "-storepass", password, "-file",
+				certificate);
+		keytool(keytool, "-importcert", "-noprompt", "-alias", "server", "-file", certificate, "-storetype",
+				"PKCS12", "-keystore", trustStore, "-storepass", password);
+	}
+
+	static void keytool(String... command) throws Exception {
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		process.getInputStream().transferTo(output);
+		if (process.waitFor() != 0)
+			throw new IOException("keytool failed: " + output);
+	}
+}
@@ -5,8 +5,12 @@
 package edu.seg2105.client.backend;
 
 import ocsf.client.*;
+import ocsf.common.BinaryCodec;
+import ocsf.common.TlsConfig;
 
 import java.io.*;
+import java.net.SocketException;
+import java.util.ArrayDeque;
 
 import edu.seg2105.client.common.*;
 
@@ -19,6 +23,30 @@ import edu.seg2105.client.common.*;
  * @author Fran&ccedil;ois B&eacute;langer
  */
 public class ChatClient extends AbstractClient {
+    //Class variables *************************************************
+
+    /**
+     * The default number of messages kept while reconnecting.
+     */
+    final public static int DEFAULT_OUTAGE_BUFFER = 100;
+
+    /**
+     * The commands typed on the client console.
+     */
+    private final static CommandTable<ChatClient> COMMANDS = new CommandTable<ChatClient>()
+            .add(ChatClient::quitCommand, "#quit")
+            .add(ChatClient::logoffCommand, "#logoff")
+            .add(ChatClient::loginCommand, "#login")
+            .add(ChatClient::setHostCommand, "#sethost")
+            .add(ChatClient::compressCommand, "#compress")
+            .add(ChatClient::setPortCommand, "#setport")
+            .add(ChatClient::roomCommand, "#join", "#leave")
+            .add(ChatClient::privateMessageCommand, "#msg")
+            .add(ChatClient::historyCommand, "#history")
+            .add(ChatClient::reconnectCommand, "#reconnect")
+            .add(ChatClient::getHostCommand, "#gethost")
+            .add(ChatClient::getPortCommand, "#getport");
+
     //Instance variables **********************************************
 
     String loginID;
@@ -29,6 +57,28 @@ public class ChatClient extends AbstractClient {
      */
     ChatIF clientUI;
 
+    /**
+     * The messages typed but not sent yet: before the login of the
+     * connection has been sent, or while the connection is lost. Guarded
+     * by itself; never held while writing to the server.
+     */
+    private final ArrayDeque<String> pending = new ArrayDeque<String>();
+
+    /**
+     * True once the login of the current connection has been sent, so
+     * that messages may follow it. Guarded by pending.
+     */
+    private boolean loggedOn = false;
+
+    /**
+     * True while a thread sends the pending messages. Guarded by pending.
+     */
+    private boolean flushing = false;
+
+    /**
+     * The most messages kept while reconnecting.
+     */
+    private volatile int outageBuffer = DEFAULT_OUTAGE_BUFFER;
 
     //Constructors ****************************************************
 
@@ -42,10 +92,42 @@ public class ChatClient extends AbstractClient {
 
     public ChatClient(String loginID, String host, int port, ChatIF clientUI)
             throws IOException {
+        this(loginID, host, port, clientUI, null);
+    }
+
+    /**
+     * Constructs an instance of the chat client connecting over TLS.
+     *
+     * @param host     The server to connect to.
+     * @param port     The port number to connect on.
+     * @param clientUI The interface type variable.
+     * @param tls      The TLS configuration, or null for plain TCP.
+     */
+    public ChatClient(String loginID, String host, int port, ChatIF clientUI, TlsConfig tls)
+            throws IOException {
+        this(loginID, host, port, clientUI, tls, true);
+    }
+
+    /**
+     * Constructs an instance of the chat client, connected or not. A
+     * subclass that needs its own fields when the connection is
+     * established connects once they are set, with openConnection.
+     *
+     * @param host     The server to connect to.
+     * @param port     The port number to connect on.
+     * @param clientUI The interface type variable.
+     * @param tls      The TLS configuration, or null for plain TCP.
+     * @param connect  Whether to connect now.
+     */
+    protected ChatClient(String loginID, String host, int port, ChatIF clientUI, TlsConfig tls, boolean connect)
+            throws IOException {
         super(host, port); //Call the superclass constructor
         this.clientUI = clientUI;
         this.loginID = loginID;
-        openConnection();
+        setTls(tls);
+        if (connect) {
+            openConnection();
+        }
     }
 
 
@@ -63,9 +145,106 @@ public class ChatClient extends AbstractClient {
             this.sendToServer(loginMessage);
         } catch (IOException e) {
             clientUI.display("ERROR - Failed to send login message to server");
+            return;
+        }
+
+        // Send what was typed before the login, or during the outage.
+        synchronized (pending) {
+            loggedOn = true;
+            if (flushing) {
+                return;
+            }
+            flushing = true;
+        }
+        try {
+            flushPending();
+        } catch (IOException e) {
+            // Lost again: kept for the next connection.
+        }
+    }
+
+    /**
+     * Sends a message to the server once the login has been sent, or keeps
+     * it while the client is reconnecting. Messages are sent in the order
+     * they were given.
+     *
+     * @param message The message.
+     * @throws IOException if the message cannot be sent and the client is
+     *                     not reconnecting.
+     */
+    private void send(String message) throws IOException {
+        synchronized (pending) {
+            if (!isConnected() && !isReconnecting()) {
+                throw new SocketException("socket does not exist");
+            }
+            if (pending.size() >= outageBuffer) {
+                clientUI.display("ERROR - Not connected, message dropped: " + message);
+                return;
+            }
+            pending.add(message);
+            if (!loggedOn || flushing) {
+                return;
+            }
+            flushing = true;
+        }
+
+        try {
+            flushPending();
+        } catch (IOException e) {
+            if (!isReconnecting()) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sends the pending messages, one at a time and without holding the
+     * queue, until none is left or the login of a new connection must go
+     * first. Called by the one thread that set flushing.
+     *
+     * @throws IOException if a message cannot be sent; it is kept.
+     */
+    private void flushPending() throws IOException {
+        while (true) {
+            String message;
+            synchronized (pending) {
+                message = pending.peek();
+                if (message == null || !loggedOn) {
+                    flushing = false;
+                    return;
+                }
+            }
+
+            try {
+                sendToServer(message);
+            } catch (IOException e) {
+                synchronized (pending) {
+                    loggedOn = false;
+                    flushing = false;
+                }
+                throw e;
+            }
+
+            synchronized (pending) {
+                pending.poll();
+            }
         }
     }
 
+    /**
+     * Reconnects on its own when the connection is lost, sending the login
+     * ID again and keeping the messages typed meanwhile.
+     *
+     * @param delay    The longest wait before the first attempt, in ms; 0
+     *                 exits when the connection is lost.
+     * @param maxDelay The longest wait before any attempt, in ms.
+     * @param buffer   The most messages kept until the connection is back.
+     */
+    public void setReconnect(long delay, long maxDelay, int buffer) {
+        setReconnect(delay, maxDelay);
+        outageBuffer = buffer;
+    }
+
     /**
      * This method handles all data that comes in from the server.
      *
@@ -85,7 +264,7 @@ public class ChatClient extends AbstractClient {
             if (message.startsWith("#")) {
                 handleCommand(message);
             } else {
-                sendToServer(message);
+                send(message);
             }
         } catch (IOException e) {
             clientUI.display("Could not send message to server.  Terminating client.");
@@ -94,77 +273,144 @@ public class ChatClient extends AbstractClient {
     }
 
     public void handleCommand(String message) {
-        String[] args = message.split(" ");
-        String command = args[0];
-        switch (command) {
-            case "#quit":
-                clientUI.display("Terminating connection.");
-                quit();
-                break;
-
-            case "#logoff":
-                try {
-                    clientUI.display("Logging off.");
-                    closeConnection();
-                } catch (IOException e) {
-                    clientUI.display("ERROR - Could not close connection!");
-                }
-                break;
-
-            case "#login":
-                if (this.isConnected()) {
-                    clientUI.display("Client is already connected.");
-                } else {
-                    try {
-                        clientUI.display("Logging in.");
-                        this.openConnection();
-                        connectionOpen();
-                    } catch (IOException e) {
-                        clientUI.display("ERROR - Could not open connection!");
-                    }
-                }
-                break;
-
-            case "#sethost":
-                if (this.isConnected()) {
-                    clientUI.display("Cannot set host if client is still connected.");
-                } else if (args.length > 1) {
-                    super.setHost(args[1]);
-                    System.out.println("Host set to " + getHost());
-                } else {
-                    clientUI.display("To set host: #sethost <host>");
-                }
-                break;
-
-            case "#setport":
-                if (this.isConnected()) {
-                    clientUI.display("Cannot set port if client is still connected.");
-                } else if (args.length > 1) {
-                    try {
-                        super.setPort(Integer.parseInt(args[1]));
-                        System.out.println("Port set to " + getPort());
-                    } catch (NumberFormatException e) {
-                        clientUI.display("Invalid port number. Please provide a valid integer.");
-                    }
-                } else {
-                    clientUI.display("To set port: #setport <port>");
-                }
-                break;
+        Envelope envelope = Envelope.parse(message, loginID, null);
+        if (!COMMANDS.dispatch(this, envelope)) {
+            clientUI.display("Invalid command: '" + envelope.getCommand() + "'");
+        }
+    }
 
-            case "#gethost":
-                clientUI.display("Current host is " + this.getHost());
-                break;
+    private void quitCommand(Envelope envelope) {
+        clientUI.display("Terminating connection.");
+        quit();
+    }
+
+    private void logoffCommand(Envelope envelope) {
+        try {
+            clientUI.display("Logging off.");
+            closeConnection();
+        } catch (IOException e) {
+            clientUI.display("ERROR - Could not close connection!");
+        }
+    }
 
-            case "#getport":
-                clientUI.display("Current port is " + this.getPort());
-                break;
+    private void loginCommand(Envelope envelope) {
+        if (this.isConnected()) {
+            clientUI.display("Client is already connected.");
+        } else {
+            try {
+                clientUI.display("Logging in.");
+                this.openConnection();
+                connectionOpen();
+            } catch (IOException e) {
+                clientUI.display("ERROR - Could not open connection!");
+            }
+        }
+    }
 
-            default:
-                clientUI.display("Invalid command: '" + command + "'");
-                break;
+    private void setHostCommand(Envelope envelope) {
+        if (this.isConnected()) {
+            clientUI.display("Cannot set host if client is still connected.");
+        } else if (envelope.arg(0) != null) {
+            super.setHost(envelope.arg(0));
+            System.out.println("Host set to " + getHost());
+        } else {
+            clientUI.display("To set host: #sethost <host>");
+        }
+    }
+
+    private void compressCommand(Envelope envelope) {
+        try {
+            int threshold = Integer.parseInt(envelope.arg(0));
+            setCodec(new BinaryCodec(threshold));
+            clientUI.display(threshold == 0 ? "Compression off from the next login."
+                    : "Compressing messages of " + threshold + " bytes or more from the next login.");
+        } catch (RuntimeException e) {
+            clientUI.display("To compress large messages: #compress <bytes>, 0 to stop");
+        }
+    }
+
+    private void setPortCommand(Envelope envelope) {
+        if (this.isConnected()) {
+            clientUI.display("Cannot set port if client is still connected.");
+        } else if (envelope.arg(0) != null) {
+            try {
+                super.setPort(Integer.parseInt(envelope.arg(0)));
+                System.out.println("Port set to " + getPort());
+            } catch (NumberFormatException e) {
+                clientUI.display("Invalid port number. Please provide a valid integer.");
+            }
+        } else {
+            clientUI.display("To set port: #setport <port>");
         }
     }
 
+    /**
+     * Handles #join and #leave, which only differ in the command sent.
+     */
+    private void roomCommand(Envelope envelope) {
+        String command = envelope.getCommand();
+        if (!this.isConnected()) {
+            clientUI.display("Cannot change rooms while disconnected.");
+        } else if (envelope.arg(0) != null) {
+            try {
+                send(command + " " + envelope.arg(0));
+            } catch (IOException e) {
+                clientUI.display("ERROR - Could not send command to server.");
+            }
+        } else {
+            clientUI.display("To " + command.substring(1) + " a room: " + command + " <room>");
+        }
+    }
+
+    private void privateMessageCommand(Envelope envelope) {
+        if (!this.isConnected()) {
+            clientUI.display("Cannot send a private message while disconnected.");
+        } else if (envelope.arg(1) != null) {
+            try {
+                send(envelope.toString());
+            } catch (IOException e) {
+                clientUI.display("ERROR - Could not send message to server.");
+            }
+        } else {
+            clientUI.display("To send a private message: #msg <loginID> <text>");
+        }
+    }
+
+    private void historyCommand(Envelope envelope) {
+        if (!this.isConnected()) {
+            clientUI.display("Cannot see the history while disconnected.");
+        } else {
+            try {
+                send(envelope.toString());
+            } catch (IOException e) {
+                clientUI.display("ERROR - Could not send command to server.");
+            }
+        }
+    }
+
+    private void reconnectCommand(Envelope envelope) {
+        try {
+            long max = Long.parseLong(envelope.arg(1)) * 1000;
+            String kept = envelope.arg(2);
+            int buffer = kept != null ? Integer.parseInt(kept) : DEFAULT_OUTAGE_BUFFER;
+            setReconnect(Long.parseLong(envelope.arg(0)) * 1000, max, buffer);
+            clientUI.display(getReconnectDelay() == 0 ? "Reconnection disabled."
+                    : "Reconnecting within " + envelope.arg(0) + "s at first, " + envelope.arg(1)
+                    + "s at most, keeping " + buffer + " messages");
+        } catch (RuntimeException e) {
+            clientUI.display("To reconnect when the server goes away: "
+                    + "#reconnect <first seconds> <max seconds> [<messages kept>], 0 0 to disable");
+        }
+    }
+
+    private void getHostCommand(Envelope envelope) {
+        clientUI.display("Current host is " + this.getHost());
+    }
+
+    private void getPortCommand(Envelope envelope) {
+        clientUI.display("Current port is " + this.getPort());
+    }
+
     /**
      * This method terminates the client.
      */
@@ -186,6 +432,13 @@ public class ChatClient extends AbstractClient {
      */
     @Override
     protected void connectionException(Exception exception) {
+        synchronized (pending) {
+            loggedOn = false;
+        }
+        if (isReconnecting()) {
+            clientUI.display("Connection lost, reconnecting.");
+            return;
+        }
         clientUI.display("The server has shut down");
         System.exit(0);
     }
@@ -198,6 +451,10 @@ public class ChatClient extends AbstractClient {
      */
     @Override
     protected void connectionClosed() {
+        synchronized (pending) {
+            pending.clear();
+            loggedOn = false;
+        }
         clientUI.display("Connection closed.");
     }
 
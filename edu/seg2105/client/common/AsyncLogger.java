@@ -0,0 +1,255 @@
+package edu.seg2105.client.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger that never blocks the thread logging. Lines go into a bounded
+ * ring buffer and a background thread writes them to standard output or
+ * to a file in batches, one write and one flush per batch. When the ring
+ * is full the line is dropped and counted; the count is written to the log
+ * once the writer catches up.
+ * <p>
+ * The level and the destination are read from system properties when the
+ * shared logger is first used, so per-message logging can be switched off
+ * without code changes:
+ *
+ * <pre>
+ * -Dsimplechat.log.level=INFO          DEBUG, INFO, WARN, ERROR or OFF
+ * -Dsimplechat.log.file=server.log     standard output if not set
+ * -Dsimplechat.log.buffer=65536        ring capacity, a power of two
+ * </pre>
+ */
+public class AsyncLogger {
+    //Class variables *************************************************
+
+    /**
+     * The levels of the log lines, from the most to the least verbose.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /**
+     * How long the writer sleeps when the ring is empty.
+     */
+    private static final long IDLE_NANOS = 5000000;
+
+    /**
+     * The logger shared by the application, created on first use.
+     */
+    private static AsyncLogger shared;
+
+    //Instance variables **********************************************
+
+    /**
+     * The lines waiting to be written. A slot is null until the producer
+     * that claimed it has stored its line.
+     */
+    private final AtomicReferenceArray<String> ring;
+    private final int mask;
+
+    /**
+     * The next slot to claim, and the next slot to write. Lines in between
+     * are waiting.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+
+    private final LongAdder dropped = new LongAdder();
+    private volatile Level level;
+    private final Writer out;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    //Constructors ****************************************************
+
+    /**
+     * Constructs a logger and starts its writer thread.
+     *
+     * @param out      Where the lines are written.
+     * @param level    The least severe level written.
+     * @param capacity The number of lines the ring holds, rounded up to a
+     *                 power of two.
+     */
+    public AsyncLogger(OutputStream out, Level level, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new AtomicReferenceArray<String>(size);
+        this.mask = size - 1;
+        this.level = level;
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        this.writer = new Thread(this::drain, "AsyncLogger writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Returns true if lines of the given level are written. Callers that
+     * build costly lines on a hot path should check it first.
+     *
+     * @param level The level.
+     * @return true if enabled.
+     */
+    public boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(this.level) >= 0;
+    }
+
+    /**
+     * Changes the least severe level written.
+     *
+     * @param level The new level; OFF writes nothing.
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Returns the least severe level written.
+     *
+     * @return the level.
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    public void debug(String line) {
+        log(Level.DEBUG, line);
+    }
+
+    public void info(String line) {
+        log(Level.INFO, line);
+    }
+
+    public void warn(String line) {
+        log(Level.WARN, line);
+    }
+
+    public void error(String line) {
+        log(Level.ERROR, line);
+    }
+
+    /**
+     * Queues a line if its level is enabled. Never blocks: if the ring is
+     * full, the line is dropped and counted.
+     *
+     * @param level The level of the line.
+     * @param line  The line, without line terminator.
+     */
+    public void log(Level level, String line) {
+        if (!isEnabled(level) || closed) {
+            return;
+        }
+
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        ring.set((int) slot & mask, line);
+    }
+
+    /**
+     * Returns the number of lines dropped because the ring was full.
+     *
+     * @return the count since the logger was created.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the lines still waiting and stops the writer thread. Lines
+     * logged afterwards are ignored.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs on the writer thread: writes whatever the ring holds as one
+     * batch, then sleeps briefly when it is empty.
+     */
+    private void drain() {
+        long reported = 0;
+        while (true) {
+            boolean stopping = closed;
+            int written = 0;
+            long next = head;
+            String line;
+            try {
+                while (next < tail.get() && (line = ring.get((int) next & mask)) != null) {
+                    ring.set((int) next & mask, null);
+                    head = ++next;
+                    out.write(line);
+                    out.write(System.lineSeparator());
+                    written++;
+                }
+
+                long lost = dropped.sum();
+                if (lost > reported) {
+                    out.write("WARN - log overloaded, " + (lost - reported) + " lines dropped");
+                    out.write(System.lineSeparator());
+                    reported = lost;
+                    written++;
+                }
+                if (written > 0) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Nowhere left to report it; keep draining so producers never stall.
+            }
+
+            if (stopping && next == tail.get()) {
+                return;
+            }
+            if (written == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+
+    //Class methods ***************************************************
+
+    /**
+     * Returns the logger shared by the application, configured from the
+     * system properties on first use. It is flushed when the JVM exits.
+     *
+     * @return the shared logger.
+     */
+    public static synchronized AsyncLogger get() {
+        if (shared == null) {
+            Level level = Level.valueOf(System.getProperty("simplechat.log.level", "DEBUG").toUpperCase());
+            int capacity = Integer.getInteger("simplechat.log.buffer", 1 << 16);
+            String file = System.getProperty("simplechat.log.file");
+            OutputStream out = System.out;
+            if (file != null) {
+                try {
+                    out = new FileOutputStream(file, true);
+                } catch (IOException e) {
+                    System.out.println("ERROR - Cannot open log file " + file + ", logging to the console.");
+                }
+            }
+            AsyncLogger logger = new AsyncLogger(out, level, capacity);
+            Runtime.getRuntime().addShutdownHook(new Thread(logger::close));
+            shared = logger;
+        }
+        return shared;
+    }
+}
+//End of AsyncLogger class
@@ -0,0 +1,66 @@
+package edu.seg2105.client.common;
+
+import java.util.HashMap;
+
+/**
+ * The commands understood by a client or a server, by name. The table is
+ * built once, when its owner is created, and only read afterwards, so
+ * dispatching a command costs a single lookup and can be done from any
+ * thread.
+ *
+ * @param <T> The type of the object the commands act on.
+ */
+public final class CommandTable<T> {
+    //Class variables *************************************************
+
+    /**
+     * A command, run on the object the table dispatches to.
+     *
+     * @param <T> The type of the object the command acts on.
+     */
+    @FunctionalInterface
+    public interface Command<T> {
+        void run(T target, Envelope envelope);
+    }
+
+    //Instance variables **********************************************
+
+    private final HashMap<String, Command<T>> commands = new HashMap<String, Command<T>>();
+
+    //Instance methods ************************************************
+
+    /**
+     * Adds a command under one or more names. Only to be called while the
+     * table is being built.
+     *
+     * @param command The command.
+     * @param names   Its names, '#' included.
+     * @return this table.
+     */
+    public CommandTable<T> add(Command<T> command, String... names) {
+        for (String name : names) {
+            if (commands.put(name, command) != null) {
+                throw new IllegalArgumentException("command " + name + " defined twice");
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Runs the command an envelope names.
+     *
+     * @param target   The object the command acts on.
+     * @param envelope The command.
+     * @return false if the envelope is not a command of this table.
+     */
+    public boolean dispatch(T target, Envelope envelope) {
+        String name = envelope.getCommand();
+        Command<T> command = name == null ? null : commands.get(name);
+        if (command == null) {
+            return false;
+        }
+        command.run(target, envelope);
+        return true;
+    }
+}
+//End of CommandTable class
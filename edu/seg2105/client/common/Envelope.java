@@ -0,0 +1,210 @@
+package edu.seg2105.client.common;
+
+import java.io.Serializable;
+
+/**
+ * A chat message as the client and the server handle it: what kind of
+ * message it is, who sent it, the room it was said in, when it was
+ * received, and its text. A command keeps its name apart from its
+ * arguments, so it is dispatched with a single lookup in a
+ * {@link CommandTable}.
+ * <p>
+ * The text is read once, without splitting or regular expressions: the
+ * arguments of a command are found by scanning for spaces only when a
+ * command asks for them. Envelopes are immutable.
+ */
+public final class Envelope implements Serializable {
+    //Class variables *************************************************
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The kinds of messages.
+     */
+    public enum Type {
+        /**
+         * Text said to a room.
+         */
+        CHAT,
+
+        /**
+         * A command, starting with '#'.
+         */
+        COMMAND
+    }
+
+    //Instance variables **********************************************
+
+    private final Type type;
+    private final String sender;
+    private final String room;
+    private final long timestamp;
+
+    /**
+     * The name of the command, '#' included; null for chat.
+     */
+    private final String command;
+
+    /**
+     * The text of a chat message, or the arguments of a command.
+     */
+    private final String body;
+
+    //Constructors ****************************************************
+
+    private Envelope(Type type, String sender, String room, long timestamp, String command, String body) {
+        this.type = type;
+        this.sender = sender;
+        this.room = room;
+        this.timestamp = timestamp;
+        this.command = command;
+        this.body = body;
+    }
+
+    //Class methods ***************************************************
+
+    /**
+     * Reads a line of text. A line starting with '#' is a command named by
+     * its first word; any other line is chat.
+     *
+     * @param text   The line.
+     * @param sender The login ID of the sender, or null if unknown.
+     * @param room   The room the sender is in, or null if none.
+     * @return the envelope, stamped with the current time.
+     */
+    public static Envelope parse(String text, String sender, String room) {
+        long now = System.currentTimeMillis();
+        if (!text.startsWith("#")) {
+            return new Envelope(Type.CHAT, sender, room, now, null, text);
+        }
+
+        int space = text.indexOf(' ');
+        if (space < 0) {
+            return new Envelope(Type.COMMAND, sender, room, now, text, "");
+        }
+        return new Envelope(Type.COMMAND, sender, room, now, text.substring(0, space),
+                text.substring(space + 1).trim());
+    }
+
+    /**
+     * Reads a message received from a connection. Its sender and room are
+     * those known for the connection, whatever an envelope sent as is
+     * claims.
+     *
+     * @param message The message, a String or an Envelope.
+     * @param sender  The login ID of the connection, or null if unknown.
+     * @param room    The room of the connection, or null if none.
+     * @return the envelope, or null if the message is of another kind.
+     */
+    public static Envelope of(Object message, String sender, String room) {
+        if (message instanceof String || message instanceof Envelope) {
+            return parse(message.toString(), sender, room);
+        }
+        return null;
+    }
+
+    //Instance methods ************************************************
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the login ID of the sender, or null if unknown.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * @return the room of the sender, or null if none.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * @return when the message was received, in ms since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the name of the command, '#' included, or null for chat.
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the text of a chat message, or the arguments of a command.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Returns an argument of the command.
+     *
+     * @param i The index of the argument, from 0.
+     * @return the argument, or null if there are fewer.
+     */
+    public String arg(int i) {
+        int start = skip(i);
+        if (start < 0) {
+            return null;
+        }
+        int end = body.indexOf(' ', start);
+        return end < 0 ? body.substring(start) : body.substring(start, end);
+    }
+
+    /**
+     * Returns the arguments of the command from the given one on, as typed.
+     *
+     * @param i The index of the first argument, from 0.
+     * @return the text from that argument on, or null if there are fewer.
+     */
+    public String rest(int i) {
+        int start = skip(i);
+        return start < 0 ? null : body.substring(start);
+    }
+
+    /**
+     * Finds where an argument starts.
+     *
+     * @param i The index of the argument.
+     * @return its position in the body, or -1 if there are fewer.
+     */
+    private int skip(int i) {
+        int position = 0;
+        int length = body.length();
+        for (; ; ) {
+            while (position < length && body.charAt(position) == ' ') {
+                position++;
+            }
+            if (position == length) {
+                return -1;
+            }
+            if (i-- == 0) {
+                return position;
+            }
+            while (position < length && body.charAt(position) != ' ') {
+                position++;
+            }
+        }
+    }
+
+    /**
+     * Returns the message as it is typed and sent.
+     *
+     * @return the line of text.
+     */
+    public String toString() {
+        if (command == null) {
+            return String.valueOf(body);
+        }
+        return body == null || body.isEmpty() ? command : command + " " + body;
+    }
+}
+//End of Envelope class
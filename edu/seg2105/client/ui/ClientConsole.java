@@ -4,10 +4,12 @@ package edu.seg2105.client.ui;
 // license found at www.lloseng.com
 
 import java.io.*;
+import java.security.GeneralSecurityException;
 import java.util.Scanner;
 
 import edu.seg2105.client.backend.ChatClient;
 import edu.seg2105.client.common.*;
+import ocsf.common.TlsConfig;
 
 /**
  * This class constructs the UI for a chat client.  It implements the
@@ -50,8 +52,20 @@ public class ClientConsole implements ChatIF {
      * @param port    The port to connect on.
      */
     public ClientConsole(String loginID, String host, int port) {
+        this(loginID, host, port, null);
+    }
+
+    /**
+     * Constructs an instance of the ClientConsole UI connecting over TLS.
+     *
+     * @param loginID The login ID of the client.
+     * @param host    The host to connect to.
+     * @param port    The port to connect on.
+     * @param tls     The TLS configuration, or null for plain TCP.
+     */
+    public ClientConsole(String loginID, String host, int port, TlsConfig tls) {
         try {
-            client = new ChatClient(loginID, host, port, this);
+            client = new ChatClient(loginID, host, port, this, tls);
         } catch (IOException exception) {
             System.out.println("Error: Can't setup connection!"
                     + " Terminating client.");
@@ -103,6 +117,9 @@ public class ClientConsole implements ChatIF {
      * @param args\[0] The login ID of the client.
      *                 args\[1] The host to connect to.
      *                 args\[2] The port to connect to.
+     *                 The connection uses TLS if -Dsimplechat.tls=true,
+     *                 trusting the javax.net.ssl.trustStore properties;
+     *                 -Dsimplechat.tls.ciphers restricts the cipher suites.
      */
     public static void main(String[] args) {
         String loginID;
@@ -127,7 +144,20 @@ public class ClientConsole implements ChatIF {
             System.out.println("ERROR - Invalid port number.");
             port = DEFAULT_PORT;
         }
-        ClientConsole chat = new ClientConsole(loginID, host, port);
+        TlsConfig tls = null;
+        if (Boolean.getBoolean("simplechat.tls")) {
+            try {
+                tls = TlsConfig.fromSystemProperties();
+                String ciphers = System.getProperty("simplechat.tls.ciphers");
+                if (ciphers != null) {
+                    tls.setCipherSuites(ciphers.split(","));
+                }
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                System.out.println("ERROR - Could not set up TLS: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        ClientConsole chat = new ClientConsole(loginID, host, port, tls);
         chat.accept();  //Wait for console data
     }
 }
@@ -0,0 +1,328 @@
+package edu.seg2105.client.ui;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.client.common.*;
+import ocsf.common.LatencyHistogram;
+
+/**
+ * A headless UI that drives many chat clients at once to reproduce
+ * production load on a server. Each session is a logged-on
+ * <code>ChatClient</code>; the sessions are spread over a number of rooms
+ * and send chat lines of a fixed size at a fixed rate. Every line carries
+ * the time it was due to be sent, so each copy the server delivers gives
+ * one end-to-end latency sample.
+ *
+ * <pre>
+ * java edu.seg2105.client.ui.LoadGenerator [name=value ...]
+ * java edu.seg2105.client.ui.LoadGenerator sessions=2000 rate=0.5 size=80 rooms=50 duration=60
+ * </pre>
+ *
+ * Lines are paced against a fixed schedule and stamped with their due
+ * time, not the time they were actually written, so a server that falls
+ * behind shows up in the latency instead of silently lowering the rate.
+ * They also carry a tag drawn for each run: lines of earlier runs, which
+ * the server replays from its history when a session logs on, are not
+ * timed.
+ */
+public class LoadGenerator implements ChatIF {
+    //Class variables *************************************************
+
+    /**
+     * Marks the chat lines sent by the generator.
+     */
+    final static String MARKER = "@load ";
+
+    //Instance variables **********************************************
+
+    String host = "localhost";
+    int port = ClientConsole.DEFAULT_PORT;
+
+    /**
+     * The number of sessions, and the prefix of their login IDs.
+     */
+    int sessions = 100;
+    String prefix = "load";
+
+    /**
+     * Chat lines per second sent by each session.
+     */
+    double rate = 1;
+
+    /**
+     * The length of each chat line, in characters.
+     */
+    int size = 64;
+
+    /**
+     * The number of rooms the sessions are spread over; 0 keeps them all
+     * in the lobby.
+     */
+    int rooms = 0;
+
+    /**
+     * How long to send, in seconds.
+     */
+    int duration = 30;
+
+    final LongAdder sent = new LongAdder();
+    final LongAdder sendFailures = new LongAdder();
+    final LongAdder received = new LongAdder();
+    final LongAdder lostSessions = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * The time all latencies are measured against.
+     */
+    final long origin = System.nanoTime();
+
+    /**
+     * Starts the lines of this run: the marker and the run's tag.
+     */
+    final String tag = MARKER + Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, 36) + " ";
+
+    //Instance methods ************************************************
+
+    /**
+     * Receives everything the sessions display. Chat lines sent in this
+     * run are timed; anything else is ignored.
+     *
+     * @param message The string to be displayed.
+     */
+    @Override
+    public void display(String message) {
+        int marker = message.indexOf(tag);
+        if (marker < 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        int start = marker + tag.length();
+        int end = message.indexOf(' ', start);
+        try {
+            long due = Long.parseLong(message.substring(start, end < 0 ? message.length() : end));
+            latency.record(now - origin - due);
+            received.increment();
+        } catch (NumberFormatException e) {
+            // Not a line of the generator.
+        }
+    }
+
+    /**
+     * Opens the sessions, runs the load and prints the results.
+     */
+    public void run() throws Exception {
+        System.out.printf("%d sessions to %s:%d, %.2f lines/s each, %d chars, %s, %ds%n", sessions, host, port,
+                rate, size, rooms == 0 ? "lobby" : rooms + " rooms", duration);
+
+        List<LoadSession> clients = new ArrayList<LoadSession>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            String room = rooms == 0 ? "lobby" : "room" + i % rooms;
+            LoadSession client = new LoadSession(prefix + i, room, host, port, this);
+            clients.add(client);
+            client.openConnection();
+        }
+        int ready;
+        while ((ready = settled(clients, true)) + settled(clients, false) < sessions) {
+            Thread.sleep(10);
+        }
+        System.out.printf("%d sessions ready%n", ready);
+
+        String padding = padding(size - tag.length());
+        long interval = Math.max(1, (long) (1e9 / (sessions * rate)));
+        long start = System.nanoTime() - origin;
+        long end = start + duration * 1000000000L;
+        long report = start + 1000000000L;
+        long lastSent = 0, lastReceived = 0;
+        int next = 0;
+
+        for (long due = start; due < end; due += interval) {
+            long now = System.nanoTime() - origin;
+            if (now < due) {
+                LockSupport.parkNanos(due - now);
+            }
+
+            try {
+                clients.get(next).sendToServer(tag + due + " " + padding);
+                sent.increment();
+            } catch (IOException e) {
+                sendFailures.increment();
+            }
+            next = (next + 1) % sessions;
+
+            if (due >= report) {
+                long s = sent.sum(), r = received.sum();
+                System.out.printf("sent %8d/s  received %9d/s  %s%n", s - lastSent, r - lastReceived, latency);
+                lastSent = s;
+                lastReceived = r;
+                report += 1000000000L;
+            }
+        }
+
+        // Let the last deliveries arrive, for at most ten seconds.
+        long settled;
+        int waits = 0;
+        do {
+            settled = received.sum();
+            Thread.sleep(500);
+        } while (received.sum() != settled && ++waits < 20);
+
+        double seconds = duration;
+        System.out.printf("sent      %d lines (%.0f/s), %d failed%n", sent.sum(), sent.sum() / seconds,
+                sendFailures.sum());
+        System.out.printf("received  %d lines (%.0f/s), %.1f per line sent%n", received.sum(),
+                received.sum() / seconds, received.sum() / (double) Math.max(1, sent.sum()));
+        System.out.printf("latency   %s%n", latency);
+        System.out.printf("lost      %d sessions%n", lostSessions.sum());
+
+        for (LoadSession client : clients) {
+            try {
+                client.closeConnection();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Counts the sessions that have joined their room, or those lost
+     * before they did.
+     */
+    static int settled(List<LoadSession> clients, boolean joined) {
+        int count = 0;
+        for (LoadSession client : clients) {
+            if (joined ? client.joined : client.lost && !client.joined) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Builds the text appended to each line so that it has the requested
+     * length, counting a timestamp.
+     *
+     * @param size The length left once the marker and tag are counted.
+     */
+    static String padding(int size) {
+        StringBuilder text = new StringBuilder();
+        int length = Math.max(0, size - 13);
+        while (text.length() < length) {
+            text.append("lorem ipsum ");
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+
+    //Class methods ***************************************************
+
+    /**
+     * This method is responsible for the creation of the load generator.
+     *
+     * @param args Settings of the form name=value: host, port, sessions,
+     *             prefix, rate, size, rooms and duration.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                System.out.println("ERROR - Expected name=value: " + arg);
+                System.exit(1);
+            }
+            switch (pair[0]) {
+                case "host":
+                    generator.host = pair[1];
+                    break;
+                case "port":
+                    generator.port = Integer.parseInt(pair[1]);
+                    break;
+                case "sessions":
+                    generator.sessions = Integer.parseInt(pair[1]);
+                    break;
+                case "prefix":
+                    generator.prefix = pair[1];
+                    break;
+                case "rate":
+                    generator.rate = Double.parseDouble(pair[1]);
+                    break;
+                case "size":
+                    generator.size = Integer.parseInt(pair[1]);
+                    break;
+                case "rooms":
+                    generator.rooms = Integer.parseInt(pair[1]);
+                    break;
+                case "duration":
+                    generator.duration = Integer.parseInt(pair[1]);
+                    break;
+                default:
+                    System.out.println("ERROR - Unknown setting: " + pair[0]);
+                    System.exit(1);
+            }
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    //Inner classes ***************************************************
+
+    /**
+     * A chat client that joins a room once logged on, and reports a lost
+     * connection to the generator instead of terminating the process. It
+     * is created unconnected, so that its room is known when the
+     * connection is established.
+     */
+    class LoadSession extends ChatClient {
+        final String room;
+
+        /**
+         * Set once the server has acknowledged the join, or once the
+         * session is lost.
+         */
+        volatile boolean joined = false;
+        volatile boolean lost = false;
+
+        LoadSession(String loginID, String room, String host, int port, ChatIF clientUI) throws IOException {
+            super(loginID, host, port, clientUI, null, false);
+            this.room = room;
+        }
+
+        /**
+         * Logs on, then joins the session's room. Joining is acknowledged,
+         * which tells the generator when the session is ready.
+         */
+        @Override
+        protected void connectionEstablished() {
+            super.connectionEstablished();
+            try {
+                sendToServer("#join " + room);
+            } catch (IOException e) {
+                connectionException(e);
+            }
+        }
+
+        /**
+         * Notes the acknowledgement of the join before displaying.
+         */
+        @Override
+        public void handleMessageFromServer(Object msg) {
+            if (!joined && msg.equals("Joined room " + room)) {
+                joined = true;
+            }
+            super.handleMessageFromServer(msg);
+        }
+
+        @Override
+        protected void connectionException(Exception exception) {
+            lost = true;
+            lostSessions.increment();
+        }
+    }
+}
+//End of LoadGenerator class
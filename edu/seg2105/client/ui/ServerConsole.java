@@ -2,7 +2,13 @@ package edu.seg2105.client.ui;
 
 import edu.seg2105.client.common.ChatIF;
 import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.MessageStore;
+import ocsf.common.TlsConfig;
+import ocsf.server.ServerEngine;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.Scanner;
 
 public class ServerConsole implements ChatIF {
@@ -11,7 +17,11 @@ public class ServerConsole implements ChatIF {
     Scanner fromConsole;
 
     public ServerConsole(int port) {
-        server = new EchoServer(port, this);
+        this(port, ServerEngine.THREAD_PER_CONNECTION);
+    }
+
+    public ServerConsole(int port, ServerEngine engine) {
+        server = new EchoServer(port, this, engine);
 
         // Create scanner object to read from console
         fromConsole = new Scanner(System.in);
@@ -43,9 +53,17 @@ public class ServerConsole implements ChatIF {
      *
      * @param args\[0] The port number to listen on.  Defaults to 5555
      *                 if no argument is entered.
+     *                 args\[1] The engine, "thread", "virtual" or "selector".
+     *                 Defaults to one thread per connection.
+     *                 The room messages are persisted to the directory
+     *                 named by -Dsimplechat.store, if set.
+     *                 Clients connect over TLS if -Dsimplechat.tls=true,
+     *                 with the key in the javax.net.ssl.keyStore properties;
+     *                 -Dsimplechat.tls.ciphers restricts the cipher suites.
      */
     public static void main(String[] args) {
         int port = 0; //Port to listen on
+        ServerEngine engine = ServerEngine.THREAD_PER_CONNECTION;
 
         try {
             port = Integer.parseInt(args[0]); //Get port from command line
@@ -53,7 +71,42 @@ public class ServerConsole implements ChatIF {
             port = DEFAULT_PORT; //Set port to 5555
         }
 
-        ServerConsole sv = new ServerConsole(port);
+        if (args.length > 1 && args[1].equalsIgnoreCase("selector")) {
+            engine = ServerEngine.SELECTOR;
+        } else if (args.length > 1 && args[1].equalsIgnoreCase("virtual")) {
+            engine = ServerEngine.VIRTUAL_THREAD_PER_CONNECTION;
+        }
+
+        ServerConsole sv = new ServerConsole(port, engine);
+
+        String directory = System.getProperty("simplechat.store");
+        if (directory != null) {
+            try {
+                MessageStore store = new MessageStore(Paths.get(directory));
+                Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+                sv.server.setStore(store);
+                if (store.getTruncated() > 0) {
+                    System.out.println("WARNING - Cut off " + store.getTruncated() + " torn records in " + directory);
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR - Could not open the message store in " + directory);
+            }
+        }
+
+        if (Boolean.getBoolean("simplechat.tls")) {
+            try {
+                TlsConfig tls = TlsConfig.fromSystemProperties();
+                String ciphers = System.getProperty("simplechat.tls.ciphers");
+                if (ciphers != null) {
+                    tls.setCipherSuites(ciphers.split(","));
+                }
+                sv.server.setTls(tls);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // Never fall back to plain TCP.
+                System.out.println("ERROR - Could not set up TLS: " + e.getMessage());
+                System.exit(1);
+            }
+        }
 
         try {
             sv.server.listen(); //Start listening for connections
@@ -4,10 +4,24 @@ package edu.seg2105.edu.server.backend;
 // license found at www.lloseng.com 
 
 
+import edu.seg2105.client.common.AsyncLogger;
 import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.client.common.CommandTable;
+import edu.seg2105.client.common.Envelope;
+import ocsf.common.BinaryCodec;
+import ocsf.common.MessageCodec;
 import ocsf.server.*;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class overrides some of the methods in the abstract
@@ -26,12 +40,126 @@ public class EchoServer extends AbstractServer {
      */
     final public static int DEFAULT_PORT = 5555;
 
+    /**
+     * The room every client joins when it logs on. Messages in this room
+     * are shown without a room prefix.
+     */
+    final public static String DEFAULT_ROOM = "lobby";
+
+    /**
+     * The client info key of the room a client's messages go to.
+     */
+    final static String ROOM_KEY = "room";
+
+    /**
+     * The client info key of the login ID of a client.
+     */
+    final static String LOGIN_KEY = "loginID";
+
+    /**
+     * The client info key of the set of rooms a client has joined.
+     */
+    final static String ROOMS_KEY = "rooms";
+
+    /**
+     * The client info key of the time, from System.nanoTime, the client was
+     * last warned that it sends too fast.
+     */
+    final static String WARNED_KEY = "throttleWarned";
+
+    /**
+     * The shortest time between two warnings to the same client, in ns.
+     */
+    final static long WARN_INTERVAL = 1000000000L;
+
+    /**
+     * The default number of messages kept per room.
+     */
+    final public static int DEFAULT_HISTORY = 100;
+
+    /**
+     * The default number of lobby messages replayed to a client that logs on.
+     */
+    final public static int DEFAULT_REPLAY = 20;
+
+    /**
+     * The commands typed on the server console.
+     */
+    private final static CommandTable<EchoServer> CONSOLE_COMMANDS = new CommandTable<EchoServer>()
+            .add(EchoServer::quitCommand, "#quit")
+            .add(EchoServer::stopCommand, "#stop")
+            .add(EchoServer::closeCommand, "#close")
+            .add(EchoServer::startCommand, "#start")
+            .add(EchoServer::setPortCommand, "#setport")
+            .add(EchoServer::getPortCommand, "#getport")
+            .add(EchoServer::logLevelCommand, "#loglevel")
+            .add(EchoServer::statsCommand, "#stats")
+            .add(EchoServer::rateLimitCommand, "#ratelimit")
+            .add(EchoServer::historySizeCommand, "#history")
+            .add(EchoServer::compressCommand, "#compress")
+            .add(EchoServer::heartbeatCommand, "#heartbeat");
+
     /**
      * The interface type variable.  It allows the implementation of
      * the display method in the server.
      */
     ChatIF serverUI;
 
+    /**
+     * The members of each room, by room name. A room exists while it has
+     * members, so a message costs one send per member of its room whatever
+     * the number of clients connected.
+     */
+    private final ConcurrentHashMap<String, Set<ConnectionToClient>> rooms =
+            new ConcurrentHashMap<String, Set<ConnectionToClient>>();
+
+    /**
+     * The log of the server's activity. Written by a background thread, so
+     * logging never blocks the threads handling messages.
+     */
+    private final AsyncLogger log = AsyncLogger.get();
+
+    /**
+     * The recent messages of each room, by room name. Kept when a room
+     * empties, so a client rejoining it can catch up.
+     */
+    private final ConcurrentHashMap<String, RoomHistory> histories =
+            new ConcurrentHashMap<String, RoomHistory>();
+
+    /**
+     * The number of messages kept per room; rooms created before a change
+     * keep their capacity.
+     */
+    private volatile int historySize = DEFAULT_HISTORY;
+
+    /**
+     * The number of lobby messages replayed on login; 0 replays none.
+     */
+    private volatile int replaySize = DEFAULT_REPLAY;
+
+    /**
+     * The store the room messages are persisted to; null when they are
+     * only kept in memory.
+     */
+    private volatile MessageStore store;
+
+    /**
+     * Prints the server metrics periodically; null when no periodic dump
+     * is running.
+     */
+    private ScheduledExecutorService statsDump;
+
+    /**
+     * The commands clients send. Dispatched concurrently for different
+     * clients, and never changed once the server is constructed.
+     */
+    private final CommandTable<ConnectionToClient> clientCommands = new CommandTable<ConnectionToClient>()
+            .add(this::loginCommand, "#login")
+            .add(this::joinCommand, "#join")
+            .add(this::leaveCommand, "#leave")
+            .add(this::historyCommand, "#history")
+            .add(this::privateMessageCommand, "#msg");
+
     //Constructors ****************************************************
 
     /**
@@ -40,8 +168,22 @@ public class EchoServer extends AbstractServer {
      * @param port The port number to connect on.
      */
     public EchoServer(int port, ChatIF serverUI) {
-        super(port);
+        this(port, serverUI, ServerEngine.THREAD_PER_CONNECTION);
+    }
+
+    /**
+     * Constructs an instance of the echo server driven by the given engine.
+     * Messages from different clients are handled concurrently, since
+     * handleMessageFromClient only touches the sending client's own info.
+     *
+     * @param port     The port number to connect on.
+     * @param serverUI The interface type variable.
+     * @param engine   The engine serving the client connections.
+     */
+    public EchoServer(int port, ChatIF serverUI, ServerEngine engine) {
+        super(port, engine);
         this.serverUI = serverUI;
+        setConcurrentDispatch(true);
     }
 
 
@@ -49,38 +191,336 @@ public class EchoServer extends AbstractServer {
 
     /**
      * This method handles any messages received from the client.
+     * It runs concurrently for different clients: it keeps state in the
+     * sending client's info and in the concurrent room index, and the UI it
+     * writes to is thread-safe.
      *
      * @param msg    The message received from the client.
      * @param client The connection from which the message originated.
+     */
+    public void handleMessageFromClient(Object msg, ConnectionToClient client) {
+        String loginID = (String) client.getInfo(LOGIN_KEY);
+        if (log.isEnabled(AsyncLogger.Level.DEBUG)) {
+            log.debug("Message received: " + msg + " from " + loginID);
+        }
+
+        Envelope envelope = Envelope.of(msg, loginID, (String) client.getInfo(ROOM_KEY));
+        if (envelope == null) {
+            log.warn("Ignoring a " + (msg == null ? "null" : msg.getClass().getName())
+                    + " message from " + loginID);
+            reply(client, "ERROR - Only text messages are accepted");
+            return;
+        }
+
+        // Lines starting with '#' that are not commands are said like any other.
+        if (!clientCommands.dispatch(client, envelope)) {
+            chat(client, envelope);
+        }
+    }
+
+    /**
+     * Logs a client on: #login &lt;loginID&gt;, only as its first command.
      *
+     * @param client   The client.
+     * @param envelope The command.
+     */
+    private void loginCommand(ConnectionToClient client, Envelope envelope) {
+        if (envelope.getSender() != null) { // not the first time running #login
+            reply(client, "ERROR - #login is only allowed as the first command");
+            closeQuietly(client);
+            return;
+        }
+
+        String loginID = envelope.getBody();
+        if (loginID.isEmpty()) {
+            reply(client, "ERROR - To log on: #login <loginID>");
+            closeQuietly(client);
+            return;
+        }
+        if (!client.setLoginID(loginID)) { // another client is logged on with this ID
+            reply(client, "ERROR - " + loginID + " is already logged on");
+            closeQuietly(client);
+            return;
+        }
+        client.setInfo(LOGIN_KEY, loginID);
+        serverUI.display(loginID + "has logged on");
+        joinRoom(client, DEFAULT_ROOM);
+        if (replaySize > 0) {
+            replay(client, DEFAULT_ROOM, replaySize);
+        }
+    }
+
+    /**
+     * Moves a client to a room: #join &lt;room&gt;.
      *
+     * @param client   The client.
+     * @param envelope The command.
      */
-    public void handleMessageFromClient(Object msg, ConnectionToClient client) {
-        /**
-         * The login key of the connecting client.
-         */
-        String loginKey = "loginID";
-        System.out.println("Message received: " + msg + " from " + client.getInfo(loginKey));
+    private void joinCommand(ConnectionToClient client, Envelope envelope) {
+        String room = envelope.getBody();
+        if (room.isEmpty()) {
+            reply(client, "ERROR - To join a room: #join <room>");
+        } else {
+            joinRoom(client, room);
+            reply(client, "Joined room " + room);
+        }
+    }
 
-        String msgStr = (String) msg;
+    /**
+     * Takes a client out of a room: #leave &lt;room&gt;.
+     *
+     * @param client   The client.
+     * @param envelope The command.
+     */
+    private void leaveCommand(ConnectionToClient client, Envelope envelope) {
+        String room = envelope.getBody();
+        if (!leaveRoom(client, room)) {
+            reply(client, "ERROR - You are not in room " + room);
+        } else {
+            reply(client, "Left room " + room);
+        }
+    }
 
-        if (msgStr.startsWith("#login")) {
-            if (client.getInfo(loginKey) != null) { // if loginKey is not null, thus not first time running #login
-                try {
-                    client.sendToClient("ERROR - #login is only allowed as the first command");
-                    client.close(); // disconnect the client connection
-                } catch (IOException e) {
-                    System.out.println("ERROR - Could not send message to client");
+    /**
+     * Sends a client the recent messages of its room: #history [n].
+     *
+     * @param client   The client.
+     * @param envelope The command.
+     */
+    private void historyCommand(ConnectionToClient client, Envelope envelope) {
+        String room = envelope.getRoom();
+        String count = envelope.getBody();
+        try {
+            int n = count.isEmpty() ? historySize : Integer.parseInt(count);
+            if (room == null) {
+                reply(client, "ERROR - You are not in a room. To join one: #join <room>");
+            } else if (!replay(client, room, n)) {
+                reply(client, "No messages in room " + room);
+            }
+        } catch (NumberFormatException e) {
+            reply(client, "ERROR - To see recent messages: #history [n]");
+        }
+    }
+
+    /**
+     * Sends a message to a single client: #msg &lt;loginID&gt; &lt;text&gt;.
+     *
+     * @param client   The client sending it.
+     * @param envelope The command.
+     */
+    private void privateMessageCommand(ConnectionToClient client, Envelope envelope) {
+        String to = envelope.arg(0);
+        String text = envelope.rest(1);
+        if (text == null) {
+            reply(client, "ERROR - To send a private message: #msg <loginID> <text>");
+            return;
+        }
+
+        // Found through the server's login index, whatever the number of clients.
+        ConnectionToClient recipient = getClientConnection(to);
+        if (recipient == null) {
+            reply(client, "ERROR - " + to + " is not logged on");
+            return;
+        }
+
+        reply(recipient, envelope.getSender() + " (private)> " + text);
+        if (recipient != client) {
+            reply(client, "to " + to + " (private)> " + text);
+        }
+    }
+
+    /**
+     * Says a message to the room of the client that sent it.
+     *
+     * @param client   The client.
+     * @param envelope The message.
+     */
+    private void chat(ConnectionToClient client, Envelope envelope) {
+        String room = envelope.getRoom();
+        Set<ConnectionToClient> members = room == null ? null : rooms.get(room);
+        if (members == null) {
+            reply(client, "ERROR - You are not in a room. To join one: #join <room>");
+            return;
+        }
+
+        String message = envelope.getSender() + "> " + envelope;
+        if (!room.equals(DEFAULT_ROOM)) {
+            message = "[" + room + "] " + message;
+        }
+        historyOf(room).append(message);
+        MessageStore store = this.store;
+        if (store != null) {
+            store.append(room, message);
+        }
+        sendToClients(message, members);
+    }
+
+    /**
+     * Sends a client the most recent messages of a room as a single
+     * message, one line per message, so a replay costs one write however
+     * many messages it holds.
+     *
+     * @param client The client.
+     * @param room   The name of the room.
+     * @param n      The number of messages wanted.
+     * @return false if the room has no messages to replay.
+     */
+    boolean replay(ConnectionToClient client, String room, int n) {
+        String lines = n <= 0 ? "" : historyOf(room).last(n);
+        if (lines.isEmpty()) {
+            return false;
+        }
+        reply(client, lines);
+        return true;
+    }
+
+    /**
+     * Returns the history of a room, creating it on first use from the
+     * messages persisted for it, if any.
+     *
+     * @param room The name of the room.
+     * @return its history.
+     */
+    private RoomHistory historyOf(String room) {
+        RoomHistory history = histories.get(room);
+        if (history == null) {
+            // Read outside the map: the store may go to disk, and threads
+            // after other rooms must not wait for it. A thread losing the
+            // race drops what it read.
+            RoomHistory created = new RoomHistory(historySize);
+            MessageStore store = this.store;
+            if (store != null) {
+                for (String message : store.read(room, 0, Long.MAX_VALUE, historySize)) {
+                    created.append(message);
                 }
-            } else {
-                String loginID = msgStr.substring("#login ".length()).trim();
-                client.setInfo(loginKey, loginID);
-                serverUI.display(loginID + "has logged on");
             }
-        } else {
-            String loginID = (String) client.getInfo(loginKey);
-            String message = loginID + "> " + msgStr;
-            this.sendToAllClients(message);
+            history = histories.putIfAbsent(room, created);
+            if (history == null) {
+                history = created;
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Persists the messages said in rooms to a store, so their history
+     * survives a restart. The store is not closed by the server.
+     *
+     * @param store The store, or null to keep messages in memory only.
+     */
+    public void setStore(MessageStore store) {
+        this.store = store;
+        histories.clear();
+    }
+
+    /**
+     * Returns the store the messages are persisted to.
+     *
+     * @return the store, or null if there is none.
+     */
+    public MessageStore getStore() {
+        return store;
+    }
+
+    /**
+     * Sets how many messages are kept per room and how many lobby messages
+     * a client is sent when it logs on. The history already recorded is
+     * dropped so the new size applies to every room.
+     *
+     * @param size   The number of messages kept per room, at least one.
+     * @param replay The number replayed on login; 0 replays none.
+     */
+    public void setHistory(int size, int replay) {
+        if (size < 1 || replay < 0) {
+            throw new IllegalArgumentException("history size must be positive and replay count not negative");
+        }
+        historySize = size;
+        replaySize = replay;
+        histories.clear();
+    }
+
+    /**
+     * Adds a client to a room, creating the room if needed, and makes it
+     * the room the client's messages go to.
+     *
+     * @param client The client joining.
+     * @param room   The name of the room.
+     */
+    void joinRoom(ConnectionToClient client, String room) {
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = new CopyOnWriteArraySet<ConnectionToClient>();
+            }
+            members.add(client);
+            return members;
+        });
+        roomsOf(client).add(room);
+        client.setInfo(ROOM_KEY, room);
+    }
+
+    /**
+     * Removes a client from a room, dropping the room once it is empty. If
+     * it was the room the client's messages went to, the client has to
+     * join a room again before sending.
+     *
+     * @param client The client leaving.
+     * @param room   The name of the room.
+     * @return false if the client was not in the room.
+     */
+    boolean leaveRoom(ConnectionToClient client, String room) {
+        if (!roomsOf(client).remove(room)) {
+            return false;
+        }
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+        if (room.equals(client.getInfo(ROOM_KEY))) {
+            client.setInfo(ROOM_KEY, null);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the rooms a client has joined, creating the set on first use.
+     *
+     * @param client The client.
+     * @return the names of its rooms.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<String> roomsOf(ConnectionToClient client) {
+        Set<String> joined = (Set<String>) client.getInfo(ROOMS_KEY);
+        if (joined == null) {
+            joined = ConcurrentHashMap.newKeySet();
+            client.setInfo(ROOMS_KEY, joined);
+        }
+        return joined;
+    }
+
+    /**
+     * Sends a reply to a single client, reporting a failure on the console.
+     *
+     * @param client  The client.
+     * @param message The reply.
+     */
+    private void reply(ConnectionToClient client, String message) {
+        try {
+            client.sendToClient(message);
+        } catch (IOException e) {
+            log.warn("ERROR - Could not send message to client");
+        }
+    }
+
+    /**
+     * Disconnects a client, reporting a failure on the console.
+     *
+     * @param client The client.
+     */
+    private void closeQuietly(ConnectionToClient client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.warn("ERROR - Could not close the connection to client");
         }
     }
     /**
@@ -88,7 +528,7 @@ public class EchoServer extends AbstractServer {
      * when the server starts listening for connections.
      */
     protected void serverStarted() {
-        System.out.println("Server listening for connections on port " + getPort());
+        log.info("Server listening for connections on port " + getPort());
     }
 
     /**
@@ -96,7 +536,7 @@ public class EchoServer extends AbstractServer {
      * when the server stops listening for connections.
      */
     protected void serverStopped() {
-        System.out.println("Server has stopped listening for connections.");
+        log.info("Server has stopped listening for connections.");
     }
 
     /**
@@ -107,7 +547,8 @@ public class EchoServer extends AbstractServer {
      */
     @Override
     protected void clientConnected(ConnectionToClient client) {
-        System.out.println("Client connected");
+        client.setInfo(ROOMS_KEY, ConcurrentHashMap.<String>newKeySet());
+        log.info("Client connected");
     }
 
     /**
@@ -119,7 +560,39 @@ public class EchoServer extends AbstractServer {
      */
     @Override
     synchronized protected void clientDisconnected(ConnectionToClient client) {
-        System.out.println("Client disconnected.");
+        for (String room : roomsOf(client).toArray(new String[0])) {
+            leaveRoom(client, room);
+        }
+        log.info("Client disconnected.");
+    }
+
+    /**
+     * Tells a client over the rate limit that it sends too fast, at most
+     * once a second so that the warnings do not add to the flood. Delayed
+     * clients are not told: they only see their messages slowed down.
+     *
+     * @param client The client over the limit.
+     * @param msg    The message over the limit.
+     * @param action The action about to be applied.
+     */
+    @Override
+    protected void clientThrottled(ConnectionToClient client, Object msg, RateLimitAction action) {
+        if (action == RateLimitAction.DELAY) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Object warned = client.getInfo(WARNED_KEY);
+        if (warned != null && now - (Long) warned < WARN_INTERVAL) {
+            return;
+        }
+        client.setInfo(WARNED_KEY, now);
+        log.warn("Client " + client.getLoginID() + " over the rate limit: " + action);
+        if (action != RateLimitAction.DISCONNECT) {
+            reply(client, action == RateLimitAction.DROP
+                    ? "WARNING - You are sending too fast; messages are being dropped."
+                    : "WARNING - You are sending too fast.");
+        }
     }
 
     /**
@@ -132,6 +605,9 @@ public class EchoServer extends AbstractServer {
      */
     @Override
     synchronized protected void clientException(ConnectionToClient client, Throwable exception) {
+        if (exception instanceof SocketTimeoutException) {
+            log.info("Evicting idle client " + client.getLoginID() + ": " + exception.getMessage());
+        }
         clientDisconnected(client);
     }
 
@@ -144,71 +620,191 @@ public class EchoServer extends AbstractServer {
         }
     }
 
+    /**
+     * Displays the server metrics every given number of seconds, replacing
+     * any periodic dump already running.
+     *
+     * @param seconds The interval between dumps; 0 stops dumping.
+     */
+    public synchronized void setStatsInterval(int seconds) {
+        if (statsDump != null) {
+            statsDump.shutdownNow();
+            statsDump = null;
+        }
+        if (seconds > 0) {
+            statsDump = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "EchoServer stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            statsDump.scheduleAtFixedRate(() -> serverUI.display(getMetrics().report()),
+                    seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
     public void handleCommand(String message) {
-        String[] args = message.split(" ");
-        String command = args[0];
-        switch (command) {
-            case "#quit":
-                try {
-                    serverUI.display("Terminating server");
-                    close();
-                    System.exit(0);
-                } catch (IOException e) {
-                    System.exit(0);
-                }
-                break;
+        Envelope envelope = Envelope.parse(message, null, null);
+        if (!CONSOLE_COMMANDS.dispatch(this, envelope)) {
+            System.out.println("Invalid command: '" + envelope.getCommand() + "'");
+        }
+    }
+
+    private void quitCommand(Envelope envelope) {
+        try {
+            serverUI.display("Terminating server");
+            close();
+            System.exit(0);
+        } catch (IOException e) {
+            System.exit(0);
+        }
+    }
+
+    private void stopCommand(Envelope envelope) {
+        stopListening();
+    }
 
-            case "#stop":
-                stopListening();
-                break;
+    private void closeCommand(Envelope envelope) {
+        serverUI.display("Closing all client connections.");
+        try {
+            close();
+        } catch (IOException e) {
+            System.out.println("ERROR - Could not close connection.");
+        }
+    }
 
-            case "#close":
-                serverUI.display("Closing all client connections.");
+    private void startCommand(Envelope envelope) {
+        if (!this.isListening()) {
+            try {
+                listen();
+            } catch (Exception e) {
+                System.out.println("ERROR - Could not start listening for clients.");
+            }
+        } else {
+            System.out.println("ERROR - Already listening for clients.");
+        }
+    }
+
+    private void setPortCommand(Envelope envelope) {
+        if (!isListening() && getNumberOfClients() == 0) {
+            if (envelope.arg(0) != null) {
                 try {
-                    close();
-                } catch (IOException e) {
-                    System.out.println("ERROR - Could not close connection.");
-                }
-                break;
-
-            case "#start":
-                if (!this.isListening()) {
-                    try {
-                        listen();
-                    } catch (Exception e) {
-                        System.out.println("ERROR - Could not start listening for clients.");
-                    }
-                } else {
-                    System.out.println("ERROR - Already listening for clients.");
-                }
-                break;
-
-            case "#setport":
-                if (!isListening() && getNumberOfClients() == 0) {
-                    if (args.length > 1) {
-                        try {
-                            int port = Integer.parseInt(args[1]);
-                            super.setPort(port);
-                            System.out.println("Port set to " + getPort());
-                        } catch (NumberFormatException e) {
-                            serverUI.display("ERROR - Invalid port number. Please provide a valid integer.");
-                        }
-                    } else {
-                        serverUI.display("To set port: #setport <port>");
-                    }
-                } else {
-                    System.out.println("ERROR - Server must be closed and no clients connected to set port.");
+                    int port = Integer.parseInt(envelope.arg(0));
+                    super.setPort(port);
+                    System.out.println("Port set to " + getPort());
+                } catch (NumberFormatException e) {
+                    serverUI.display("ERROR - Invalid port number. Please provide a valid integer.");
                 }
+            } else {
+                serverUI.display("To set port: #setport <port>");
+            }
+        } else {
+            System.out.println("ERROR - Server must be closed and no clients connected to set port.");
+        }
+    }
+
+    private void getPortCommand(Envelope envelope) {
+        System.out.println("Current port: " + this.getPort());
+    }
+
+    private void logLevelCommand(Envelope envelope) {
+        try {
+            log.setLevel(AsyncLogger.Level.valueOf(envelope.arg(0).toUpperCase()));
+            serverUI.display("Log level set to " + log.getLevel());
+        } catch (RuntimeException e) {
+            serverUI.display("To set the log level: #loglevel <DEBUG|INFO|WARN|ERROR|OFF>");
+        }
+    }
+
+    private void statsCommand(Envelope envelope) {
+        if (envelope.arg(0) != null) {
+            try {
+                setStatsInterval(Integer.parseInt(envelope.arg(0)));
+            } catch (NumberFormatException e) {
+                serverUI.display("To dump the stats periodically: #stats <seconds>, 0 to stop");
+            }
+        } else {
+            serverUI.display(getMetrics().report());
+            MessageStore store = this.store;
+            if (store != null) {
+                serverUI.display("store      " + store.getAppended() + " persisted, "
+                        + store.getDropped() + " dropped");
+            }
+        }
+    }
+
+    private void rateLimitCommand(Envelope envelope) {
+        try {
+            setClientRateLimit(Double.parseDouble(envelope.arg(0)), Integer.parseInt(envelope.arg(1)));
+            setRateLimitAction(RateLimitAction.valueOf(envelope.arg(2).toUpperCase()));
+            if (envelope.arg(3) != null) {
+                setGlobalRateLimit(Double.parseDouble(envelope.arg(3)), Integer.parseInt(envelope.arg(4)));
+            }
+            serverUI.display("Rate limit " + getClientRateLimit() + " msg/s per client, "
+                    + getGlobalRateLimit() + " msg/s in total, " + getRateLimitAction());
+        } catch (RuntimeException e) {
+            serverUI.display("To limit message rates: #ratelimit <msg/s> <burst> "
+                    + "<delay|drop|warn|disconnect> [<global msg/s> <global burst>], 0 msg/s to disable");
+        }
+    }
 
-                break;
+    private void historySizeCommand(Envelope envelope) {
+        try {
+            setHistory(Integer.parseInt(envelope.arg(0)), Integer.parseInt(envelope.arg(1)));
+            serverUI.display("Keeping " + envelope.arg(0) + " messages per room, replaying "
+                    + envelope.arg(1) + " on login");
+        } catch (RuntimeException e) {
+            serverUI.display("To set the history: #history <messages per room> <replayed on login>");
+        }
+    }
 
-            case "#getport":
-                System.out.println("Current port: " + this.getPort());
-                break;
+    private void compressCommand(Envelope envelope) {
+        try {
+            int threshold = Integer.parseInt(envelope.arg(0));
+            MessageCodec[] old = getCodecs();
+            setCodecs(withCompression(getCodecs(), threshold));
+            // The clients already connected keep the writers they have.
+            List<MessageCodec> kept = Arrays.asList(getCodecs());
+            for (MessageCodec codec : old) {
+                if (codec instanceof BinaryCodec && !kept.contains(codec)) {
+                    ((BinaryCodec) codec).close();
+                }
+            }
+            serverUI.display(threshold == 0 ? "Compression off for new clients"
+                    : "Compressing messages of " + threshold + " bytes or more for new clients");
+        } catch (RuntimeException e) {
+            serverUI.display("To compress large messages: #compress <bytes>, 0 to stop");
+        }
+    }
+
+    /**
+     * Replaces the binary codec of a list with one compressing from the
+     * given size at the same level, keeping the other codecs as they are.
+     * A binary codec is added first if the list has none.
+     *
+     * @param codecs    The codecs accepted.
+     * @param threshold The smallest payload compressed; 0 never compresses.
+     * @return the new list.
+     */
+    private static MessageCodec[] withCompression(MessageCodec[] codecs, int threshold) {
+        for (int i = 0; i < codecs.length; i++) {
+            if (codecs[i] instanceof BinaryCodec) {
+                codecs[i] = new BinaryCodec(threshold, ((BinaryCodec) codecs[i]).getLevel());
+                return codecs;
+            }
+        }
+        MessageCodec[] added = new MessageCodec[codecs.length + 1];
+        added[0] = new BinaryCodec(threshold);
+        System.arraycopy(codecs, 0, added, 1, codecs.length);
+        return added;
+    }
 
-            default:
-                System.out.println("Invalid command: '" + command + "'");
-                break;
+    private void heartbeatCommand(Envelope envelope) {
+        try {
+            setHeartbeat(Long.parseLong(envelope.arg(0)) * 1000, Long.parseLong(envelope.arg(1)) * 1000);
+            serverUI.display("Ping after " + envelope.arg(0) + "s of silence, evict after "
+                    + envelope.arg(1) + "s");
+        } catch (RuntimeException e) {
+            serverUI.display("To set heartbeats: #heartbeat <ping seconds> <evict seconds>, 0 to disable");
         }
     }
 }
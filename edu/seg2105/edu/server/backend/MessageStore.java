@@ -0,0 +1,570 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only store of the messages said in each room, kept on disk so
+ * they survive a restart of the server.
+ * <p>
+ * The store is a directory of fixed-size segment files, each mapped into
+ * memory. A record is its payload length, the CRC32C of its payload, then
+ * the payload: the time it was stored, the room and the message. The rest
+ * of a segment is zero, so a zero length marks its end. Once a segment is
+ * full the next one is created, and the oldest are deleted beyond the
+ * number kept, as they are when the store is opened.
+ * <p>
+ * <code>append</code> never touches the disk: it queues the message and
+ * returns. A writer thread takes whatever is queued as one batch, copies
+ * it into the mapped segment and forces the batch to disk with a single
+ * sync, so a burst of messages costs one sync rather than one each. When
+ * the queue is full the message is dropped and counted.
+ * <p>
+ * Each room has an in-memory index of its records by time, rebuilt from
+ * the segments when the store is opened, so a history query reads only
+ * the records it returns. Opening also checks every record against its
+ * CRC: a record torn by a crash, and anything after it, is zeroed, and
+ * appending resumes where it began.
+ */
+public class MessageStore {
+    //Class variables *************************************************
+
+    /**
+     * The default size of a segment file, in bytes.
+     */
+    final public static int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    /**
+     * The default number of segments kept; older ones are deleted.
+     */
+    final public static int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * The size of a record's length and CRC.
+     */
+    private static final int HEADER = 8;
+
+    /**
+     * The most messages the writer takes in one batch.
+     */
+    private static final int BATCH = 4096;
+
+    /**
+     * The suffix of the segment files, named after their number.
+     */
+    private static final String SUFFIX = ".chat";
+
+    //Instance variables **********************************************
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int segmentsKept;
+
+    /**
+     * The segments on disk, by number. Only the last one is appended to.
+     */
+    private final ConcurrentSkipListMap<Integer, Segment> segments =
+            new ConcurrentSkipListMap<Integer, Segment>();
+
+    /**
+     * The index of each room, by room name.
+     */
+    private final ConcurrentHashMap<String, RoomIndex> indexes =
+            new ConcurrentHashMap<String, RoomIndex>();
+
+    /**
+     * The messages waiting for the writer.
+     */
+    private final ArrayBlockingQueue<Pending> queue;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private int truncated = 0;
+
+    /**
+     * The time of the last record, so the times in the store never go
+     * back even if the clock does. Owned by the writer thread.
+     */
+    private long lastTime = 0;
+
+    /**
+     * The payload of the record being written. Owned by the writer thread.
+     */
+    private ByteBuffer scratch = ByteBuffer.allocate(1 << 12);
+    private final CRC32C crc = new CRC32C();
+
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    //Constructors ****************************************************
+
+    /**
+     * Opens the store in a directory with the default segment size and
+     * retention.
+     *
+     * @param directory The directory of the segment files, created if needed.
+     * @throws IOException if the segments cannot be opened.
+     */
+    public MessageStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENTS, 1 << 16);
+    }
+
+    /**
+     * Opens the store in a directory, recovering the segments already
+     * there, and starts its writer thread.
+     *
+     * @param directory    The directory of the segment files, created if needed.
+     * @param segmentSize  The size of a new segment file, in bytes.
+     * @param segmentsKept The number of segments kept, at least one.
+     * @param queueSize    The number of messages that may wait for the writer.
+     * @throws IOException if the segments cannot be opened.
+     */
+    public MessageStore(Path directory, int segmentSize, int segmentsKept, int queueSize) throws IOException {
+        if (segmentSize <= HEADER || segmentsKept < 1) {
+            throw new IllegalArgumentException("segment size and count too small");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.segmentsKept = segmentsKept;
+        this.queue = new ArrayBlockingQueue<Pending>(queueSize);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    int number = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+                    segments.put(number, new Segment(number, file, 0));
+                } catch (NumberFormatException e) {
+                    // Not a segment.
+                }
+            }
+        }
+        // The store may have been opened with more segments kept before.
+        dropOldSegments();
+        for (Segment segment : segments.values()) {
+            recover(segment);
+        }
+        if (segments.isEmpty()) {
+            roll(0);
+        }
+
+        this.writer = new Thread(this::write, "MessageStore writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Queues a message for the store. Never blocks or touches the disk: if
+     * the writer is too far behind, the message is dropped and counted.
+     *
+     * @param room    The room it was said in.
+     * @param message The message as it was shown to the room.
+     */
+    public void append(String room, String message) {
+        Pending pending = new Pending(room, message);
+        if (closed || !queue.offer(pending)) {
+            dropped.increment();
+        } else if (closed && queue.remove(pending)) {
+            // Closed meanwhile, and neither the writer nor close took it.
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Returns the most recent messages stored for a room within a period,
+     * oldest first. Messages still waiting for the writer are not included.
+     *
+     * @param room  The room.
+     * @param from  The earliest time, in ms since the epoch, inclusive.
+     * @param to    The latest time, in ms since the epoch, exclusive.
+     * @param limit The most messages returned.
+     * @return the messages.
+     */
+    public List<String> read(String room, long from, long to, int limit) {
+        List<String> messages = new ArrayList<String>();
+        RoomIndex index = indexes.get(room);
+        if (index == null || limit <= 0) {
+            return messages;
+        }
+        for (long position : index.find(from, to, limit)) {
+            // A segment deleted since stays mapped until it is collected,
+            // but is no longer listed; its records are past retention.
+            Segment segment = segments.get((int) (position >>> 32));
+            if (segment != null) {
+                messages.add(segment.message((int) position));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Returns the number of messages written to the store since it was
+     * opened.
+     *
+     * @return the count.
+     */
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    /**
+     * Returns the number of messages dropped because the writer was behind,
+     * the store was closed or the message was too large for a segment.
+     *
+     * @return the count.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of torn records cut off when the store was opened.
+     *
+     * @return the count.
+     */
+    public int getTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Returns the directory of the segment files.
+     *
+     * @return the directory.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes the messages still queued, syncs them and stops the writer.
+     * Messages appended afterwards are dropped.
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Queued by an append that raced with the writer's last look.
+        List<Pending> left = new ArrayList<Pending>();
+        queue.drainTo(left);
+        dropped.add(left.size());
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Scans a segment, indexing its records, and zeroes it from the first
+     * record that is incomplete or fails its CRC.
+     */
+    private void recover(Segment segment) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 10 || length > buffer.capacity() - position - HEADER
+                    || buffer.getInt(position + 4) != checksum(buffer, position + HEADER, length)) {
+                truncated++;
+                byte[] zeros = new byte[1 << 12];
+                for (int i = position; i < buffer.capacity(); i += zeros.length) {
+                    buffer.put(i, zeros, 0, Math.min(zeros.length, buffer.capacity() - i));
+                }
+                buffer.force();
+                break;
+            }
+            long time = buffer.getLong(position + HEADER);
+            lastTime = Math.max(lastTime, time);
+            index(segment.room(position)).add(time, (long) segment.number << 32 | position);
+            position += HEADER + length;
+        }
+        segment.limit = position;
+    }
+
+    /**
+     * Runs on the writer thread: writes the queued messages in batches,
+     * one sync per batch, then indexes them.
+     */
+    private void write() {
+        List<Pending> batch = new ArrayList<Pending>(BATCH);
+        while (true) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH - 1);
+
+                Segment segment = segments.lastEntry().getValue();
+                int synced = segment.limit;
+                for (Pending pending : batch) {
+                    int size = HEADER + encode(pending);
+                    if (size > segmentSize) {
+                        dropped.increment();
+                        continue;
+                    }
+                    if (size > segment.buffer.capacity() - segment.limit) {
+                        segment.buffer.force(synced, segment.limit - synced);
+                        segment = roll(segment.number + 1);
+                        synced = 0;
+                    }
+                    pending.position = (long) segment.number << 32 | segment.limit;
+                    segment.buffer.putInt(segment.limit + 4, checksum(scratch, 0, scratch.remaining()));
+                    segment.buffer.put(segment.limit + HEADER, scratch, 0, scratch.remaining());
+                    segment.buffer.putInt(segment.limit, scratch.remaining());
+                    segment.limit += size;
+                }
+                segment.buffer.force(synced, segment.limit - synced);
+
+                // Indexed only once synced, so a query never returns a
+                // message a crash could still lose.
+                for (Pending pending : batch) {
+                    if (pending.position >= 0) {
+                        index(pending.room).add(pending.time, pending.position);
+                        appended.increment();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Nothing here interrupts the writer: close stops it with
+                // the closed flag once the queue is empty.
+            } catch (IOException | UncheckedIOException e) {
+                dropped.add(batch.size());
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Encodes a message's payload into the scratch buffer, stamping it with
+     * the time of the write.
+     *
+     * @return the length of the payload, or Integer.MAX_VALUE if the room
+     * name is too long to store.
+     */
+    private int encode(Pending pending) {
+        byte[] room = pending.room.getBytes(StandardCharsets.UTF_8);
+        byte[] message = pending.message.getBytes(StandardCharsets.UTF_8);
+        if (room.length > 0xFFFF) {
+            return Integer.MAX_VALUE - HEADER;
+        }
+        int length = 10 + room.length + message.length;
+        if (scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Integer.highestOneBit(length) << 1);
+        }
+        lastTime = Math.max(lastTime, System.currentTimeMillis());
+        pending.time = lastTime;
+        scratch.clear();
+        scratch.putLong(lastTime).putShort((short) room.length).put(room).put(message).flip();
+        return length;
+    }
+
+    /**
+     * Creates a segment, then deletes the oldest segments beyond the number
+     * kept.
+     */
+    private Segment roll(int number) throws IOException {
+        Segment segment = new Segment(number,
+                directory.resolve(String.format("%010d%s", number, SUFFIX)), segmentSize);
+        segments.put(number, segment);
+        dropOldSegments();
+        return segment;
+    }
+
+    /**
+     * Deletes the oldest segments beyond the number kept, along with their
+     * index entries.
+     */
+    private void dropOldSegments() throws IOException {
+        while (segments.size() > segmentsKept) {
+            Segment oldest = segments.pollFirstEntry().getValue();
+            for (RoomIndex index : indexes.values()) {
+                index.prune((long) (oldest.number + 1) << 32);
+            }
+            indexes.values().removeIf(RoomIndex::isEmpty);
+            oldest.close();
+            Files.deleteIfExists(oldest.file);
+        }
+    }
+
+    /**
+     * Returns the index of a room, creating it on first use.
+     */
+    private RoomIndex index(String room) {
+        return indexes.computeIfAbsent(room, name -> new RoomIndex());
+    }
+
+    /**
+     * Returns the CRC32C of a range of a buffer.
+     */
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        crc.reset();
+        crc.update(buffer.duplicate().limit(offset + length).position(offset));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A message waiting for the writer, then where it was written.
+     */
+    private static final class Pending {
+        final String room;
+        final String message;
+        long time;
+        long position = -1;
+
+        Pending(String room, String message) {
+            this.room = room;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A segment file and its mapping.
+     */
+    private static final class Segment {
+        final int number;
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        /**
+         * The end of the records. Owned by the writer thread once open.
+         */
+        int limit = 0;
+
+        /**
+         * Opens a segment, creating it with the given size, or mapping it
+         * whole if it exists and size is 0.
+         */
+        Segment(int number, Path file, int size) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size > 0 ? size : channel.size());
+        }
+
+        /**
+         * Returns the room of the record at an offset.
+         */
+        String room(int offset) {
+            byte[] room = new byte[buffer.getShort(offset + HEADER + 8) & 0xFFFF];
+            buffer.get(offset + HEADER + 10, room);
+            return new String(room, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the message of the record at an offset.
+         */
+        String message(int offset) {
+            int roomLength = buffer.getShort(offset + HEADER + 8) & 0xFFFF;
+            byte[] message = new byte[buffer.getInt(offset) - 10 - roomLength];
+            buffer.get(offset + HEADER + 10 + roomLength, message);
+            return new String(message, StandardCharsets.UTF_8);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The mapping stays valid; nothing is lost.
+            }
+        }
+    }
+
+    /**
+     * The records of one room, as parallel arrays of times and positions in
+     * the order they were written, so the times are sorted.
+     */
+    private static final class RoomIndex {
+        private long[] times = new long[16];
+        private long[] positions = new long[16];
+        private int start = 0;
+        private int end = 0;
+
+        synchronized void add(long time, long position) {
+            if (end == times.length) {
+                int size = end - start;
+                int capacity = size * 2 > times.length ? times.length * 2 : times.length;
+                times = copy(times, capacity);
+                positions = copy(positions, capacity);
+                start = 0;
+                end = size;
+            }
+            times[end] = time;
+            positions[end++] = position;
+        }
+
+        private long[] copy(long[] array, int capacity) {
+            long[] copy = new long[capacity];
+            System.arraycopy(array, start, copy, 0, end - start);
+            return copy;
+        }
+
+        /**
+         * Drops the records before a position.
+         */
+        synchronized void prune(long position) {
+            while (start < end && positions[start] < position) {
+                start++;
+            }
+        }
+
+        synchronized boolean isEmpty() {
+            return start == end;
+        }
+
+        /**
+         * Returns the positions of the last records within a period.
+         */
+        synchronized long[] find(long from, long to, int limit) {
+            int first = search(from);
+            int last = search(to);
+            first = Math.max(first, last - limit);
+            long[] found = new long[Math.max(0, last - first)];
+            System.arraycopy(positions, first, found, 0, found.length);
+            return found;
+        }
+
+        /**
+         * Returns the index of the first record at or after a time.
+         */
+        private int search(long time) {
+            int low = start;
+            int high = end;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
+//End of MessageStore class
@@ -0,0 +1,76 @@
+package edu.seg2105.edu.server.backend;
+
+/**
+ * The most recent messages of a room, kept in a fixed-size ring. Once the
+ * ring is full each new message overwrites the oldest, so a room never
+ * holds more than its capacity however long the server runs.
+ * <p>
+ * Appends and reads lock the ring briefly; a read copies the lines out, so
+ * a replay never holds the lock while writing to a socket.
+ */
+public class RoomHistory {
+    //Instance variables **********************************************
+
+    /**
+     * The messages, the next one going into slot count % capacity.
+     */
+    private final String[] ring;
+
+    /**
+     * The number of messages ever appended.
+     */
+    private long count = 0;
+
+    //Constructors ****************************************************
+
+    /**
+     * Constructs an empty history.
+     *
+     * @param capacity The number of messages kept, at least one.
+     */
+    public RoomHistory(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.ring = new String[capacity];
+    }
+
+    //Instance methods ************************************************
+
+    /**
+     * Records a message, dropping the oldest if the history is full.
+     *
+     * @param message The message as it was shown to the room.
+     */
+    public synchronized void append(String message) {
+        ring[(int) (count++ % ring.length)] = message;
+    }
+
+    /**
+     * Returns the most recent messages, oldest first, one per line.
+     *
+     * @param n The number of messages wanted.
+     * @return the messages, or an empty string if there are none.
+     */
+    public String last(int n) {
+        String[] lines;
+        synchronized (this) {
+            int size = (int) Math.min(Math.min(n, count), ring.length);
+            lines = new String[Math.max(0, size)];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = ring[(int) ((count - lines.length + i) % ring.length)];
+            }
+        }
+        return String.join("\n", lines);
+    }
+
+    /**
+     * Returns the number of messages the history keeps.
+     *
+     * @return the capacity.
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+}
+//End of RoomHistory class
@@ -5,6 +5,10 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ocsf.common.*;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -40,14 +44,20 @@ public abstract class AbstractClient implements Runnable {
 	private Socket clientSocket;
 
 	/**
-	 * The stream to handle data going to the server.
+	 * The writer encoding data going to the server.
+	 */
+	private MessageWriter output;
+
+	/**
+	 * The reader decoding data from the server.
 	 */
-	private ObjectOutputStream output;
+	private MessageReader input;
 
 	/**
-	 * The stream to handle data from the server.
+	 * The codec used for the next connection. Set to the binary codec by
+	 * default.
 	 */
-	private ObjectInputStream input;
+	private MessageCodec codec = new BinaryCodec();
 
 	/**
 	 * The thread created to read data from the server.
@@ -58,7 +68,82 @@ public abstract class AbstractClient implements Runnable {
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
 	 * run method knows when to stop waiting for incoming messages.
 	 */
-	private boolean readyToStop	= false;
+	private volatile boolean readyToStop	= false;
+
+	/**
+	 * Indicates if the reader thread is a virtual thread. Set to false by
+	 * default.
+	 */
+	private boolean virtualThreads = false;
+
+	/**
+	 * Lock serializing the writes to the server, which may come from the
+	 * application, the reader answering pings and the heartbeat timer.
+	 * Not a monitor, so that a virtual reader thread blocked in a write does
+	 * not pin its carrier thread.
+	 */
+	private final ReentrantLock outputLock = new ReentrantLock();
+
+	/**
+	 * Lock serializing the attempts to connect, whether made by the
+	 * application or by a scheduled reconnection, so that only one socket
+	 * is opened.
+	 */
+	private final ReentrantLock connectLock = new ReentrantLock();
+
+	/**
+	 * How long the server may stay silent before it is pinged, and before
+	 * the connection is given up, in milliseconds. 0 disables each.
+	 */
+	private volatile long heartbeatInterval = 0;
+	private volatile long idleTimeout = 0;
+
+	/**
+	 * The time the last message was received from the server, from
+	 * <code>System.nanoTime</code>. Heartbeats count.
+	 */
+	private volatile long lastInbound;
+
+	/**
+	 * The exception reported when the connection was given up because the
+	 * server stayed silent; null otherwise.
+	 */
+	private volatile SocketTimeoutException silence;
+
+	/**
+	 * The batching of the writes to the server; null to write each message
+	 * at once.
+	 */
+	private volatile WriteBatcher writeBatching;
+
+	/**
+	 * The stream batching the writes of the current connection; null if
+	 * they are not batched. Guarded by the output lock.
+	 */
+	private WriteBatcher.Output batched;
+
+	/**
+	 * True to set <code>TCP_NODELAY</code> on the connection.
+	 */
+	private volatile boolean tcpNoDelay = false;
+
+	/**
+	 * The TLS configuration of the connection; null for plain TCP.
+	 */
+	private volatile TlsConfig tls;
+
+	/**
+	 * The longest wait before the first attempt to reconnect, and before
+	 * any attempt, in milliseconds. 0 disables reconnection.
+	 */
+	private volatile long reconnectDelay = 0;
+	private volatile long reconnectMaxDelay = 0;
+
+	/**
+	 * True from the loss of the connection until a reconnection succeeds
+	 * or closeConnection is called.
+	 */
+	private volatile boolean reconnecting = false;
 
 	/**
 	 * The server's host name.
@@ -96,15 +181,44 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when opening.
 	 */
 	final public void openConnection() throws IOException {
+		connectLock.lock();
+		try {
+			connect();
+		} finally {
+			connectLock.unlock();
+		}
+	}
+
+	/**
+	 * Opens the connection unless it is open. Called while holding the
+	 * connect lock.
+	 */
+	private void connect() throws IOException {
 		// Do not do anything if the connection is already open
 		if (isConnected())
 			return;
 
 		// Create the sockets and the data streams
 		try {
-			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			TlsConfig tls = this.tls;
+			clientSocket = tls == null ? new Socket(host, port) : tls.newSocket(host, port);
+
+			OutputStream out = clientSocket.getOutputStream();
+			WriteBatcher batcher = writeBatching;
+			outputLock.lock();
+			try {
+				batched = batcher == null ? null : batcher.wrap(out);
+				output = codec.newWriter(batched == null ? out : batched);
+				// The header goes out at once: the server answers it.
+				if (batched != null)
+					batched.flushNow();
+			} finally {
+				outputLock.unlock();
+			}
+			// Only now: with TLS, the handshake and the header are sent
+			// without waiting for acknowledgements.
+			clientSocket.setTcpNoDelay(tcpNoDelay);
+			input = codec.newReader(new BufferedInputStream(clientSocket.getInputStream()), output);
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -117,9 +231,21 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
+		// Create the data reader thread
+		clientReader = VirtualThreads.newThread(virtualThreads, "AbstractClient reader", this);
 		readyToStop = false;
+		reconnecting = false;
+		silence = null;
+		lastInbound = System.nanoTime();
 		clientReader.start(); // Start the thread
+
+		// The check is bound to this socket and stops once it is closed.
+		long interval = heartbeatInterval, timeout = idleTimeout;
+		if (interval > 0 || timeout > 0) {
+			Socket socket = clientSocket;
+			long first = interval > 0 && (timeout == 0 || interval < timeout) ? interval : timeout;
+			TimerWheel.shared().schedule(now -> checkHeartbeat(socket, now), first);
+		}
 	}
 
 	/**
@@ -132,10 +258,34 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when sending
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		outputLock.lock();
+		try {
+			MessageWriter out = output;
+			if (clientSocket == null || out == null)
+				throw new SocketException("socket does not exist");
+
+			out.writeMessage(msg);
+		} finally {
+			outputLock.unlock();
+		}
+	}
 
-		output.writeObject(msg);
+	/**
+	 * Sends the messages held by write batching at once, without waiting
+	 * for the batch to fill or its window to end. Has no effect if writes
+	 * are not batched.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occurs when sending
+	 */
+	final public void flush() throws IOException {
+		outputLock.lock();
+		try {
+			if (batched != null)
+				batched.flushNow();
+		} finally {
+			outputLock.unlock();
+		}
 	}
 
 
@@ -148,6 +298,7 @@ public abstract class AbstractClient implements Runnable {
 	final public void closeConnection() throws IOException {
 		// Prevent the thread from looping any more
 		readyToStop = true;
+		reconnecting = false;
 
 		try {
 			closeAll();
@@ -184,6 +335,225 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * @return the codec used for the next connection.
+	 */
+	final public MessageCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec used to exchange messages with the server. The default
+	 * is the binary codec; the serialization codec talks to servers that
+	 * only know the original object streams. The change only takes effect
+	 * at the time of the next call to openConnection().
+	 * 
+	 * @param codec
+	 *            the codec of the next connection.
+	 */
+	final public void setCodec(MessageCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * @return true if the connection is read by a virtual thread.
+	 */
+	final public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Chooses whether the connection is read by a virtual thread instead of
+	 * a platform thread. A virtual thread costs almost nothing while the
+	 * server is silent, which matters for programs opening many clients.
+	 * The change only takes effect at the time of the next call to
+	 * openConnection().
+	 * 
+	 * @param virtualThreads
+	 *            true to read the connection with a virtual thread.
+	 * @exception UnsupportedOperationException
+	 *                if virtual threads are asked for and the JVM does not
+	 *                provide them.
+	 */
+	final public void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !VirtualThreads.isSupported())
+			throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * @return the batching of the writes to the server, or null if each
+	 *         message is written at once.
+	 */
+	final public WriteBatcher getWriteBatching() {
+		return writeBatching;
+	}
+
+	/**
+	 * Coalesces the messages sent within a window into one write. A message
+	 * is held until the batch reaches the given size or the window since
+	 * its first message ends; <code>flush</code> sends it at once. Suits
+	 * clients sending bursts of small messages, such as bots. Off by
+	 * default: each message is written as it is sent. The change only takes
+	 * effect at the time of the next call to openConnection().
+	 * 
+	 * @param windowMicros
+	 *            the longest a message waits for others, in microseconds;
+	 *            0 writes each message at once.
+	 * @param maxBytes
+	 *            the batch size that is written without waiting.
+	 */
+	final public void setWriteBatching(long windowMicros, int maxBytes) {
+		this.writeBatching = windowMicros == 0 ? null : new WriteBatcher(windowMicros, maxBytes);
+	}
+
+	/**
+	 * Encrypts the connection with TLS. The handshake is completed by
+	 * openConnection. The configuration keeps the session, so reconnecting
+	 * to the same server resumes it rather than going through a full
+	 * handshake; the same configuration should be used for every
+	 * connection. The change only takes effect at the time of the next
+	 * call to openConnection().
+	 * 
+	 * @param tls
+	 *            the configuration, trusting the server's certificate;
+	 *            null for plain TCP.
+	 */
+	final public void setTls(TlsConfig tls) {
+		this.tls = tls;
+	}
+
+	/**
+	 * @return the TLS configuration, or null if the connection is plain TCP.
+	 */
+	final public TlsConfig getTls() {
+		return tls;
+	}
+
+	/**
+	 * @return true if <code>TCP_NODELAY</code> is set on the connection.
+	 */
+	final public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Chooses latency over packet count: with <code>TCP_NODELAY</code> set,
+	 * a small message is sent at once rather than held by Nagle's algorithm
+	 * until the previous one is acknowledged. Should be set with write
+	 * batching, which already coalesces the messages. Applies to the open
+	 * connection, if any, and to the following ones.
+	 * 
+	 * @param on
+	 *            true to set <code>TCP_NODELAY</code>.
+	 * @exception IOException
+	 *                if the option cannot be set on the open connection.
+	 */
+	final public void setTcpNoDelay(boolean on) throws IOException {
+		this.tcpNoDelay = on;
+		Socket socket = clientSocket;
+		if (socket != null)
+			socket.setTcpNoDelay(on);
+	}
+
+	/**
+	 * @return the silence after which the server is pinged, in
+	 *         milliseconds; 0 if it is never pinged.
+	 */
+	final public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	/**
+	 * @return the silence after which the connection is given up, in
+	 *         milliseconds; 0 if it never is.
+	 */
+	final public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Enables heartbeats and dead-server detection. A server that sends
+	 * nothing for the heartbeat interval is sent a ping, which an
+	 * <code>AbstractServer</code> answers; a server that sends nothing, not
+	 * even a pong, for the idle timeout is considered dead: the connection
+	 * is closed and <code>connectionException</code> is called with a
+	 * <code>SocketTimeoutException</code>, without waiting for the reader
+	 * to notice. The checks run on the shared <code>TimerWheel</code>, not
+	 * on the reader thread. Pings from the server are answered whatever
+	 * these settings, and never reach <code>handleMessageFromServer</code>.
+	 * Both are off by default, since servers built on older versions of
+	 * the framework do not answer pings. The change only takes effect at
+	 * the time of the next call to openConnection().
+	 * 
+	 * @param interval
+	 *            the silence after which the server is pinged, in
+	 *            milliseconds; 0 never pings.
+	 * @param idleTimeout
+	 *            the silence after which the connection is given up, in
+	 *            milliseconds; 0 never gives up. Should be a few times the
+	 *            interval.
+	 */
+	final public void setHeartbeat(long interval, long idleTimeout) {
+		if (interval < 0 || idleTimeout < 0)
+			throw new IllegalArgumentException("negative delay");
+
+		this.heartbeatInterval = interval;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return the longest wait before the first attempt to reconnect, in
+	 *         milliseconds; 0 if the client does not reconnect.
+	 */
+	final public long getReconnectDelay() {
+		return reconnectDelay;
+	}
+
+	/**
+	 * @return the longest wait before any attempt to reconnect, in
+	 *         milliseconds.
+	 */
+	final public long getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+
+	/**
+	 * @return true while the connection is lost and the client is trying
+	 *         to reconnect.
+	 */
+	final public boolean isReconnecting() {
+		return reconnecting;
+	}
+
+	/**
+	 * Makes the client reconnect on its own when the connection is lost,
+	 * rather than only calling <code>connectionException</code>. The hook
+	 * is still called, then attempts are made until one succeeds or
+	 * closeConnection is called; <code>connectionEstablished</code> is
+	 * called again once connected. The wait before each attempt is drawn
+	 * at random up to a ceiling that doubles after each failure, from the
+	 * first delay up to the maximum. The random draw spreads the clients of
+	 * a restarted server over the whole window instead of letting them all
+	 * reconnect at once. Off by default.
+	 * 
+	 * @param delay
+	 *            the longest wait before the first attempt, in
+	 *            milliseconds; 0 disables reconnection.
+	 * @param maxDelay
+	 *            the longest wait before any attempt, in milliseconds.
+	 */
+	final public void setReconnect(long delay, long maxDelay) {
+		if (delay < 0 || maxDelay < delay)
+			throw new IllegalArgumentException("delays must be positive and increasing");
+
+		this.reconnectDelay = delay;
+		this.reconnectMaxDelay = maxDelay;
+		if (delay == 0)
+			reconnecting = false;
+	}
+
 	/**
 	 * @return the host name.
 	 */
@@ -218,6 +588,7 @@ public abstract class AbstractClient implements Runnable {
 	 * <code>handleMessageFromServer()</code>. Not to be explicitly called.
 	 */
 	final public void run() {
+		boolean lost = false;
 		connectionEstablished();
 
 		// The message from the server
@@ -230,7 +601,15 @@ public abstract class AbstractClient implements Runnable {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				msg = input.readMessage();
+				lastInbound = System.nanoTime();
+
+				// Heartbeats only prove the server is alive
+				if (msg instanceof Heartbeat) {
+					if (msg == Heartbeat.PING)
+						sendToServer(Heartbeat.PONG);
+					continue;
+				}
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -238,15 +617,24 @@ public abstract class AbstractClient implements Runnable {
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
+				// Set first, so that the hook and senders see the outage.
+				lost = reconnecting = reconnectDelay > 0;
 				try {
 					closeAll();
 				} catch (Exception ex) {
 				}
 
-				connectionException(exception);
+				// A silent server is reported as such, not as the
+				// closed socket that ended the read.
+				SocketTimeoutException timedOut = silence;
+				connectionException(timedOut != null ? timedOut : exception);
 			}
 		} finally {
 			clientReader = null;
+
+			// Only once this thread no longer counts as connected.
+			if (lost)
+				scheduleReconnect(1);
 		}
 	}
 
@@ -291,6 +679,91 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Schedules an attempt to reconnect after a random wait, up to a
+	 * ceiling doubling with each attempt.
+	 * 
+	 * @param attempt
+	 *            the number of the attempt, from 1.
+	 */
+	private void scheduleReconnect(int attempt) {
+		long ceiling = Math.min(reconnectMaxDelay, reconnectDelay << Math.min(attempt - 1, 20));
+		long wait = ThreadLocalRandom.current().nextLong(ceiling + 1);
+		TimerWheel wheel = TimerWheel.shared();
+		wheel.schedule(now -> {
+			wheel.offload(() -> reconnect(attempt));
+			return -1;
+		}, wait);
+	}
+
+	/**
+	 * Tries to reconnect, scheduling the next attempt if it fails. Runs off
+	 * the timer wheel, since connecting blocks.
+	 * 
+	 * @param attempt
+	 *            the number of the attempt, from 1.
+	 */
+	private void reconnect(int attempt) {
+		connectLock.lock();
+		try {
+			// The application may have connected, or closed, meanwhile.
+			if (!reconnecting || reconnectDelay == 0)
+				return;
+
+			connect();
+		} catch (IOException ex) {
+			if (reconnecting)
+				scheduleReconnect(attempt + 1);
+		} finally {
+			connectLock.unlock();
+		}
+	}
+
+	/**
+	 * Checks how long the server has been silent. Run by the timer wheel:
+	 * pings a server silent for a heartbeat interval, and closes the socket
+	 * of one silent for the idle timeout, which ends the reader.
+	 * 
+	 * @param socket
+	 *            the socket of the connection checked.
+	 * @param now
+	 *            the current time, from <code>System.nanoTime</code>.
+	 * @return the delay in milliseconds until the next check, or -1 once
+	 *         the connection is closed.
+	 */
+	private long checkHeartbeat(Socket socket, long now) {
+		if (readyToStop || socket != clientSocket)
+			return -1;
+
+		long interval = heartbeatInterval;
+		long timeout = idleTimeout;
+		long idle = (now - lastInbound) / 1000000;
+		if (timeout > 0 && idle >= timeout) {
+			silence = new SocketTimeoutException("server silent for " + idle + " ms");
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+			return -1;
+		}
+
+		long next = timeout > 0 ? timeout - idle : interval;
+		if (interval > 0) {
+			// Writing may block, which the wheel thread must not.
+			if (idle >= interval) {
+				TimerWheel.shared().offload(() -> {
+					try {
+						if (socket == clientSocket)
+							sendToServer(Heartbeat.PING);
+					} catch (IOException ex) {
+					}
+				});
+			}
+			next = Math.min(next, interval);
+		}
+		return next;
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -299,6 +772,15 @@ public abstract class AbstractClient implements Runnable {
 	 */
 	private void closeAll() throws IOException {
 		try {
+			// Send what write batching still holds
+			WriteBatcher.Output pending = batched;
+			if (pending != null && clientSocket != null && !clientSocket.isClosed()) {
+				try {
+					pending.flushNow();
+				} catch (IOException ex) {
+				}
+			}
+
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
@@ -316,6 +798,7 @@ public abstract class AbstractClient implements Runnable {
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
 			output = null;
+			batched = null;
 			input = null;
 			clientSocket = null;
 		}
@@ -0,0 +1,634 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.IntUnaryOperator;
+import java.util.zip.*;
+
+/**
+ * The <code> BinaryCodec </code> sends messages as compact frames instead of
+ * Java serialization. A stream starts with the magic number and a version
+ * byte; each message is then one frame:
+ *
+ * <pre>
+ *   type     1 byte, the code of its MessageType
+ *   length   unsigned variable-length integer, 7 bits per byte
+ *   payload  length bytes
+ * </pre>
+ *
+ * Strings and system messages are carried as UTF-8 text. Any other object is
+ * carried as a self-contained Java serialized form, so the codec can send
+ * whatever the serialization codec can, only faster for text.<p>
+ *
+ * A codec constructed with a compression threshold deflates the payloads of
+ * at least that many bytes. Its header carries version 2, offering
+ * compression; the other end answers version 2 only if it compresses too,
+ * and compression is used in both directions only then. A compressed frame
+ * sets the high bit of its type byte, and its payload is the length of the
+ * original payload, as a variable-length integer, then the deflated bytes.
+ * Each frame is deflated on its own, primed with a dictionary of common chat
+ * and log text, so a broadcast is compressed once for all its recipients
+ * and short messages still compress. Peers built before compression only
+ * know version 1: compression must be enabled on servers before clients.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see MessageType
+ * @see SerializationCodec
+ */
+public class BinaryCodec implements MessageCodec
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The magic number starting every binary stream: "OC".
+	 */
+	public static final int MAGIC = 0x4F43;
+
+	/**
+	 * The version of the frame format.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The version of the frame format that also carries deflated frames.
+	 */
+	public static final int VERSION_DEFLATE = 2;
+
+	/**
+	 * The default deflate level: compression ratio matters less than
+	 * keeping the sending thread fast.
+	 */
+	public static final int DEFAULT_LEVEL = 1;
+
+	/**
+	 * Largest payload accepted from a peer, to bound the memory a corrupt or
+	 * hostile stream can make us allocate.
+	 */
+	public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+	/**
+	 * The most deflaters kept for encoding broadcasts; any more threads
+	 * encoding at once use a deflater of their own and end it.
+	 */
+	private static final int POOLED = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The flag marking a compressed frame in its type byte.
+	 */
+	private static final int DEFLATED = 0x80;
+
+	/**
+	 * The text priming the compression of every frame. Part of the wire
+	 * format of version 2: both ends must use the same.
+	 */
+	private static final byte[] DICTIONARY = (
+		"\tat java.base/java.lang.Thread.run(Thread.java:\n"
+		+ "\tat java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:\n"
+		+ "\tat java.base/java.lang.reflect.Method.invoke(Method.java:\n"
+		+ "Caused by: java.lang.NullPointerException: Cannot invoke \"\" because \"\" is null\n"
+		+ "java.lang.IllegalStateException java.io.IOException: Connection reset by peer\n"
+		+ "Exception in thread \"main\" ... more\n"
+		+ "2024-01-01T00:00:00.000Z DEBUG INFO WARN ERROR [main] - Started in ms\n"
+		+ "{\"id\": \"name\": \"type\": \"value\": \"status\": \"message\": true, false, null}\n"
+		+ "https://www.github.com/ http://localhost:8080/api/v1/ .com .org .java .txt\n"
+		+ "SERVER MSG > has logged on has disconnected (private)> [lobby] #login #join #msg\n"
+		+ "thanks! sorry, please could you what do you think about this that the with for and "
+		+ "not but have are was it's I'm don't can't yes no lol ok hi hello everyone\n")
+		.getBytes(StandardCharsets.UTF_8);
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The smallest payload compressed, in bytes; 0 if compression is off.
+	 */
+	private final int threshold;
+
+	/**
+	 * The deflate level, from 1 to 9.
+	 */
+	private final int level;
+
+	/**
+	 * The idle deflaters encoding broadcasts, reset before each use.
+	 */
+	private final ArrayBlockingQueue<Deflater> deflaters =
+		new ArrayBlockingQueue<Deflater>(POOLED);
+
+	/**
+	 * True once the codec is closed: deflaters are then ended after use
+	 * instead of kept.
+	 */
+	private volatile boolean closed = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a codec that never compresses.
+	 */
+	public BinaryCodec()
+	{
+		this(0, DEFAULT_LEVEL);
+	}
+
+	/**
+	 * Constructs a codec compressing the payloads of at least the given
+	 * size, when the other end compresses too.
+	 *
+	 * @param threshold the smallest payload compressed, in bytes; 0 never
+	 *                  compresses.
+	 */
+	public BinaryCodec(int threshold)
+	{
+		this(threshold, DEFAULT_LEVEL);
+	}
+
+	/**
+	 * Constructs a codec compressing the payloads of at least the given
+	 * size at the given level, when the other end compresses too.
+	 *
+	 * @param threshold the smallest payload compressed, in bytes; 0 never
+	 *                  compresses.
+	 * @param level     the deflate level, from 1, fastest, to 9, smallest.
+	 */
+	public BinaryCodec(int threshold, int level)
+	{
+		if (threshold < 0 || level < 1 || level > 9)
+			throw new IllegalArgumentException("bad compression settings");
+
+		this.threshold = threshold;
+		this.level = level;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the smallest payload compressed, in bytes; 0 if compression
+	 * is off.
+	 */
+	public int getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * @return the deflate level.
+	 */
+	public int getLevel()
+	{
+		return level;
+	}
+
+	public int getMagic()
+	{
+		return MAGIC;
+	}
+
+	/**
+	 * @return 3: the magic number and the version.
+	 */
+	public int getHeaderLength()
+	{
+		return 3;
+	}
+
+	/**
+	 * Computes the length of a frame from its type and length bytes. A
+	 * frame the reader would reject is reported complete as soon as that
+	 * is known, so that it is rejected at once.
+	 */
+	public int frameLength(IntUnaryOperator peek)
+	{
+		int code = peek.applyAsInt(0);
+		if (code < 0)
+			return -1;
+		if (MessageType.fromCode(code & ~DEFLATED) == null)
+			return 1;
+
+		int length = 0;
+		for (int i = 1, shift = 0; shift < 32; i++, shift += 7)
+		{
+			int b = peek.applyAsInt(i);
+			if (b < 0)
+				return -1;
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return length < 0 || length > MAX_PAYLOAD ? i + 1 : i + 1 + length;
+		}
+		return 6;
+	}
+
+	/**
+	 * Creates the writer of a client. Its header offers compression if this
+	 * codec compresses; the reader created next learns whether the server
+	 * accepts.
+	 */
+	public MessageWriter newWriter(OutputStream out) throws IOException
+	{
+		return new Writer(out, threshold > 0 ? VERSION_DEFLATE : VERSION);
+	}
+
+	/**
+	 * Creates the writer of a server, which answers compression only if
+	 * the client offered it and this codec compresses.
+	 */
+	public MessageWriter newWriter(OutputStream out, MessageReader peer) throws IOException
+	{
+		boolean agreed = threshold > 0 && peer instanceof Reader
+			&& ((Reader) peer).version == VERSION_DEFLATE;
+		Writer writer = new Writer(out, agreed ? VERSION_DEFLATE : VERSION);
+		writer.compress = agreed;
+		return writer;
+	}
+
+	public MessageReader newReader(InputStream in) throws IOException
+	{
+		return new Reader(in);
+	}
+
+	/**
+	 * Creates the reader of a client. Compression starts if the server's
+	 * header accepts what the client's writer offered.
+	 */
+	public MessageReader newReader(InputStream in, MessageWriter own) throws IOException
+	{
+		Reader reader = new Reader(in);
+		if (reader.version == VERSION_DEFLATE && own instanceof Writer
+			&& ((Writer) own).version == VERSION_DEFLATE)
+			((Writer) own).compress = true;
+		return reader;
+	}
+
+	/**
+	 * Encodes the complete frame of a message. A payload worth compressing
+	 * gets both a deflated and a plain frame, each built once for every
+	 * recipient, whether or not its peer inflates.
+	 */
+	public EncodedMessage encode(Object msg) throws IOException
+	{
+		MessageType type = MessageType.of(msg);
+		byte[] payload = encodePayload(type, msg);
+		int code = type.getCode();
+		byte[] plain = frame(code, payload);
+
+		if (threshold > 0 && payload.length >= threshold)
+		{
+			Deflater deflater = deflaters.poll();
+			if (deflater == null)
+				deflater = new Deflater(level);
+			byte[] deflated;
+			try
+			{
+				deflated = deflate(payload, deflater);
+			}
+			finally
+			{
+				if (closed || !deflaters.offer(deflater))
+					deflater.end();
+			}
+			if (deflated != null)
+				return new EncodedMessage(this, msg, frame(code | DEFLATED, deflated), plain);
+		}
+		return new EncodedMessage(this, msg, plain);
+	}
+
+	/**
+	 * Releases the deflaters kept for encoding broadcasts. The codec may
+	 * still be used afterwards, by connections opened with it for example,
+	 * but no longer keeps deflaters between broadcasts.
+	 */
+	public void close()
+	{
+		closed = true;
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null)
+			deflater.end();
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * The writer of one connection.
+	 */
+	private final class Writer implements MessageWriter
+	{
+		private final OutputStream out;
+		private final DataOutputStream output;
+
+		/**
+		 * The version written in the header.
+		 */
+		final int version;
+
+		/**
+		 * True once both ends agreed to compress.
+		 */
+		volatile boolean compress = false;
+
+		/**
+		 * Created when first needed, ended on close.
+		 */
+		private Deflater deflater;
+
+		Writer(OutputStream out, int version) throws IOException
+		{
+			// Each frame is assembled in the buffer and pushed in one write.
+			this.out = out;
+			this.output = new DataOutputStream(new BufferedOutputStream(out, 1024));
+			this.version = version;
+			output.writeShort(MAGIC);
+			output.writeByte(version);
+			output.flush();
+		}
+
+		public void writeMessage(Object msg) throws IOException
+		{
+			MessageType type = MessageType.of(msg);
+			byte[] payload = encodePayload(type, msg);
+			int code = type.getCode();
+
+			if (compress && payload.length >= threshold)
+			{
+				if (deflater == null)
+					deflater = new Deflater(level);
+				byte[] deflated = deflate(payload, deflater);
+				if (deflated != null)
+				{
+					payload = deflated;
+					code |= DEFLATED;
+				}
+			}
+
+			output.writeByte(code);
+			writeLength(output, payload.length);
+			output.write(payload);
+			output.flush();
+		}
+
+		public void writeEncoded(EncodedMessage msg) throws IOException
+		{
+			byte[] bytes = msg.bytes();
+			if (bytes != null && (bytes[0] & DEFLATED) != 0 && !compress)
+				bytes = msg.plainBytes();
+			if (!(msg.getCodec() instanceof BinaryCodec) || bytes == null)
+			{
+				writeMessage(msg.getMessage());
+				return;
+			}
+
+			// Frames carry no stream state, and the buffer is empty
+			// between messages: hand the shared bytes straight down.
+			out.write(bytes);
+			out.flush();
+		}
+
+		public void close() throws IOException
+		{
+			if (deflater != null)
+				deflater.end();
+			output.close();
+		}
+	}
+
+	/**
+	 * The reader of one connection.
+	 */
+	private static final class Reader implements MessageReader
+	{
+		private final DataInputStream input;
+
+		/**
+		 * The version the peer wrote in its header.
+		 */
+		final int version;
+
+		/**
+		 * Created when first needed, ended on close.
+		 */
+		private Inflater inflater;
+
+		Reader(InputStream in) throws IOException
+		{
+			input = new DataInputStream(in);
+			if (input.readUnsignedShort() != MAGIC)
+				throw new StreamCorruptedException("not a binary OCSF stream");
+			version = input.readUnsignedByte();
+			if (version != VERSION && version != VERSION_DEFLATE)
+				throw new StreamCorruptedException(
+					"unsupported binary OCSF version " + version);
+		}
+
+		public Object readMessage() throws IOException, ClassNotFoundException
+		{
+			int code = input.readUnsignedByte();
+			MessageType type = MessageType.fromCode(code & ~DEFLATED);
+			if (type == null)
+				throw new StreamCorruptedException("unknown message type " + code);
+
+			byte[] payload = new byte[readLength(input)];
+			input.readFully(payload);
+			if ((code & DEFLATED) != 0)
+			{
+				if (inflater == null)
+					inflater = new Inflater();
+				payload = inflate(payload, inflater);
+			}
+			return decodePayload(type, payload);
+		}
+
+		public void close() throws IOException
+		{
+			if (inflater != null)
+				inflater.end();
+			input.close();
+		}
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Encodes the payload of a message.
+	 *
+	 * @param type the type of the message.
+	 * @param msg  the message.
+	 * @return the payload bytes.
+	 */
+	static byte[] encodePayload(MessageType type, Object msg) throws IOException
+	{
+		switch (type)
+		{
+			case CHAT:
+			case COMMAND:
+			case LOGIN:
+				return ((String) msg).getBytes(StandardCharsets.UTF_8);
+
+			case SYSTEM:
+				return ((SystemMessage) msg).getText().getBytes(StandardCharsets.UTF_8);
+
+			case HEARTBEAT:
+				return new byte[] { (byte) ((Heartbeat) msg).ordinal() };
+
+			default:
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+				ObjectOutputStream output = new ObjectOutputStream(bytes);
+				output.writeObject(msg);
+				output.close();
+				return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Decodes the payload of a message.
+	 *
+	 * @param type    the type of the message.
+	 * @param payload the payload bytes.
+	 * @return the message.
+	 */
+	static Object decodePayload(MessageType type, byte[] payload)
+		throws IOException, ClassNotFoundException
+	{
+		switch (type)
+		{
+			case CHAT:
+			case COMMAND:
+			case LOGIN:
+				return new String(payload, StandardCharsets.UTF_8);
+
+			case SYSTEM:
+				return new SystemMessage(new String(payload, StandardCharsets.UTF_8));
+
+			case HEARTBEAT:
+				if (payload.length != 1 || payload[0] < 0
+					|| payload[0] >= Heartbeat.values().length)
+					throw new StreamCorruptedException("bad heartbeat");
+				return Heartbeat.values()[payload[0]];
+
+			default:
+				ObjectInputStream input =
+					new ObjectInputStream(new ByteArrayInputStream(payload));
+				return input.readObject();
+		}
+	}
+
+	/**
+	 * Builds the frame of a payload.
+	 *
+	 * @param code    the type byte.
+	 * @param payload the payload, deflated or not.
+	 * @return the frame.
+	 */
+	static byte[] frame(int code, byte[] payload) throws IOException
+	{
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 6);
+		DataOutputStream output = new DataOutputStream(frame);
+		output.writeByte(code);
+		writeLength(output, payload.length);
+		output.write(payload);
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Deflates a payload, primed with the dictionary.
+	 *
+	 * @param payload  the payload.
+	 * @param deflater the deflater, reset before use.
+	 * @return the compressed payload, or null if it is not smaller.
+	 */
+	static byte[] deflate(byte[] payload, Deflater deflater) throws IOException
+	{
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(payload);
+		deflater.finish();
+
+		ByteArrayOutputStream packed = new ByteArrayOutputStream(payload.length / 2 + 16);
+		writeLength(new DataOutputStream(packed), payload.length);
+		byte[] chunk = new byte[Math.min(payload.length, 8192)];
+		while (!deflater.finished())
+		{
+			packed.write(chunk, 0, deflater.deflate(chunk));
+			if (packed.size() >= payload.length)
+				return null;
+		}
+		return packed.toByteArray();
+	}
+
+	/**
+	 * Inflates a compressed payload.
+	 *
+	 * @param packed   the compressed payload.
+	 * @param inflater the inflater, reset before use.
+	 * @return the original payload.
+	 * @exception StreamCorruptedException if the payload is not valid.
+	 */
+	static byte[] inflate(byte[] packed, Inflater inflater) throws IOException
+	{
+		ByteArrayInputStream in = new ByteArrayInputStream(packed);
+		byte[] payload = new byte[readLength(new DataInputStream(in))];
+		int offset = packed.length - in.available();
+
+		inflater.reset();
+		inflater.setInput(packed, offset, packed.length - offset);
+		try
+		{
+			int length = 0;
+			while (length < payload.length)
+			{
+				int n = inflater.inflate(payload, length, payload.length - length);
+				if (n == 0)
+				{
+					if (!inflater.needsDictionary())
+						break;
+					inflater.setDictionary(DICTIONARY);
+				}
+				length += n;
+			}
+			if (length != payload.length)
+				throw new StreamCorruptedException("bad compressed frame");
+		}
+		catch (DataFormatException ex)
+		{
+			throw new StreamCorruptedException("bad compressed frame: " + ex.getMessage());
+		}
+		return payload;
+	}
+
+	/**
+	 * Writes a length as an unsigned variable-length integer.
+	 */
+	static void writeLength(DataOutput out, int length) throws IOException
+	{
+		while ((length & ~0x7F) != 0)
+		{
+			out.writeByte((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		out.writeByte(length);
+	}
+
+	/**
+	 * Reads a length written by <code>writeLength</code>.
+	 */
+	static int readLength(DataInput in) throws IOException
+	{
+		int length = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				if (length < 0 || length > MAX_PAYLOAD)
+					throw new StreamCorruptedException("frame too large: " + length);
+				return length;
+			}
+		}
+		throw new StreamCorruptedException("malformed frame length");
+	}
+}
+// End of BinaryCodec Class
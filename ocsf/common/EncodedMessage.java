@@ -0,0 +1,121 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+/**
+ * An <code> EncodedMessage </code> is a message already encoded by a codec,
+ * ready to be written as is to any number of connections using that codec.
+ * It lets a broadcast pay for encoding once rather than once per recipient.
+ * Instances are immutable and may be shared between threads.<p>
+ *
+ * Writers of another codec, or of a codec that cannot write pre-encoded
+ * bytes, fall back to encoding the original message.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see MessageCodec#encode
+ * @see MessageWriter#writeEncoded
+ */
+public final class EncodedMessage
+{
+	/**
+	 * The codec that produced the bytes.
+	 */
+	private final MessageCodec codec;
+
+	/**
+	 * The message before encoding.
+	 */
+	private final Object message;
+
+	/**
+	 * The encoded bytes; never modified.
+	 */
+	private final byte[] bytes;
+
+	/**
+	 * The bytes for writers that did not negotiate the compression of
+	 * <code>bytes</code>; null if they are not compressed.
+	 */
+	private final byte[] plainBytes;
+
+	/**
+	 * Constructs an encoded message. Called by codecs only; the array is
+	 * not copied and must not be modified afterwards.
+	 *
+	 * @param codec   the codec that produced the bytes.
+	 * @param message the message before encoding.
+	 * @param bytes   the encoded bytes.
+	 */
+	EncodedMessage(MessageCodec codec, Object message, byte[] bytes)
+	{
+		this(codec, message, bytes, null);
+	}
+
+	/**
+	 * Constructs an encoded message in a compressed and a plain form.
+	 * Called by codecs only; the arrays are not copied and must not be
+	 * modified afterwards.
+	 *
+	 * @param codec      the codec that produced the bytes.
+	 * @param message    the message before encoding.
+	 * @param bytes      the compressed bytes.
+	 * @param plainBytes the same message, not compressed.
+	 */
+	EncodedMessage(MessageCodec codec, Object message, byte[] bytes, byte[] plainBytes)
+	{
+		this.codec = codec;
+		this.message = message;
+		this.bytes = bytes;
+		this.plainBytes = plainBytes;
+	}
+
+	/**
+	 * @return the codec that produced the bytes.
+	 */
+	public MessageCodec getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * @return the message before encoding.
+	 */
+	public Object getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * @return the number of encoded bytes.
+	 */
+	public int size()
+	{
+		return bytes.length;
+	}
+
+	/**
+	 * @return the encoded bytes, shared: callers must not modify them.
+	 */
+	byte[] bytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * @return the bytes not compressed, shared: callers must not modify
+	 * them; null if <code>bytes</code> are not compressed.
+	 */
+	byte[] plainBytes()
+	{
+		return plainBytes;
+	}
+
+	public String toString()
+	{
+		return String.valueOf(message);
+	}
+}
+// End of EncodedMessage Class
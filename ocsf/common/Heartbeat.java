@@ -0,0 +1,29 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+/**
+ * The <code> Heartbeat </code> messages let each end of a connection check
+ * that the other is still there. Either end may send a <code>PING</code>;
+ * the other answers with a <code>PONG</code>. Both are consumed by the
+ * framework and never reach the hook methods of servers or clients.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see MessageType#HEARTBEAT
+ */
+public enum Heartbeat
+{
+	/**
+	 * Asks the other end to answer.
+	 */
+	PING,
+
+	/**
+	 * The answer to a <code>PING</code>.
+	 */
+	PONG
+}
+// End of Heartbeat Enum
@@ -0,0 +1,204 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A <code> LatencyHistogram </code> counts durations in nanoseconds, in the
+ * manner of an HDR histogram: buckets are exact below 64 ns and then 32 per
+ * power of two, so any percentile read back is within about 3% of the
+ * recorded value, whatever its magnitude. Any number of threads may record
+ * at once without locking: each thread counts in one of several stripes,
+ * summed when the histogram is read, so threads on different processors
+ * rarely update the same counters.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+public final class LatencyHistogram
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Values below this are counted exactly.
+	 */
+	private static final int LINEAR = 64;
+
+	/**
+	 * Buckets per power of two above the linear range.
+	 */
+	private static final int SUB_BUCKETS = 32;
+
+	/**
+	 * Enough buckets for any positive long.
+	 */
+	private static final int BUCKETS = LINEAR + 57 * SUB_BUCKETS;
+
+	/**
+	 * The number of stripes: a power of two, at least the number of
+	 * processors and at most 64.
+	 */
+	private static final int STRIPES = Math.min(64, Integer.highestOneBit(
+		Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)));
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The number of values recorded in each bucket, per stripe.
+	 */
+	private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs an empty histogram.
+	 */
+	public LatencyHistogram()
+	{
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new AtomicLongArray(BUCKETS);
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Records one duration. Negative durations count as 0.
+	 *
+	 * @param nanos the duration in nanoseconds.
+	 */
+	public void record(long nanos)
+	{
+		stripe().incrementAndGet(indexOf(Math.max(0, nanos)));
+	}
+
+	/**
+	 * @return the number of durations recorded.
+	 */
+	public long getCount()
+	{
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += count(i);
+		return total;
+	}
+
+	/**
+	 * Returns the duration below which the given fraction of the recorded
+	 * durations fall, for instance 0.99 for the 99th percentile.
+	 *
+	 * @param fraction the fraction, between 0 and 1.
+	 * @return the duration in nanoseconds, 0 if nothing was recorded.
+	 */
+	public long getValueAt(double fraction)
+	{
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = count(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= rank)
+				return highestValueOf(i);
+		}
+		return highestValueOf(BUCKETS - 1);
+	}
+
+	/**
+	 * @return the longest duration recorded, to the histogram's precision,
+	 * or 0 if nothing was recorded.
+	 */
+	public long getMax()
+	{
+		for (int i = BUCKETS - 1; i >= 0; i--)
+		{
+			if (count(i) > 0)
+				return highestValueOf(i);
+		}
+		return 0;
+	}
+
+	/**
+	 * Forgets every duration recorded.
+	 */
+	public void reset()
+	{
+		for (AtomicLongArray counts : stripes)
+		{
+			for (int i = 0; i < BUCKETS; i++)
+				counts.set(i, 0);
+		}
+	}
+
+	/**
+	 * @return the usual percentiles in microseconds, for reports.
+	 */
+	public String toString()
+	{
+		return String.format("p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+			getValueAt(0.5) / 1e3, getValueAt(0.99) / 1e3,
+			getValueAt(0.999) / 1e3, getMax() / 1e3);
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * @return the stripe of the current thread, chosen by hashing its id.
+	 */
+	private AtomicLongArray stripe()
+	{
+		long id = Thread.currentThread().getId();
+		return stripes[(int) ((id * 0x9E3779B97F4A7C15L) >>> 58) & (STRIPES - 1)];
+	}
+
+	/**
+	 * @return the number of values in a bucket, over all stripes.
+	 */
+	private long count(int bucket)
+	{
+		long total = 0;
+		for (AtomicLongArray counts : stripes)
+			total += counts.get(bucket);
+		return total;
+	}
+
+	/**
+	 * @return the bucket of a duration.
+	 */
+	private static int indexOf(long value)
+	{
+		if (value < LINEAR)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - 5;
+		return LINEAR + (shift - 1) * SUB_BUCKETS
+			+ (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * @return the largest duration that falls in a bucket.
+	 */
+	private static long highestValueOf(int index)
+	{
+		if (index < LINEAR)
+			return index;
+
+		int k = index - LINEAR;
+		int shift = k / SUB_BUCKETS + 1;
+		long sub = k % SUB_BUCKETS + SUB_BUCKETS;
+		long next = (sub + 1) << shift;
+		return next <= 0 ? Long.MAX_VALUE : next - 1;
+	}
+}
+// End of LatencyHistogram Class
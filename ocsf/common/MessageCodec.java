@@ -0,0 +1,133 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.io.*;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A <code> MessageCodec </code> defines how the objects exchanged by an
+ * <code> AbstractClient </code> and a <code> ConnectionToClient </code> are
+ * turned into bytes. A codec creates one writer and one reader per
+ * connection, since a stream may carry state from one message to the
+ * next.<p>
+ *
+ * Every stream starts with a header whose first two bytes are the codec's
+ * magic number. The client chooses the codec; the server recognizes it
+ * from those two bytes and answers with the same codec.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see BinaryCodec
+ * @see SerializationCodec
+ */
+public interface MessageCodec
+{
+	/**
+	 * Returns the two bytes that start every stream written by this codec,
+	 * as an unsigned 16-bit value.
+	 *
+	 * @return the codec's magic number.
+	 */
+	int getMagic();
+
+	/**
+	 * Returns the length of the stream header, magic number included. The
+	 * selector engine waits for the whole header before reading it, so that
+	 * a client sending it slowly holds no thread.
+	 *
+	 * @return the header length in bytes, 2 by default.
+	 */
+	default int getHeaderLength()
+	{
+		return 2;
+	}
+
+	/**
+	 * Returns the length of the next message from the bytes received so
+	 * far, without consuming them. The selector engine only starts reading
+	 * a message once all of its bytes are there, so that a client sending
+	 * half a message holds no thread. A codec that cannot tell returns 0,
+	 * the default: its messages are read as soon as they start.
+	 *
+	 * @param peek returns the received byte at an index, or -1 if it has
+	 *             not arrived yet.
+	 * @return the length of the message in bytes, -1 if more bytes are
+	 * needed to know it, or 0 if the codec cannot tell.
+	 */
+	default int frameLength(IntUnaryOperator peek)
+	{
+		return 0;
+	}
+
+	/**
+	 * Creates the writer for one connection and writes the stream header.
+	 *
+	 * @param out the stream to the peer.
+	 * @return the writer of the connection.
+	 * @exception IOException if the header cannot be written.
+	 */
+	MessageWriter newWriter(OutputStream out) throws IOException;
+
+	/**
+	 * Creates the reader for one connection and reads the stream header.
+	 * Blocks until the header has been received. The reader must never
+	 * consume bytes beyond the end of the message it returns: the selector
+	 * engine relies on the bytes left in the stream to know whether another
+	 * message is pending. Callers that want buffering add it underneath.
+	 *
+	 * @param in the stream from the peer.
+	 * @return the reader of the connection.
+	 * @exception IOException if the header is missing or invalid.
+	 */
+	MessageReader newReader(InputStream in) throws IOException;
+
+	/**
+	 * Creates the writer of a server's connection, whose reader has already
+	 * read the client's header. A codec whose header negotiates options
+	 * answers what the client offered. The default implementation ignores
+	 * the reader.
+	 *
+	 * @param out  the stream to the peer.
+	 * @param peer the reader of the same connection.
+	 * @return the writer of the connection.
+	 * @exception IOException if the header cannot be written.
+	 */
+	default MessageWriter newWriter(OutputStream out, MessageReader peer) throws IOException
+	{
+		return newWriter(out);
+	}
+
+	/**
+	 * Creates the reader of a client's connection, whose writer has already
+	 * sent the client's header. A codec whose header negotiates options
+	 * applies the server's answer to the writer. The default implementation
+	 * ignores the writer.
+	 *
+	 * @param in  the stream from the peer.
+	 * @param own the writer of the same connection.
+	 * @return the reader of the connection.
+	 * @exception IOException if the header is missing or invalid.
+	 */
+	default MessageReader newReader(InputStream in, MessageWriter own) throws IOException
+	{
+		return newReader(in);
+	}
+
+	/**
+	 * Encodes a message once, so that the same bytes can be written by
+	 * every writer of this codec. The default implementation keeps only the
+	 * message, which writers then encode one by one.
+	 *
+	 * @param msg the message to be encoded.
+	 * @return the encoded message.
+	 * @exception IOException if the message cannot be encoded.
+	 */
+	default EncodedMessage encode(Object msg) throws IOException
+	{
+		return new EncodedMessage(this, msg, null);
+	}
+}
+// End of MessageCodec Interface
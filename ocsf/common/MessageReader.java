@@ -0,0 +1,30 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> MessageReader </code> decodes the messages received on one
+ * connection.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see MessageCodec
+ */
+public interface MessageReader extends Closeable
+{
+	/**
+	 * Waits for the next message and decodes it.
+	 *
+	 * @return the message received.
+	 * @exception EOFException if the peer closed the stream.
+	 * @exception IOException if the stream fails or holds invalid data.
+	 * @exception ClassNotFoundException if the message is an object whose
+	 *  class is unknown to this side.
+	 */
+	Object readMessage() throws IOException, ClassNotFoundException;
+}
+// End of MessageReader Interface
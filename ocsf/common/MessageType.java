@@ -0,0 +1,107 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+/**
+ * The <code> MessageType </code> enumeration lists the kinds of message
+ * distinguished on the wire by the <code> BinaryCodec</code>. Each type has
+ * a one-byte code that starts its frame.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see BinaryCodec
+ */
+public enum MessageType
+{
+	/**
+	 * A line of chat: a string not starting with <code>#</code>.
+	 */
+	CHAT(1),
+
+	/**
+	 * A command: a string starting with <code>#</code>, other than a login.
+	 */
+	COMMAND(2),
+
+	/**
+	 * A login command: a string starting with <code>#login</code>.
+	 */
+	LOGIN(3),
+
+	/**
+	 * A notice from the framework or the server itself, carried by a
+	 * <code> SystemMessage</code>.
+	 */
+	SYSTEM(4),
+
+	/**
+	 * Any other object, carried in its Java serialized form.
+	 */
+	OBJECT(5),
+
+	/**
+	 * A <code> Heartbeat</code>, carried as one byte.
+	 */
+	HEARTBEAT(6);
+
+	/**
+	 * The code of the type on the wire.
+	 */
+	private final int code;
+
+	MessageType(int code)
+	{
+		this.code = code;
+	}
+
+	/**
+	 * @return the code of the type on the wire.
+	 */
+	public int getCode()
+	{
+		return code;
+	}
+
+	/**
+	 * Returns the type of a message.
+	 *
+	 * @param msg the message.
+	 * @return the type under which the message is sent.
+	 */
+	public static MessageType of(Object msg)
+	{
+		if (msg instanceof String)
+		{
+			String str = (String) msg;
+			if (!str.startsWith("#"))
+				return CHAT;
+			return str.startsWith("#login") ? LOGIN : COMMAND;
+		}
+		if (msg instanceof Heartbeat)
+			return HEARTBEAT;
+		return msg instanceof SystemMessage ? SYSTEM : OBJECT;
+	}
+
+	/**
+	 * Returns the type with the given wire code.
+	 *
+	 * @param code the code read from the wire.
+	 * @return the matching type, or null if the code is unknown.
+	 */
+	public static MessageType fromCode(int code)
+	{
+		switch (code)
+		{
+			case 1: return CHAT;
+			case 2: return COMMAND;
+			case 3: return LOGIN;
+			case 4: return SYSTEM;
+			case 5: return OBJECT;
+			case 6: return HEARTBEAT;
+			default: return null;
+		}
+	}
+}
+// End of MessageType Enum
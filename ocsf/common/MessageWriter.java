@@ -0,0 +1,40 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * A <code> MessageWriter </code> encodes the messages sent on one
+ * connection. It is not thread-safe; callers serialize their writes.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see MessageCodec
+ */
+public interface MessageWriter extends Closeable
+{
+	/**
+	 * Encodes a message and pushes it to the underlying stream.
+	 *
+	 * @param msg the message to be sent.
+	 * @exception IOException if the message cannot be encoded or written.
+	 */
+	void writeMessage(Object msg) throws IOException;
+
+	/**
+	 * Writes a message encoded beforehand. Writers that can copy the bytes
+	 * of their own codec do so; the default implementation encodes the
+	 * original message again.
+	 *
+	 * @param msg the encoded message.
+	 * @exception IOException if the message cannot be written.
+	 */
+	default void writeEncoded(EncodedMessage msg) throws IOException
+	{
+		writeMessage(msg.getMessage());
+	}
+}
+// End of MessageWriter Interface
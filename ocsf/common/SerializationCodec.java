@@ -0,0 +1,253 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.io.*;
+
+/**
+ * The <code> SerializationCodec </code> sends messages with Java
+ * serialization, through one <code> ObjectOutputStream </code> and one
+ * <code> ObjectInputStream </code> per connection. It is the original OCSF
+ * wire format and is kept for compatibility with peers that still use it.
+ * Any serializable object can be sent.<p>
+ *
+ * An object stream remembers every object written to it, on both sides, so
+ * that it can send a back reference if the same object is written again. On
+ * a long-lived connection that table grows with the total number of
+ * messages. The writer therefore resets the stream after a number of
+ * messages or of bytes, which clears the table on both ends; the reset
+ * travels in the stream, so the peer needs no configuration.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see BinaryCodec
+ */
+public class SerializationCodec implements MessageCodec
+{
+	/**
+	 * The magic number starting every object stream.
+	 */
+	public static final int MAGIC = ObjectStreamConstants.STREAM_MAGIC & 0xFFFF;
+
+	/**
+	 * Default number of messages after which the stream is reset.
+	 */
+	public static final int DEFAULT_RESET_INTERVAL = 1024;
+
+	/**
+	 * Default number of bytes after which the stream is reset.
+	 */
+	public static final long DEFAULT_RESET_BYTES = 1024 * 1024;
+
+	/**
+	 * Number of messages after which the stream is reset; 0 for never.
+	 */
+	private final int resetInterval;
+
+	/**
+	 * Number of bytes after which the stream is reset; 0 for never.
+	 */
+	private final long resetBytes;
+
+	/**
+	 * Constructs a codec resetting its streams with the default policy.
+	 */
+	public SerializationCodec()
+	{
+		this(DEFAULT_RESET_INTERVAL, DEFAULT_RESET_BYTES);
+	}
+
+	/**
+	 * Constructs a codec resetting its streams after the given number of
+	 * messages or bytes, whichever comes first. Giving 0 for both restores
+	 * the original behaviour of never resetting, whose memory use grows
+	 * with the traffic of the connection.
+	 *
+	 * @param resetInterval messages between resets, 0 for no limit.
+	 * @param resetBytes    bytes between resets, 0 for no limit.
+	 */
+	public SerializationCodec(int resetInterval, long resetBytes)
+	{
+		if (resetInterval < 0 || resetBytes < 0)
+			throw new IllegalArgumentException("negative reset threshold");
+
+		this.resetInterval = resetInterval;
+		this.resetBytes = resetBytes;
+	}
+
+	/**
+	 * @return the number of messages between resets, 0 for no limit.
+	 */
+	public int getResetInterval()
+	{
+		return resetInterval;
+	}
+
+	/**
+	 * @return the number of bytes between resets, 0 for no limit.
+	 */
+	public long getResetBytes()
+	{
+		return resetBytes;
+	}
+
+	public int getMagic()
+	{
+		return MAGIC;
+	}
+
+	/**
+	 * @return 4: the magic number and the stream version.
+	 */
+	public int getHeaderLength()
+	{
+		return 4;
+	}
+
+	public MessageWriter newWriter(OutputStream out) throws IOException
+	{
+		final CountingOutputStream counter = new CountingOutputStream(out);
+		final ObjectOutputStream output = new ObjectOutputStream(counter);
+		output.flush();
+
+		return new MessageWriter()
+		{
+			/**
+			 * Messages written since the last reset.
+			 */
+			private int messages = 0;
+
+			/**
+			 * Byte count of the stream at the last reset.
+			 */
+			private long resetAt = counter.getCount();
+
+			/**
+			 * Set after pre-encoded bytes were copied into the stream: the
+			 * peer registered objects this stream does not know about, so
+			 * both tables must be cleared before the next object.
+			 */
+			private boolean needsReset = false;
+
+			public void writeMessage(Object msg) throws IOException
+			{
+				if (needsReset)
+				{
+					output.reset();
+					needsReset = false;
+				}
+
+				output.writeObject(msg);
+				messages++;
+
+				if ((resetInterval > 0 && messages >= resetInterval)
+					|| (resetBytes > 0 && counter.getCount() - resetAt >= resetBytes))
+				{
+					output.reset();
+					messages = 0;
+					resetAt = counter.getCount();
+				}
+				output.flush();
+			}
+
+			public void writeEncoded(EncodedMessage msg) throws IOException
+			{
+				if (!(msg.getCodec() instanceof SerializationCodec)
+					|| msg.bytes() == null)
+				{
+					writeMessage(msg.getMessage());
+					return;
+				}
+
+				// The bytes were written by a fresh stream: after a reset,
+				// the peer decodes them exactly as that stream's content.
+				output.reset();
+				output.flush();
+				counter.write(msg.bytes());
+				counter.flush();
+
+				needsReset = true;
+				messages = 0;
+				resetAt = counter.getCount();
+			}
+
+			public void close() throws IOException
+			{
+				output.close();
+			}
+		};
+	}
+
+	/**
+	 * Serializes the message with a fresh object stream and keeps the bytes
+	 * following the stream header, which any stream can carry right after
+	 * a reset.
+	 */
+	public EncodedMessage encode(Object msg) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		ObjectOutputStream output = new ObjectOutputStream(bytes);
+		int header = bytes.size();
+		output.writeObject(msg);
+		output.close();
+
+		byte[] all = bytes.toByteArray();
+		byte[] body = new byte[all.length - header];
+		System.arraycopy(all, header, body, 0, body.length);
+		return new EncodedMessage(this, msg, body);
+	}
+
+	public MessageReader newReader(InputStream in) throws IOException
+	{
+		final ObjectInputStream input = new ObjectInputStream(in);
+
+		return new MessageReader()
+		{
+			public Object readMessage()
+				throws IOException, ClassNotFoundException
+			{
+				return input.readObject();
+			}
+
+			public void close() throws IOException
+			{
+				input.close();
+			}
+		};
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * Counts the bytes written through it.
+	 */
+	static final class CountingOutputStream extends FilterOutputStream
+	{
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		long getCount()
+		{
+			return count;
+		}
+
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
+// End of SerializationCodec Class
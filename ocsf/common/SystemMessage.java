@@ -0,0 +1,62 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.io.Serializable;
+
+/**
+ * A <code> SystemMessage </code> is a notice coming from the framework or
+ * from the server itself rather than from a user. It displays as its text,
+ * so clients that only call <code>toString</code> on what they receive
+ * show it like any other line.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see MessageType#SYSTEM
+ */
+public final class SystemMessage implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The text of the notice.
+	 */
+	private final String text;
+
+	/**
+	 * Constructs a notice.
+	 *
+	 * @param text the text of the notice.
+	 */
+	public SystemMessage(String text)
+	{
+		this.text = text;
+	}
+
+	/**
+	 * @return the text of the notice.
+	 */
+	public String getText()
+	{
+		return text;
+	}
+
+	public boolean equals(Object other)
+	{
+		return other instanceof SystemMessage
+			&& text.equals(((SystemMessage) other).text);
+	}
+
+	public int hashCode()
+	{
+		return text.hashCode();
+	}
+
+	public String toString()
+	{
+		return text;
+	}
+}
+// End of SystemMessage Class
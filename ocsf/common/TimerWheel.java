@@ -0,0 +1,239 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+/**
+ * A <code> TimerWheel </code> runs periodic checks for any number of
+ * connections with a single thread. Tasks are hashed into a ring of slots
+ * by their due time; each tick the thread runs the tasks due in the
+ * current slot, so scheduling and firing cost the same however many tasks
+ * are pending. A task returns the delay until it wants to run again, which
+ * lets a connection check its idle time lazily rather than rescheduling
+ * itself on every message.<p>
+ *
+ * Tasks run on the wheel thread and must not block. Work that may block,
+ * such as writing to a socket, is handed to <code>offload</code>.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+public final class TimerWheel
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The wheel shared by all servers and clients of the process.
+	 */
+	private static TimerWheel shared;
+
+	// INNER TYPES ******************************************************
+
+	/**
+	 * A task run by the wheel.
+	 */
+	public interface Task
+	{
+		/**
+		 * Runs the task.
+		 *
+		 * @param now the current time, from <code>System.nanoTime</code>.
+		 * @return the delay in milliseconds before the task runs again, or a
+		 * negative value to drop it.
+		 */
+		long run(long now);
+	}
+
+	/**
+	 * A task waiting in a slot.
+	 */
+	private static final class Entry
+	{
+		final Task task;
+		long dueTick;
+
+		Entry(Task task, long dueTick)
+		{
+			this.task = task;
+			this.dueTick = dueTick;
+		}
+	}
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The length of a tick, in milliseconds.
+	 */
+	private final long tickMillis;
+
+	/**
+	 * The slots, indexed by due tick modulo their number. Owned by the
+	 * wheel thread.
+	 */
+	private final ArrayDeque<Entry>[] slots;
+
+	/**
+	 * Tasks scheduled by other threads and not yet placed in a slot.
+	 */
+	private final ConcurrentLinkedQueue<Entry> pending =
+		new ConcurrentLinkedQueue<Entry>();
+
+	/**
+	 * The tick being processed. Only advanced by the wheel thread.
+	 */
+	private volatile long currentTick = 0;
+
+	/**
+	 * The time of tick 0.
+	 */
+	private final long start = System.nanoTime();
+
+	/**
+	 * Runs the work handed off by tasks.
+	 */
+	private final ExecutorService offloaded;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a wheel and starts its thread.
+	 *
+	 * @param name       the name of the wheel thread.
+	 * @param tickMillis the resolution of the wheel, in milliseconds.
+	 * @param slotCount  the number of slots, a power of two.
+	 */
+	public TimerWheel(String name, long tickMillis, int slotCount)
+	{
+		if (Integer.bitCount(slotCount) != 1)
+			throw new IllegalArgumentException("slot count must be a power of two");
+
+		this.tickMillis = tickMillis;
+		@SuppressWarnings("unchecked")
+		ArrayDeque<Entry>[] slots = (ArrayDeque<Entry>[]) new ArrayDeque<?>[slotCount];
+		for (int i = 0; i < slotCount; i++)
+			slots[i] = new ArrayDeque<Entry>();
+		this.slots = slots;
+
+		this.offloaded = Executors.newCachedThreadPool(runnable ->
+		{
+			Thread thread = new Thread(runnable, name + " worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		Thread thread = new Thread(this::turn, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Schedules a task. May be called from any thread.
+	 *
+	 * @param task        the task.
+	 * @param delayMillis the delay before its first run.
+	 */
+	public void schedule(Task task, long delayMillis)
+	{
+		pending.add(new Entry(task, currentTick + ticksFor(delayMillis)));
+	}
+
+	/**
+	 * Runs work that may block, such as a write, off the wheel thread.
+	 *
+	 * @param work the work to run.
+	 */
+	public void offload(Runnable work)
+	{
+		offloaded.execute(work);
+	}
+
+	/**
+	 * @return the number of ticks covering a delay, at least one.
+	 */
+	private long ticksFor(long delayMillis)
+	{
+		return Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+	}
+
+	/**
+	 * Runs on the wheel thread: advances one tick at a time and runs the
+	 * tasks due.
+	 */
+	private void turn()
+	{
+		int mask = slots.length - 1;
+		long tick = 0;
+		while (true)
+		{
+			// Sleep until the next tick is due.
+			long due = start + (tick + 1) * tickMillis * 1000000;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0)
+			{
+				try
+				{
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				catch (InterruptedException ex) {}
+			}
+			currentTick = ++tick;
+
+			// A task scheduled while the tick advanced may already be due in
+			// a slot this thread has passed: run it now, not a turn later.
+			Entry entry;
+			while ((entry = pending.poll()) != null)
+			{
+				entry.dueTick = Math.max(entry.dueTick, tick);
+				slots[(int) (entry.dueTick & mask)].add(entry);
+			}
+
+			ArrayDeque<Entry> slot = slots[(int) (tick & mask)];
+			for (int n = slot.size(); n > 0; n--)
+			{
+				entry = slot.poll();
+				if (entry.dueTick > tick)
+				{
+					// Due in a later turn of the wheel.
+					slot.add(entry);
+					continue;
+				}
+
+				long next;
+				try
+				{
+					next = entry.task.run(System.nanoTime());
+				}
+				catch (RuntimeException ex)
+				{
+					next = -1;
+				}
+				if (next >= 0)
+				{
+					entry.dueTick = tick + ticksFor(next);
+					slots[(int) (entry.dueTick & mask)].add(entry);
+				}
+			}
+		}
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Returns the wheel shared by the process, with a resolution of 100 ms,
+	 * created on first use.
+	 *
+	 * @return the shared wheel.
+	 */
+	public static synchronized TimerWheel shared()
+	{
+		if (shared == null)
+			shared = new TimerWheel("OCSF timer wheel", 100, 512);
+		return shared;
+	}
+}
+// End of TimerWheel Class
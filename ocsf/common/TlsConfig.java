@@ -0,0 +1,274 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.*;
+
+/**
+ * A <code> TlsConfig </code> encrypts the connections of a client or a
+ * server with TLS. It holds a single SSL context, and with it the session
+ * cache: a client connecting again to a server it already talked to
+ * resumes its session instead of going through a full handshake, which
+ * spares the server the signature with its private key and makes a
+ * reconnect storm after a restart far cheaper. A configuration must thus
+ * be kept for the life of the application; creating one per connection
+ * loses every session.<p>
+ *
+ * The cipher suites and protocol versions can be narrowed; by default
+ * those the provider enables are offered. A client checks that the
+ * certificate of the server names the host it connects to.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+public final class TlsConfig
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The context creating the sockets, holding the keys, the trusted
+	 * certificates and the session caches.
+	 */
+	private final SSLContext context;
+
+	/**
+	 * The cipher suites and protocols offered, in order of preference;
+	 * null for the provider's defaults.
+	 */
+	private volatile String[] cipherSuites;
+	private volatile String[] protocols;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a configuration using an initialized context.
+	 *
+	 * @param context the context, with keys for a server and trusted
+	 *                certificates for a client.
+	 */
+	public TlsConfig(SSLContext context)
+	{
+		this.context = context;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the context creating the sockets.
+	 */
+	public SSLContext getContext()
+	{
+		return context;
+	}
+
+	/**
+	 * Restricts the cipher suites offered to the given ones. The change
+	 * applies to connections opened afterwards.
+	 *
+	 * @param suites the suites in order of preference, or none for the
+	 *               provider's defaults.
+	 * @exception IllegalArgumentException if a suite is not supported.
+	 */
+	public void setCipherSuites(String... suites)
+	{
+		this.cipherSuites = checked(suites,
+			context.getSupportedSSLParameters().getCipherSuites(), "cipher suite");
+	}
+
+	/**
+	 * @return the cipher suites offered, or null for the provider's
+	 * defaults.
+	 */
+	public String[] getCipherSuites()
+	{
+		String[] suites = cipherSuites;
+		return suites == null ? null : suites.clone();
+	}
+
+	/**
+	 * Restricts the protocol versions offered to the given ones, such as
+	 * "TLSv1.3". The change applies to connections opened afterwards.
+	 *
+	 * @param versions the versions, or none for the provider's defaults.
+	 * @exception IllegalArgumentException if a version is not supported.
+	 */
+	public void setProtocols(String... versions)
+	{
+		this.protocols = checked(versions,
+			context.getSupportedSSLParameters().getProtocols(), "protocol");
+	}
+
+	/**
+	 * @return the protocol versions offered, or null for the provider's
+	 * defaults.
+	 */
+	public String[] getProtocols()
+	{
+		String[] versions = protocols;
+		return versions == null ? null : versions.clone();
+	}
+
+	/**
+	 * Sizes the session caches of both sides. A session can be resumed
+	 * while it is in the cache and younger than the timeout.
+	 *
+	 * @param size           the number of sessions kept; 0 for no limit.
+	 * @param timeoutSeconds how long a session can be resumed; 0 for no
+	 *                       limit.
+	 */
+	public void setSessionCache(int size, int timeoutSeconds)
+	{
+		for (SSLSessionContext sessions : new SSLSessionContext[] {
+			context.getServerSessionContext(), context.getClientSessionContext() })
+		{
+			sessions.setSessionCacheSize(size);
+			sessions.setSessionTimeout(timeoutSeconds);
+		}
+	}
+
+	/**
+	 * Creates an unbound server socket. The handshake with each client is
+	 * done by the first read of the connection, on the thread setting it
+	 * up.
+	 *
+	 * @return the socket.
+	 * @exception IOException if it cannot be created.
+	 */
+	public ServerSocket newServerSocket() throws IOException
+	{
+		SSLServerSocket socket =
+			(SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+		SSLParameters parameters = socket.getSSLParameters();
+		configure(parameters);
+		socket.setSSLParameters(parameters);
+		return socket;
+	}
+
+	/**
+	 * Connects to a server and completes the handshake, resuming the
+	 * session of an earlier connection to the same host and port if it is
+	 * still cached. <code>TCP_NODELAY</code> is left set.
+	 *
+	 * @param host the server's host name.
+	 * @param port the port number.
+	 * @return the connected socket.
+	 * @exception IOException if the connection or the handshake fails.
+	 */
+	public Socket newSocket(String host, int port) throws IOException
+	{
+		SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+		try
+		{
+			// The handshake's small flights each wait for the server:
+			// Nagle's algorithm would hold them for a delayed
+			// acknowledgement. The caller sets the option it wants after.
+			socket.setTcpNoDelay(true);
+			SSLParameters parameters = socket.getSSLParameters();
+			configure(parameters);
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			socket.setSSLParameters(parameters);
+			socket.startHandshake();
+		}
+		catch (IOException | RuntimeException ex)
+		{
+			socket.close();
+			throw ex;
+		}
+		return socket;
+	}
+
+	/**
+	 * Applies the suites and protocols chosen to a socket's parameters.
+	 */
+	private void configure(SSLParameters parameters)
+	{
+		String[] suites = cipherSuites, versions = protocols;
+		if (suites != null)
+			parameters.setCipherSuites(suites);
+		if (versions != null)
+			parameters.setProtocols(versions);
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * Creates a configuration from key store files. A server needs a key
+	 * store holding its private key and certificate; a client needs a
+	 * trust store holding the certificate of the server or of the
+	 * authority that signed it, unless that authority is trusted by the
+	 * Java runtime. The file types are detected.
+	 *
+	 * @param keyStore      the key store file, or null if none.
+	 * @param keyPassword   its password, also that of the key.
+	 * @param trustStore    the trust store file, or null for the runtime's
+	 *                      trusted authorities.
+	 * @param trustPassword its password.
+	 * @return the configuration.
+	 * @exception IOException if a file cannot be read.
+	 * @exception GeneralSecurityException if a store cannot be used.
+	 */
+	public static TlsConfig load(String keyStore, char[] keyPassword, String trustStore,
+		char[] trustPassword) throws IOException, GeneralSecurityException
+	{
+		KeyManager[] keys = null;
+		if (keyStore != null)
+		{
+			KeyManagerFactory factory =
+				KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			factory.init(KeyStore.getInstance(new File(keyStore), keyPassword), keyPassword);
+			keys = factory.getKeyManagers();
+		}
+
+		TrustManager[] trust = null;
+		if (trustStore != null)
+		{
+			TrustManagerFactory factory =
+				TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			factory.init(KeyStore.getInstance(new File(trustStore), trustPassword));
+			trust = factory.getTrustManagers();
+		}
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys, trust, null);
+		return new TlsConfig(context);
+	}
+
+	/**
+	 * Creates a configuration from the standard system properties of the
+	 * Java runtime: <code>javax.net.ssl.keyStore</code>,
+	 * <code>javax.net.ssl.keyStorePassword</code>,
+	 * <code>javax.net.ssl.trustStore</code> and
+	 * <code>javax.net.ssl.trustStorePassword</code>.
+	 *
+	 * @return the configuration.
+	 * @exception GeneralSecurityException if the stores cannot be used.
+	 */
+	public static TlsConfig fromSystemProperties() throws GeneralSecurityException
+	{
+		return new TlsConfig(SSLContext.getDefault());
+	}
+
+	/**
+	 * Checks that every value asked for is supported.
+	 *
+	 * @return a copy of the values, or null if none was given.
+	 */
+	private static String[] checked(String[] values, String[] supported, String kind)
+	{
+		if (values == null || values.length == 0)
+			return null;
+
+		List<String> known = Arrays.asList(supported);
+		for (String value : values)
+			if (!known.contains(value))
+				throw new IllegalArgumentException("unsupported " + kind + ": " + value);
+		return values.clone();
+	}
+}
+// End of TlsConfig Class
@@ -0,0 +1,115 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.lang.reflect.*;
+
+/**
+ * The <code> VirtualThreads </code> class creates the reader threads of the
+ * framework either as platform threads or as virtual threads. Virtual
+ * threads let a blocking <code>readObject</code> loop run per connection
+ * while costing almost nothing when the connection is idle.<p>
+ *
+ * Virtual threads are part of the platform from Java 21. The framework is
+ * compiled for older releases as well, so they are looked up reflectively;
+ * <code>isSupported</code> tells whether the running JVM provides them.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+public final class VirtualThreads
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * <code>Thread.ofVirtual()</code>, or null if not available.
+	 */
+	private static final Method OF_VIRTUAL;
+
+	/**
+	 * <code>Thread.Builder.name(String)</code>.
+	 */
+	private static final Method NAME;
+
+	/**
+	 * <code>Thread.Builder.unstarted(Runnable)</code>.
+	 */
+	private static final Method UNSTARTED;
+
+	static
+	{
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+
+			// Fails where virtual threads are still a preview feature.
+			ofVirtual.invoke(null);
+		}
+		catch (ReflectiveOperationException | RuntimeException ex)
+		{
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private VirtualThreads() {}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return true if the running JVM can create virtual threads.
+	 */
+	public static boolean isSupported()
+	{
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Creates a thread that is not started yet.
+	 *
+	 * @param virtual true for a virtual thread, false for a platform thread.
+	 * @param name    the name of the thread.
+	 * @param task    the task the thread runs.
+	 * @return the new thread.
+	 * @exception UnsupportedOperationException if a virtual thread is asked
+	 *  for and the JVM cannot create one.
+	 */
+	public static Thread newThread(boolean virtual, String name, Runnable task)
+	{
+		if (!virtual)
+			return new Thread(task, name);
+
+		if (!isSupported())
+			throw new UnsupportedOperationException(
+				"virtual threads require Java 21 or later");
+
+		try
+		{
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+			return (Thread) UNSTARTED.invoke(builder, task);
+		}
+		catch (InvocationTargetException ex)
+		{
+			throw new IllegalStateException(ex.getCause());
+		}
+		catch (IllegalAccessException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+}
+// End of VirtualThreads Class
@@ -0,0 +1,302 @@
+// This file contains material supporting sections 3.7 and 3.8 of the
+// textbook: "Object Oriented Software Engineering" and is issued under the
+// open-source
+
+package ocsf.common;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A <code> WriteBatcher </code> is a policy coalescing the messages sent on
+ * a connection into fewer socket writes. The bytes of a message are held
+ * until the batch reaches a byte threshold or the window since its first
+ * message ends, whichever comes first; the whole batch then goes out in one
+ * write. A burst of small messages thus costs one system call instead of
+ * one each, at the price of up to one window of added latency. An explicit
+ * flush sends the batch at once.<p>
+ *
+ * Batching replaces what Nagle's algorithm does in the kernel, and the two
+ * delays add up: connections that batch should also set
+ * <code>TCP_NODELAY</code>.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ */
+public final class WriteBatcher
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The thread ending the windows of every batcher of the process.
+	 */
+	private static ScheduledExecutorService timer;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The longest a message waits for others, in nanoseconds.
+	 */
+	private final long windowNanos;
+
+	/**
+	 * The number of bytes that sends a batch before its window ends.
+	 */
+	private final int maxBytes;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs a batching policy.
+	 *
+	 * @param windowMicros the longest a message waits for others, in
+	 *                     microseconds.
+	 * @param maxBytes     the batch size that is sent without waiting.
+	 */
+	public WriteBatcher(long windowMicros, int maxBytes)
+	{
+		if (windowMicros <= 0 || maxBytes <= 0)
+			throw new IllegalArgumentException("window and size must be positive");
+
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBytes = maxBytes;
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return the longest a message waits for others, in microseconds.
+	 */
+	public long getWindowMicros()
+	{
+		return TimeUnit.NANOSECONDS.toMicros(windowNanos);
+	}
+
+	/**
+	 * @return the batch size that is sent without waiting.
+	 */
+	public int getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Wraps the stream of a connection. Codec writers flush after each
+	 * message; the returned stream turns those flushes into batches.
+	 *
+	 * @param out the stream to the socket.
+	 * @return the batching stream.
+	 */
+	public Output wrap(OutputStream out)
+	{
+		return new Output(out);
+	}
+
+	/**
+	 * Runs a task once the window of a batch started now ends. The task
+	 * runs on a timer thread shared by all batchers and must not block.
+	 *
+	 * @param task the task sending the batch.
+	 */
+	public void schedule(Runnable task)
+	{
+		timer().schedule(task, windowNanos, TimeUnit.NANOSECONDS);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A stream holding the bytes written to it until the batch is full or
+	 * its window ends. Thread-safe.
+	 */
+	public final class Output extends FilterOutputStream
+	{
+		private final byte[] buffer = new byte[Math.max(maxBytes, 8192)];
+		private int count = 0;
+
+		/**
+		 * Guards the buffer. Not a monitor, so that a virtual thread
+		 * blocked in a write does not pin its carrier thread.
+		 */
+		private final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * True while the end of the window is scheduled.
+		 */
+		private boolean scheduled = false;
+
+		/**
+		 * The failure of a write made when a window ended, reported to the
+		 * next caller.
+		 */
+		private IOException failure;
+
+		Output(OutputStream out)
+		{
+			super(out);
+		}
+
+		public void write(int b) throws IOException
+		{
+			lock.lock();
+			try
+			{
+				if (count == buffer.length)
+					drain();
+				buffer[count++] = (byte) b;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			lock.lock();
+			try
+			{
+				if (len > buffer.length - count)
+				{
+					drain();
+					if (len > buffer.length)
+					{
+						out.write(b, off, len);
+						return;
+					}
+				}
+				System.arraycopy(b, off, buffer, count, len);
+				count += len;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Ends a message: sends the batch if it is full, otherwise makes
+		 * sure it is sent when its window ends.
+		 *
+		 * @exception IOException if the batch, or one sent earlier when its
+		 * window ended, could not be written.
+		 */
+		public void flush() throws IOException
+		{
+			lock.lock();
+			try
+			{
+				report();
+				if (count >= maxBytes)
+					flushNow();
+				else if (count > 0 && !scheduled)
+				{
+					scheduled = true;
+					// The write may block: the timer thread only hands it
+					// off.
+					schedule(() -> TimerWheel.shared().offload(this::windowEnded));
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Sends the batch at once.
+		 *
+		 * @exception IOException if it could not be written.
+		 */
+		public void flushNow() throws IOException
+		{
+			lock.lock();
+			try
+			{
+				report();
+				drain();
+				out.flush();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		public void close() throws IOException
+		{
+			try
+			{
+				flushNow();
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+
+		/**
+		 * Sends the batch whose window has ended.
+		 */
+		private void windowEnded()
+		{
+			lock.lock();
+			try
+			{
+				scheduled = false;
+				drain();
+				out.flush();
+			}
+			catch (IOException ex)
+			{
+				failure = ex;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private void drain() throws IOException
+		{
+			if (count > 0)
+			{
+				int n = count;
+				count = 0;
+				out.write(buffer, 0, n);
+			}
+		}
+
+		private void report() throws IOException
+		{
+			IOException ex = failure;
+			if (ex != null)
+			{
+				failure = null;
+				throw ex;
+			}
+		}
+	}
+
+	// CLASS METHODS ****************************************************
+
+	/**
+	 * @return the timer shared by the batchers, created on first use.
+	 */
+	private static synchronized ScheduledExecutorService timer()
+	{
+		if (timer == null)
+		{
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable ->
+			{
+				Thread thread = new Thread(runnable, "OCSF write batcher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			timer = executor;
+		}
+		return timer;
+	}
+}
+// End of WriteBatcher Class
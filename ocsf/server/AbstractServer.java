@@ -5,12 +5,19 @@ package ocsf.server;
 
 import java.net.*;
 import java.io.*;
+import java.util.IdentityHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ocsf.common.*;
 
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
 * for connection attempts from clients. When a connection attempt occurs
 * it creates a new <code> ConnectionToClient </code> instance which
-* runs as a thread. When a client is thus connected to the
+* is read by a thread of its own (a platform or a virtual thread), or,
+* when the server is constructed with the <code> SELECTOR </code> engine,
+* is served by a small pool of selector threads. When a client is thus connected to the
 * server, the two programs can then exchange <code> Object </code>
 * instances.<p>
 *
@@ -29,20 +36,22 @@ import java.io.*;
 * @author Paul Holden
 * @version September 2022 (2.13)
 * @see ConnectionToClient
+* @see ServerEngine
 */
 public abstract class AbstractServer implements Runnable
 {
 	// INSTANCE VARIABLES *********************************************
 
 	/**
-	 * The server socket: listens for clients who want to connect.
+	 * The server socket: listens for clients who want to connect. Closed,
+	 * but kept, while the server is stopped.
 	 */
-	private ServerSocket serverSocket = null;
+	private volatile ServerSocket serverSocket = null;
 
 	/**
 	 * The connection listener thread.
 	 */
-	private Thread connectionListener;
+	private volatile Thread connectionListener;
 
 	/**
 	 * The port number
@@ -50,56 +59,190 @@ public abstract class AbstractServer implements Runnable
 	private int port;
 
 	/**
-	 * The server timeout while for accepting connections.
-	 * After timing out, the server will check to see if a command to
-	 * stop the server has been issued; it not it will resume accepting
-	 * connections.
-	 * Set to half a second by default.
+	 * The maximum queue length; i.e. the maximum number of clients that
+	 * can be waiting to connect.
+	 * Set to 4096 by default, so that a burst of reconnecting clients is
+	 * queued rather than refused.
 	 */
-	private int timeout = 500;
+	private int backlog = 4096;
 
 	/**
-	 * The maximum queue length; i.e. the maximum number of clients that
-	 * can be waiting to connect.
-	 * Set to 10 by default.
+	 * The codecs this server can speak. Each client chooses one of them
+	 * with the header it sends first.
+	 */
+	private volatile MessageCodec[] codecs = new MessageCodec[] {
+		new BinaryCodec(), new SerializationCodec() };
+
+	/**
+	 * The capacity of each connection's outbound queue. Set to 0 by
+	 * default, meaning that messages are written by the sending thread.
+	 */
+	private volatile int outboundCapacity = 0;
+
+	/**
+	 * What a connection does when its outbound queue is full.
+	 */
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+
+	/**
+	 * How long a client may stay silent before it is pinged, and before it
+	 * is disconnected, in milliseconds. 0 disables each.
+	 */
+	private volatile long heartbeatInterval = 0;
+	private volatile long idleTimeout = 0;
+
+	/**
+	 * The message rate limits, each as the time to replenish one token and
+	 * the time to replenish a full burst but one, in ns. An interval of 0
+	 * disables the limit.
+	 */
+	private volatile long clientInterval = 0;
+	private volatile long clientTolerance = 0;
+	private volatile long globalInterval = 0;
+	private volatile long globalTolerance = 0;
+
+	/**
+	 * What happens to a message over the rate limits.
+	 */
+	private volatile RateLimitAction rateLimitAction = RateLimitAction.DELAY;
+
+	/**
+	 * The tokens shared by all clients under the global rate limit.
+	 */
+	private final TokenBucket globalBucket = new TokenBucket();
+
+	/**
+	 * The threads draining the outbound queues of thread-driven
+	 * connections; created when first needed.
+	 */
+	private ExecutorService outboundWriters = null;
+
+	/**
+	 * The threads setting up the streams of connections accepted by a
+	 * thread-driven server, so that the listening thread only accepts
+	 * sockets; created when first needed. At most
+	 * <code>handshakeThreads</code> run at once, and at most
+	 * <code>backlog</code> accepted sockets wait for one; beyond that the
+	 * listening thread waits too, and connection attempts queue up in the
+	 * operating system's backlog.
+	 */
+	private ExecutorService handshakes = null;
+
+	/**
+	 * The number of handshake threads. Set to 16 by default.
 	 */
-	private int backlog = 10;
+	private int handshakeThreads = 16;
 
 	/**
-	 * The thread group associated with client threads. Each member of the
-	 * thread group is a <code> ConnectionToClient </code>.
+	 * How long a client may take to send its stream header, in
+	 * milliseconds; 0 waits forever. Set to 10 seconds by default.
 	 */
-	private ThreadGroup clientThreadGroup;
+	private volatile int handshakeTimeout = 10000;
+
+	/**
+	 * The batching of the writes to clients; null to write each message at
+	 * once.
+	 */
+	private volatile WriteBatcher writeBatching;
+
+	/**
+	 * True to set <code>TCP_NODELAY</code> on client connections.
+	 */
+	private volatile boolean tcpNoDelay = false;
+
+	/**
+	 * The TLS configuration of the listening socket; null for plain TCP.
+	 */
+	private volatile TlsConfig tls;
+
+	/**
+	 * The connections currently open, whatever the engine reading them.
+	 * Its lock also guards the outbound writers and the handshake threads.
+	 */
+	private final ClientRegistry clients = new ClientRegistry();
+
+	/**
+	 * What the server has done so far.
+	 */
+	private final ServerMetrics metrics = new ServerMetrics(this);
 
 	/**
 	 * Indicates if the listening thread is ready to stop.  Set to
 	 * false by default.
 	 */
-	private boolean readyToStop = false;
+	private volatile boolean readyToStop = false;
+
+	/**
+	 * Indicates if messages from different clients may be handled at the
+	 * same time. Set to false by default, in which case every call to
+	 * <code>handleMessageFromClient</code> holds the dispatch lock.
+	 */
+	private volatile boolean concurrentDispatch = false;
+
+	/**
+	 * The lock serializing the calls to <code>handleMessageFromClient</code>
+	 * outside concurrent dispatch mode. Not the server's monitor: a virtual
+	 * thread blocked on a monitor, or doing I/O while holding one, pins its
+	 * carrier thread.
+	 */
+	private final ReentrantLock dispatchLock = new ReentrantLock();
+
+	/**
+	 * Held while the server closes, so that a connection set up meanwhile
+	 * sees whether it must be closed too.
+	 */
+	private final ReentrantLock closeLock = new ReentrantLock();
+
+	/**
+	 * The engine driving the client connections, chosen at construction.
+	 */
+	private final ServerEngine engine;
+
+	/**
+	 * The selector engine in use while the server is open with the
+	 * <code> SELECTOR </code> engine; null otherwise.
+	 */
+	private volatile SelectorEngine selectorEngine = null;
+
+	/**
+	 * The number of selector threads used by the <code> SELECTOR </code>
+	 * engine. Set to half the available processors by default.
+	 */
+	private int selectorThreads =
+		Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
 
 
 	// CONSTRUCTOR ******************************************************
 
 	/**
-	 * Constructs a new server.
+	 * Constructs a new server with one thread per client connection.
 	 *
 	 * @param port the port number on which to listen.
 	 */
 	public AbstractServer(int port)
+	{
+		this(port, ServerEngine.THREAD_PER_CONNECTION);
+	}
+
+	/**
+	 * Constructs a new server driven by the given engine.
+	 *
+	 * @param port the port number on which to listen.
+	 * @param engine the engine serving the client connections.
+	 * @exception UnsupportedOperationException if virtual threads are
+	 * asked for and the JVM does not provide them.
+	 */
+	public AbstractServer(int port, ServerEngine engine)
 	{
 		this.port = port;
+		this.engine = engine;
 
-		this.clientThreadGroup =
-			new ThreadGroup("ConnectionToClient threads")
-			{
-				// All uncaught exceptions in connection threads will
-				// be sent to the clientException callback method.
-				public void uncaughtException(
-					Thread thread, Throwable exception)
-				{
-					clientException((ConnectionToClient)thread, exception);
-				}
-			};
+		if (engine == ServerEngine.VIRTUAL_THREAD_PER_CONNECTION
+			&& !VirtualThreads.isSupported())
+		{
+			throw new UnsupportedOperationException(
+				"virtual threads require Java 21 or later");
+		}
 	}
 
 
@@ -117,12 +260,34 @@ public abstract class AbstractServer implements Runnable
 	{
 		if (!isListening())
 		{
-			if (serverSocket == null)
+			if (engine == ServerEngine.SELECTOR)
 			{
-				serverSocket = new ServerSocket(getPort(), backlog);
+				if (selectorEngine == null)
+				{
+					selectorEngine = new SelectorEngine(this, selectorThreads);
+				}
+				selectorEngine.openServerChannel(getPort(), backlog);
+			}
+			else
+			{
+				if (serverSocket == null || serverSocket.isClosed())
+				{
+					TlsConfig tls = this.tls;
+					ServerSocket socket = tls == null ? new ServerSocket() : tls.newServerSocket();
+					try
+					{
+						socket.setReuseAddress(true);
+						socket.bind(new InetSocketAddress(getPort()), backlog);
+					}
+					catch (IOException ex)
+					{
+						socket.close();
+						throw ex;
+					}
+					serverSocket = socket;
+				}
 			}
 
-			serverSocket.setSoTimeout(timeout);
 			readyToStop = false;
 			connectionListener = new Thread(this);
 			connectionListener.start();
@@ -130,11 +295,42 @@ public abstract class AbstractServer implements Runnable
 	}
 
 	/**
-	 * Causes the server to stop accepting new connections.
+	 * Causes the server to stop accepting new connections. The listening
+	 * socket is closed, which ends the wait for connections at once;
+	 * connection attempts are refused until the server listens again.
+	 * Clients already connected are kept.<p>
+	 *
+	 * Unless called by the listening thread or by a thread holding the
+	 * server's lock, which the hook methods may need, this method returns
+	 * once the listening thread has ended, so <code>listen</code> can be
+	 * called right after it.
 	 */
 	final public void stopListening()
 	{
 		readyToStop = true;
+
+		try
+		{
+			if (selectorEngine != null)
+				selectorEngine.closeServerChannel();
+			else if (serverSocket != null)
+				serverSocket.close();
+		}
+		catch (IOException ex) {}
+
+		Thread listener = connectionListener;
+		if (listener != null && listener != Thread.currentThread()
+			&& !Thread.holdsLock(this))
+		{
+			try
+			{
+				listener.join();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	/**
@@ -151,26 +347,64 @@ public abstract class AbstractServer implements Runnable
 	 */
 	final synchronized public void close() throws IOException
 	{
-		if (serverSocket == null)
+		closeLock.lock();
+		try
+		{
+			closeServer();
+		}
+		finally
+		{
+			closeLock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the server socket and the connections. Called by
+	 * <code>close</code> while holding the close lock.
+	 */
+	private void closeServer() throws IOException
+	{
+		if (serverSocket == null && selectorEngine == null)
 			return;
 		stopListening();
 		try
 		{
-			serverSocket.close();
+			if (selectorEngine != null)
+				selectorEngine.closeServerChannel();
+			else
+				serverSocket.close();
 		}
 		finally
 		{
 			// Close the client sockets of the already connected clients
-			Thread[] clientThreadList = getClientConnections();
-			for (int i=0; i<clientThreadList.length; i++)
+			ConnectionToClient[] clientList = clients.snapshot();
+			for (int i=0; i<clientList.length; i++)
 			{
 				try
 				{
-					((ConnectionToClient)clientThreadList[i]).close();
+					clientList[i].close();
 				}
 				// Ignore all exceptions when closing clients.
 				catch(Exception ex) {}
 			}
+			if (selectorEngine != null)
+			{
+				selectorEngine.shutdown();
+				selectorEngine = null;
+			}
+			synchronized(clients)
+			{
+				if (outboundWriters != null)
+				{
+					outboundWriters.shutdown();
+					outboundWriters = null;
+				}
+				if (handshakes != null)
+				{
+					handshakes.shutdown();
+					handshakes = null;
+				}
+			}
 			serverSocket = null;
 			serverClosed();
 		}
@@ -183,22 +417,55 @@ public abstract class AbstractServer implements Runnable
 	 * can be overriden, but if so it should still perform the general
 	 * function of sending to all clients, perhaps after some kind
 	 * of filtering is done. Any exception thrown while
-	 * sending the message to a particular client is ignored.
+	 * sending the message to a particular client is ignored.<p>
+	 *
+	 * The message is encoded once per codec in use, not once per client;
+	 * every client then receives a copy of the same bytes. The clients are
+	 * read from the registry's current snapshot, without copying it.
 	 *
 	 * @param msg   Object The message to be sent
 	 */
 	public void sendToAllClients(Object msg)
 	{
-		Thread[] clientThreadList = getClientConnections();
+		long start = System.nanoTime();
+		ConnectionToClient[] clientList = clients.snapshot();
+		BroadcastEncoder encoder = new BroadcastEncoder(msg);
+
+		for (int i=0; i<clientList.length; i++)
+		{
+			try
+			{
+				clientList[i].sendToClient(encoder.encodeFor(clientList[i]));
+			}
+			catch (Exception ex) {}
+		}
+		metrics.recordBroadcast(System.nanoTime() - start);
+	}
+
+	/**
+	 * Sends a message to some of the clients, such as the members of a
+	 * group. As with <code>sendToAllClients</code>, the message is encoded
+	 * once per codec in use and any exception thrown while sending it to a
+	 * particular client is ignored.
+	 *
+	 * @param msg        the message to be sent.
+	 * @param recipients the clients to send it to.
+	 */
+	public void sendToClients(Object msg,
+		Iterable<ConnectionToClient> recipients)
+	{
+		long start = System.nanoTime();
+		BroadcastEncoder encoder = new BroadcastEncoder(msg);
 
-		for (int i=0; i<clientThreadList.length; i++)
+		for (ConnectionToClient client : recipients)
 		{
 			try
 			{
-				((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
+				client.sendToClient(encoder.encodeFor(client));
 			}
 			catch (Exception ex) {}
 		}
+		metrics.recordBroadcast(System.nanoTime() - start);
 	}
 
 
@@ -223,17 +490,11 @@ public abstract class AbstractServer implements Runnable
 	 * in this migth disconnect. New clients can also connect,
 	 * these later will not appear in the array.
 	 *
-	 * @return an array of <code>Thread</code> containing
-	 * <code>ConnectionToClient</code> instances.
+	 * @return an array of <code>ConnectionToClient</code> instances.
 	 */
-	synchronized final public Thread[] getClientConnections()
+	final public ConnectionToClient[] getClientConnections()
 	{
-		Thread[] clientThreadList = new
-			Thread[clientThreadGroup.activeCount()];
-
-		clientThreadGroup.enumerate(clientThreadList);
-
-		return clientThreadList;
+		return clients.snapshot().clone();
 	}
 
 	/**
@@ -243,7 +504,53 @@ public abstract class AbstractServer implements Runnable
 	 */
 	final public int getNumberOfClients()
 	{
-		return clientThreadGroup.activeCount();
+		return clients.size();
+	}
+
+	/**
+	 * Returns the metrics of this server: connections, message and byte
+	 * counts, and the time spent handling and broadcasting messages.
+	 *
+	 * @return the server's metrics.
+	 */
+	final public ServerMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Returns the open connection with the given id.
+	 *
+	 * @param id the id of the connection, see
+	 * <code>ConnectionToClient.getId</code>.
+	 * @return the connection, or null if none is open with this id.
+	 */
+	final public ConnectionToClient getClientConnection(long id)
+	{
+		return clients.get(id);
+	}
+
+	/**
+	 * Returns the open connection bound to the given login ID.
+	 *
+	 * @param loginID the login ID, see
+	 * <code>ConnectionToClient.setLoginID</code>.
+	 * @return the connection, or null if no open connection uses this
+	 * login ID.
+	 */
+	final public ConnectionToClient getClientConnection(String loginID)
+	{
+		return clients.getByLogin(loginID);
+	}
+
+	/**
+	 * Returns the engine serving the client connections.
+	 *
+	 * @return the engine chosen when the server was constructed.
+	 */
+	final public ServerEngine getEngine()
+	{
+		return engine;
 	}
 
 	/**
@@ -269,24 +576,22 @@ public abstract class AbstractServer implements Runnable
 	}
 
 	/**
-	 * Sets the timeout time when accepting connections.
-	 * The default is half a second. This means that stopping the
-	 * server may take up to timeout duration to actually stop.
-	 * The server must be stopped and restarted for the timeout
-	 * change to be effective.
+	 * Sets the timeout time when accepting connections. The listening
+	 * thread no longer polls: <code>stopListening</code> closes the
+	 * listening socket, which stops the server at once.
 	 *
 	 * @param timeout the timeout time in ms.
+	 * @deprecated has no effect.
 	 */
-	final public void setTimeout(int timeout)
-	{
-		this.timeout = timeout;
-	}
+	@Deprecated
+	final public void setTimeout(int timeout) {}
 
 	/**
 	 * Sets the maximum number of waiting connections accepted by the
-	 * operating system. The default is 20.
-	 * The server must be closed and restarted for the backlog
-	 * change to be in effect.
+	 * operating system. The default is 4096; the system may cap it, at
+	 * <code>net.core.somaxconn</code> on Linux.
+	 * The change takes effect the next time the server starts listening
+	 * after being stopped or closed.
 	 *
 	 * @param backlog the maximum number of connections.
 	 */
@@ -295,6 +600,383 @@ public abstract class AbstractServer implements Runnable
 		this.backlog = backlog;
 	}
 
+	/**
+	 * @return the maximum number of waiting connections asked of the
+	 * operating system.
+	 */
+	final public int getBacklog()
+	{
+		return backlog;
+	}
+
+	/**
+	 * Sets how long a new client may take to send the stream header that
+	 * opens the connection. A client that has not sent it in time is
+	 * disconnected before the server hears of it, so a client that
+	 * connects and stays silent holds a handshake thread, or nothing with
+	 * the selector engine, for a bounded time. The default is 10 seconds.
+	 * With the selector engine, it also bounds the wait for the rest of a
+	 * message whose codec cannot tell its length. The change applies to
+	 * clients connecting afterwards.
+	 *
+	 * @param timeout the timeout in ms; 0 waits forever.
+	 */
+	final public void setHandshakeTimeout(int timeout)
+	{
+		if (timeout < 0)
+			throw new IllegalArgumentException("negative timeout");
+
+		this.handshakeTimeout = timeout;
+	}
+
+	/**
+	 * @return how long a new client may take to send its stream header,
+	 * in ms; 0 if it may take forever.
+	 */
+	final public int getHandshakeTimeout()
+	{
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Coalesces the messages sent to a client within a window into one
+	 * write. A message is held until the batch reaches the given size or
+	 * the window since its first message ends;
+	 * <code>ConnectionToClient.flush</code> sends it at once. Trades a
+	 * little latency for fewer system calls when clients receive bursts,
+	 * such as busy rooms. Connections with an outbound queue write what
+	 * each drain of the queue took as one batch anyway. Off by default:
+	 * each message is written as it is sent. The change applies to clients
+	 * connecting afterwards.
+	 *
+	 * @param windowMicros the longest a message waits for others, in
+	 *                     microseconds; 0 writes each message at once.
+	 * @param maxBytes     the batch size that is written without waiting.
+	 */
+	final public void setWriteBatching(long windowMicros, int maxBytes)
+	{
+		this.writeBatching = windowMicros == 0 ? null : new WriteBatcher(windowMicros, maxBytes);
+	}
+
+	/**
+	 * @return the batching of the writes to clients, or null if each
+	 * message is written at once.
+	 */
+	final public WriteBatcher getWriteBatching()
+	{
+		return writeBatching;
+	}
+
+	/**
+	 * Chooses latency over packet count: with <code>TCP_NODELAY</code> set,
+	 * a small message is sent at once rather than held by Nagle's algorithm
+	 * until the previous one is acknowledged. Should be set with write
+	 * batching, which already coalesces the messages. The change applies
+	 * to clients connecting afterwards.
+	 *
+	 * @param on true to set <code>TCP_NODELAY</code> on client connections.
+	 */
+	final public void setTcpNoDelay(boolean on)
+	{
+		this.tcpNoDelay = on;
+	}
+
+	/**
+	 * @return true if <code>TCP_NODELAY</code> is set on client connections.
+	 */
+	final public boolean isTcpNoDelay()
+	{
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Encrypts the connections of clients with TLS. The handshake with a
+	 * client is done by a handshake thread and bounded by the handshake
+	 * timeout. The configuration keeps the sessions of the clients, so
+	 * those reconnecting, for instance after a restart of the server,
+	 * resume them instead of going through a full handshake. Only the
+	 * thread engines support TLS. The server must stop listening and
+	 * listen again for the change to be in effect.
+	 *
+	 * @param tls the configuration, with the server's key; null for plain
+	 *            TCP.
+	 * @exception IllegalStateException if the server uses the selector
+	 * engine.
+	 */
+	final public void setTls(TlsConfig tls)
+	{
+		if (tls != null && engine == ServerEngine.SELECTOR)
+			throw new IllegalStateException("TLS needs a thread engine");
+
+		this.tls = tls;
+	}
+
+	/**
+	 * @return the TLS configuration, or null if connections are plain TCP.
+	 */
+	final public TlsConfig getTls()
+	{
+		return tls;
+	}
+
+	/**
+	 * Sets the number of threads setting up new connections for the
+	 * thread engines; the selector engine reads stream headers without
+	 * blocking and needs none. Accepted sockets wait for a free thread, up
+	 * to the backlog; beyond that the server stops accepting until one is
+	 * free. The default is 16.
+	 * The server must be closed and restarted for the change to be
+	 * in effect.
+	 *
+	 * @param handshakeThreads the number of handshake threads.
+	 */
+	final public void setHandshakeThreads(int handshakeThreads)
+	{
+		this.handshakeThreads = Math.max(1, handshakeThreads);
+	}
+
+	/**
+	 * @return the number of threads setting up new connections for the
+	 * thread engines.
+	 */
+	final public int getHandshakeThreads()
+	{
+		return handshakeThreads;
+	}
+
+	/**
+	 * Sets the codecs this server accepts. A client whose stream header
+	 * matches none of them is disconnected. By default the binary codec
+	 * and the Java serialization codec are accepted. The change applies to
+	 * clients connecting afterwards.
+	 *
+	 * @param codecs the codecs accepted, with distinct magic numbers.
+	 */
+	final public void setCodecs(MessageCodec... codecs)
+	{
+		this.codecs = codecs.clone();
+	}
+
+	/**
+	 * @return the codecs this server accepts.
+	 */
+	final public MessageCodec[] getCodecs()
+	{
+		return codecs.clone();
+	}
+
+	/**
+	 * Gives every connection a bounded queue of outbound messages. A
+	 * message sent to a client is then only queued, and the queue is written
+	 * to the socket by a writer of the connection's own, so one client with
+	 * a full TCP window no longer stalls the thread sending to everyone.
+	 * When a queue is full the policy decides what happens; see
+	 * <code>ConnectionToClient.getOutboundQueueDepth</code> and
+	 * <code>getDroppedMessageCount</code> to watch it.
+	 * A capacity of 0, the default, writes synchronously instead.
+	 * The change applies to clients connecting afterwards.
+	 *
+	 * @param capacity the maximum number of messages queued per client.
+	 * @param policy   what to do with a message sent to a full queue.
+	 */
+	final public void setOutboundQueue(int capacity, OverflowPolicy policy)
+	{
+		if (capacity < 0)
+			throw new IllegalArgumentException("negative capacity");
+
+		this.overflowPolicy = policy;
+		this.outboundCapacity = capacity;
+	}
+
+	/**
+	 * @return the capacity of the outbound queue given to new connections,
+	 * 0 if messages are written synchronously.
+	 */
+	final public int getOutboundQueueCapacity()
+	{
+		return outboundCapacity;
+	}
+
+	/**
+	 * @return the policy applied when an outbound queue is full.
+	 */
+	final public OverflowPolicy getOverflowPolicy()
+	{
+		return overflowPolicy;
+	}
+
+	/**
+	 * Enables heartbeats and idle eviction. A client that sends nothing for
+	 * the heartbeat interval is sent a ping, which an
+	 * <code>AbstractClient</code> answers without involving its subclass;
+	 * a client that sends nothing, not even a pong, for the idle timeout is
+	 * disconnected and reported to <code>clientException</code> with a
+	 * <code>SocketTimeoutException</code>. Heartbeats never reach
+	 * <code>handleMessageFromClient</code>. All connections are checked
+	 * by the single thread of the shared <code>TimerWheel</code>, with a
+	 * resolution of 100 ms.<p>
+	 *
+	 * Both are off by default, since clients built on older versions of the
+	 * framework do not answer pings. New values apply to open connections
+	 * at their next check; connections opened while both are 0 are never
+	 * checked.
+	 *
+	 * @param interval    the silence after which a client is pinged, in
+	 *                    milliseconds; 0 never pings.
+	 * @param idleTimeout the silence after which a client is disconnected,
+	 *                    in milliseconds; 0 never disconnects. Should be
+	 *                    a few times the interval.
+	 */
+	final public void setHeartbeat(long interval, long idleTimeout)
+	{
+		if (interval < 0 || idleTimeout < 0)
+			throw new IllegalArgumentException("negative delay");
+
+		this.heartbeatInterval = interval;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return the silence after which a client is pinged, in milliseconds;
+	 * 0 if clients are never pinged.
+	 */
+	final public long getHeartbeatInterval()
+	{
+		return heartbeatInterval;
+	}
+
+	/**
+	 * @return the silence after which a client is disconnected, in
+	 * milliseconds; 0 if clients are never disconnected for being idle.
+	 */
+	final public long getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+
+	/**
+	 * Limits the rate at which each client's messages are handled. Every
+	 * client gets a bucket of <code>burst</code> tokens, refilled at
+	 * <code>perSecond</code> tokens per second; each message takes one, and
+	 * a message finding the bucket empty is subject to the rate limit
+	 * action. Heartbeats are never limited. Taking a token is a single
+	 * atomic operation, without lock or allocation. The change applies to
+	 * the next message received.
+	 *
+	 * @param perSecond the sustained rate allowed, in messages per second;
+	 *                  0 removes the limit.
+	 * @param burst     the number of messages a client may send at once
+	 *                  after being quiet.
+	 */
+	final public void setClientRateLimit(double perSecond, int burst)
+	{
+		long[] limit = rateLimit(perSecond, burst);
+		this.clientTolerance = limit[1];
+		this.clientInterval = limit[0];
+	}
+
+	/**
+	 * Limits the rate at which messages are handled, all clients together,
+	 * with one bucket shared by every client. Works like
+	 * <code>setClientRateLimit</code>, and applies on top of it.
+	 *
+	 * @param perSecond the sustained rate allowed, in messages per second;
+	 *                  0 removes the limit.
+	 * @param burst     the number of messages the clients may send at once
+	 *                  after being quiet.
+	 */
+	final public void setGlobalRateLimit(double perSecond, int burst)
+	{
+		long[] limit = rateLimit(perSecond, burst);
+		this.globalTolerance = limit[1];
+		this.globalInterval = limit[0];
+	}
+
+	/**
+	 * Chooses what happens to a message over a rate limit. The default,
+	 * <code>DELAY</code>, stops reading from the client until the limit
+	 * allows the message. With the selector engine delays are rounded up
+	 * to the 100 ms tick of the shared <code>TimerWheel</code>. The change
+	 * applies to the next message received.
+	 *
+	 * @param action the action applied to messages over the limits.
+	 */
+	final public void setRateLimitAction(RateLimitAction action)
+	{
+		this.rateLimitAction = action;
+	}
+
+	/**
+	 * @return the sustained rate allowed per client, in messages per
+	 * second; 0 if not limited.
+	 */
+	final public double getClientRateLimit()
+	{
+		long interval = clientInterval;
+		return interval == 0 ? 0 : 1e9 / interval;
+	}
+
+	/**
+	 * @return the sustained rate allowed for all clients together, in
+	 * messages per second; 0 if not limited.
+	 */
+	final public double getGlobalRateLimit()
+	{
+		long interval = globalInterval;
+		return interval == 0 ? 0 : 1e9 / interval;
+	}
+
+	/**
+	 * @return the action applied to messages over the rate limits.
+	 */
+	final public RateLimitAction getRateLimitAction()
+	{
+		return rateLimitAction;
+	}
+
+	/**
+	 * Returns true if messages from different clients are handled
+	 * concurrently.
+	 *
+	 * @return true if the server is in concurrent dispatch mode.
+	 */
+	final public boolean isConcurrentDispatch()
+	{
+		return concurrentDispatch;
+	}
+
+	/**
+	 * Chooses how messages are handed to <code>handleMessageFromClient</code>.
+	 * By default every call holds the dispatch lock, so messages are handled
+	 * one at a time whatever client they come from. In concurrent mode the
+	 * lock is not taken: messages from different clients are handled in
+	 * parallel, while the messages of one client are still handled one at a
+	 * time and in the order they were sent. The concrete server must then
+	 * follow the rules given in <code>handleMessageFromClient</code>.
+	 * The change applies to the next message received.
+	 *
+	 * @param concurrentDispatch true to handle clients concurrently.
+	 */
+	final public void setConcurrentDispatch(boolean concurrentDispatch)
+	{
+		this.concurrentDispatch = concurrentDispatch;
+	}
+
+	/**
+	 * Sets the number of selector threads used by the
+	 * <code> SELECTOR </code> engine. The default is half the available
+	 * processors, and at least one. Has no effect on a server running one
+	 * thread per connection.
+	 * The server must be closed and restarted for the change to be
+	 * in effect.
+	 *
+	 * @param selectorThreads the number of selector threads.
+	 */
+	final public void setSelectorThreads(int selectorThreads)
+	{
+		this.selectorThreads = Math.max(1, selectorThreads);
+	}
+
 	// RUN METHOD -------------------------------------------------------
 
 	/**
@@ -306,31 +988,29 @@ public abstract class AbstractServer implements Runnable
 		// call the hook method to notify that the server is starting
 		serverStarted();
 
+		SelectorEngine selector = selectorEngine;
+		ServerSocket listening = serverSocket;
+
 		try
 		{
 			// Repeatedly waits for a new client connection, accepts it, and
-			// starts a new thread to handle data exchange.
+			// hands it over. Closing the listening socket ends the wait.
 			while(!readyToStop)
 			{
-				try
+				if (selector != null)
 				{
-					// Wait here for new connection attempts, or a timeout
-					Socket clientSocket = serverSocket.accept();
+					// Accept every pending channel; the selector threads
+					// take the data exchange over.
+					selector.acceptConnections();
+					continue;
+				}
 
-					// When a client is accepted, create a thread to handle
-					// the data exchange, then add it to thread group
+				// Wait here for new connection attempts
+				Socket clientSocket = listening.accept();
 
-					synchronized(this)
-					{
-						new ConnectionToClient(
-							this.clientThreadGroup, clientSocket, this);
-					}
-				}
-				catch (InterruptedIOException exception)
-				{
-					// This will be thrown when a timeout occurs.
-					// The server will continue to listen if not ready to stop.
-				}
+				// The streams are set up by another thread: a client slow
+				// to send its header must not hold up the others.
+				handOff(clientSocket);
 			}
 
 			// call the hook method to notify that the server has stopped
@@ -350,8 +1030,12 @@ public abstract class AbstractServer implements Runnable
 		}
 		finally
 		{
-			readyToStop = true;
-			connectionListener = null;
+			// Unless listen has already started another listener.
+			if (connectionListener == Thread.currentThread())
+			{
+				readyToStop = true;
+				connectionListener = null;
+			}
 		}
 	}
 
@@ -387,6 +1071,21 @@ public abstract class AbstractServer implements Runnable
 	synchronized protected void clientException(
 		ConnectionToClient client, Throwable exception) {}
 
+	/**
+	 * Hook method called each time a message exceeds a rate limit, before
+	 * the action is applied: before the message is delayed or dropped,
+	 * before it is handled anyway with <code>WARN</code>, before the
+	 * client is disconnected. Called by the thread delivering the client's
+	 * messages, without holding the server's lock. The default
+	 * implementation does nothing.
+	 *
+	 * @param client the client over the limit.
+	 * @param msg    the message over the limit.
+	 * @param action the action about to be applied.
+	 */
+	protected void clientThrottled(
+		ConnectionToClient client, Object msg, RateLimitAction action) {}
+
 	/**
 	 * Hook method called when the server stops accepting
 	 * connections because an exception has been raised.
@@ -423,8 +1122,28 @@ public abstract class AbstractServer implements Runnable
 	 * Handles a command sent from one client to the server.
 	 * This MUST be implemented by subclasses, who should respond to
 	 * messages.
-	 * This method is called by a synchronized method so it is also
-	 * implcitly synchronized.
+	 * By default this method is called while holding the server's dispatch
+	 * lock, so calls never overlap. That lock is not the server's monitor:
+	 * the <code>synchronized</code> hooks do not wait for it.<p>
+	 *
+	 * In concurrent dispatch mode it is called without that lock, from as
+	 * many threads as there are clients sending. Overrides must then obey
+	 * these rules:
+	 * <ul>
+	 * <li>calls for one client never overlap and arrive in the order the
+	 * client sent its messages, so state kept with
+	 * <code>client.setInfo</code> needs no locking of its own;</li>
+	 * <li>state shared between clients (fields of the server, other
+	 * clients' info) must be thread-safe or guarded by the override;</li>
+	 * <li><code>sendToClient</code>, <code>sendToAllClients</code>,
+	 * <code>getClientConnections</code> and <code>close</code> on a
+	 * connection may be called freely, as they are safe to use from
+	 * several threads;</li>
+	 * <li>the <code>synchronized</code> hooks (<code>clientDisconnected</code>,
+	 * <code>clientException</code>) still lock the server, so a handler
+	 * holding that lock for long delays disconnections but not other
+	 * messages.</li>
+	 * </ul>
 	 *
 	 * @param msg   the message sent.
 	 * @param client the connection connected to the client that
@@ -440,18 +1159,428 @@ public abstract class AbstractServer implements Runnable
 	 * Receives a command sent from the client to the server.
 	 * Called by the run method of <code>ConnectionToClient</code>
 	 * instances that are watching for messages coming from the server
-	 * This method is synchronized to ensure that whatever effects it has
-	 * do not conflict with work being done by other threads. The method
+	 * Unless the server is in concurrent dispatch mode, this method
+	 * holds the dispatch lock to ensure that whatever effects it has
+	 * do not conflict with the handling of other messages. The method
 	 * simply calls the <code>handleMessageFromClient</code> slot method.
 	 *
 	 * @param msg   the message sent.
 	 * @param client the connection connected to the client that
 	 *  sent the message.
 	 */
-	final synchronized void receiveMessageFromClient(
+	final void receiveMessageFromClient(
 		Object msg, ConnectionToClient client)
 	{
-		this.handleMessageFromClient(msg, client);
+		long start = System.nanoTime();
+		try
+		{
+			if (concurrentDispatch)
+			{
+				this.handleMessageFromClient(msg, client);
+				return;
+			}
+
+			dispatchLock.lock();
+			try
+			{
+				this.handleMessageFromClient(msg, client);
+			}
+			finally
+			{
+				dispatchLock.unlock();
+			}
+		}
+		finally
+		{
+			metrics.recordMessageIn(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Applies the rate limits to a message received from a client, before
+	 * it is delivered. Lock-free and allocation-free unless the message is
+	 * over a limit.
+	 *
+	 * @param client the client the message came from.
+	 * @param msg    the message.
+	 * @return 0 to deliver the message now, the time to wait in ns before
+	 * delivering it, or -1 if it must not be delivered.
+	 */
+	final long admit(ConnectionToClient client, Object msg)
+	{
+		long perClient = clientInterval;
+		long global = globalInterval;
+		if (perClient == 0 && global == 0)
+			return 0;
+
+		// A delayed message reserves its tokens, so it is not charged
+		// again when it is finally delivered. It only reserves a global
+		// token once its own client's limit lets it through: reserving it
+		// earlier would hold up the other clients for a message that is
+		// not being delivered.
+		RateLimitAction action = rateLimitAction;
+		boolean reserve = action == RateLimitAction.DELAY;
+		long now = System.nanoTime();
+		long wait = 0;
+		if (perClient > 0)
+		{
+			wait = client.getInboundBucket().take(
+				now, perClient, clientTolerance, reserve);
+		}
+		if (global > 0 && wait > 0 && reserve)
+			client.oweGlobalToken();
+		else if (global > 0 && wait == 0)
+		{
+			wait = globalBucket.take(now, global, globalTolerance, reserve);
+			if (wait > 0 && !reserve && perClient > 0)
+				client.getInboundBucket().refund(perClient);
+		}
+		if (wait == 0)
+			return 0;
+
+		metrics.recordThrottled();
+		client.recordThrottled();
+		clientThrottled(client, msg, action);
+		switch (action)
+		{
+			case DELAY:
+				return wait;
+
+			case WARN:
+				return 0;
+
+			case DISCONNECT:
+				client.fail(new IOException("message rate limit exceeded"));
+				return -1;
+
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * Reserves a global token for a message delayed by the per-client
+	 * limit, once its delay has elapsed.
+	 *
+	 * @return 0 to deliver the message now, or the time to wait in ns
+	 * before delivering it.
+	 */
+	final long admitGlobal()
+	{
+		long global = globalInterval;
+		if (global == 0)
+			return 0;
+
+		return globalBucket.take(System.nanoTime(), global, globalTolerance, true);
+	}
+
+	/**
+	 * Converts a rate limit to the token interval and burst tolerance of
+	 * a <code>TokenBucket</code>.
+	 *
+	 * @return the interval and the tolerance in ns, both 0 for no limit.
+	 */
+	private static long[] rateLimit(double perSecond, int burst)
+	{
+		if (perSecond < 0 || burst < 1)
+			throw new IllegalArgumentException("invalid rate limit");
+		if (perSecond == 0)
+			return new long[] { 0, 0 };
+
+		long interval = Math.max(1, (long) (1e9 / perSecond));
+		return new long[] { interval, (burst - 1) * interval };
+	}
+
+	/**
+	 * Finds the codec a client is using by peeking at the first two bytes
+	 * of its stream. The bytes are pushed back for the codec's reader to
+	 * consume.
+	 *
+	 * @param in the stream from the client, able to push back two bytes.
+	 * @return the codec matching the client's header.
+	 * @exception IOException if the header matches no accepted codec.
+	 */
+	final MessageCodec detectCodec(PushbackInputStream in) throws IOException
+	{
+		int first = in.read();
+		int second = first < 0 ? -1 : in.read();
+		if (second < 0)
+			throw new EOFException("no stream header");
+		in.unread(new byte[] { (byte) first, (byte) second });
+
+		int magic = (first << 8) | second;
+		MessageCodec codec = codecFor(magic);
+		if (codec == null)
+			throw new StreamCorruptedException(
+				"unknown stream header " + Integer.toHexString(magic));
+		return codec;
+	}
+
+	/**
+	 * Finds the codec a stream header starts with.
+	 *
+	 * @param magic the first two bytes of the header.
+	 * @return the codec, or null if this server accepts none with this
+	 * magic number.
+	 */
+	final MessageCodec codecFor(int magic)
+	{
+		for (MessageCodec codec : codecs)
+		{
+			if (codec.getMagic() == magic)
+				return codec;
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the outbound queue of a new connection.
+	 *
+	 * @return the queue, or null if messages are written synchronously.
+	 */
+	final OutboundQueue newOutboundQueue()
+	{
+		int capacity = outboundCapacity;
+		return capacity > 0 ? new OutboundQueue(capacity, overflowPolicy, metrics) : null;
+	}
+
+	/**
+	 * Runs the task draining the outbound queue of a thread-driven
+	 * connection. The writers are virtual threads if the readers are.
+	 *
+	 * @param task the task to run.
+	 */
+	final void executeWrite(Runnable task)
+	{
+		ExecutorService writers;
+		synchronized(clients)
+		{
+			if (outboundWriters == null)
+			{
+				final boolean virtual =
+					engine == ServerEngine.VIRTUAL_THREAD_PER_CONNECTION;
+				outboundWriters = Executors.newCachedThreadPool(runnable ->
+				{
+					Thread thread = VirtualThreads.newThread(
+						virtual, "ConnectionToClient writer", runnable);
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			writers = outboundWriters;
+		}
+		writers.execute(task);
+	}
+
+	/**
+	 * Sets up the connection to a client accepted by a thread-driven server
+	 * on a handshake thread. A connection completed after the server was
+	 * closed is closed at once. Waits while every handshake thread is busy
+	 * and the queue is full, unless the server stops listening.
+	 *
+	 * @param clientSocket the socket accepted.
+	 */
+	private void handOff(final Socket clientSocket)
+	{
+		final boolean virtual =
+			engine == ServerEngine.VIRTUAL_THREAD_PER_CONNECTION;
+		ExecutorService pool;
+		synchronized(clients)
+		{
+			if (handshakes == null)
+			{
+				ThreadPoolExecutor executor = new ThreadPoolExecutor(
+					handshakeThreads, handshakeThreads,
+					60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, backlog)),
+					runnable ->
+					{
+						Thread thread = VirtualThreads.newThread(
+							virtual, "ConnectionToClient handshake", runnable);
+						thread.setDaemon(true);
+						return thread;
+					},
+					(task, full) ->
+					{
+						// Push back on the listening thread rather than drop
+						// a client already accepted.
+						try
+						{
+							while (!readyToStop && !full.isShutdown())
+							{
+								if (full.getQueue().offer(
+									task, 100, TimeUnit.MILLISECONDS))
+									return;
+							}
+						}
+						catch (InterruptedException ex)
+						{
+							Thread.currentThread().interrupt();
+						}
+						throw new RejectedExecutionException("server stopping");
+					});
+				executor.allowCoreThreadTimeOut(true);
+				handshakes = executor;
+			}
+			pool = handshakes;
+		}
+
+		try
+		{
+			pool.execute(() ->
+			{
+				ConnectionToClient client;
+				try
+				{
+					client = new ConnectionToClient(clientSocket, this, virtual);
+				}
+				catch (IOException ex)
+				{
+					// The connection closed its socket; only this client is
+					// lost.
+					if (ex instanceof SocketTimeoutException)
+						metrics.recordHandshakeTimeout();
+					return;
+				}
+
+				// Waits for a close in progress, whose list of clients may
+				// have missed this one.
+				boolean closed;
+				closeLock.lock();
+				try
+				{
+					closed = serverSocket == null;
+				}
+				finally
+				{
+					closeLock.unlock();
+				}
+				if (closed)
+				{
+					try
+					{
+						client.close();
+					}
+					catch (IOException ex) {}
+				}
+			});
+		}
+		catch (RejectedExecutionException ex)
+		{
+			// The server is stopping.
+			try
+			{
+				clientSocket.close();
+			}
+			catch (IOException exc) {}
+		}
+	}
+
+	/**
+	 * Adds a connection to the set of open connections. Called by the
+	 * connection once it is ready to exchange data.
+	 *
+	 * @param client the connection opened.
+	 */
+	final void addClient(ConnectionToClient client)
+	{
+		clients.add(client);
+		metrics.recordAccept();
+
+		long interval = heartbeatInterval, timeout = idleTimeout;
+		if (interval > 0 || timeout > 0)
+		{
+			long first = interval > 0 && (timeout == 0 || interval < timeout) ?
+				interval : timeout;
+			TimerWheel.shared().schedule(client::checkHeartbeat, first);
+		}
+	}
+
+	/**
+	 * Removes a connection from the set of open connections. Called by the
+	 * connection when it closes; has no effect if already removed.
+	 *
+	 * @param client the connection closed.
+	 */
+	final void removeClient(ConnectionToClient client)
+	{
+		clients.remove(client);
+	}
+
+	/**
+	 * @return a new connection id, unique for the life of this server.
+	 */
+	final long nextClientId()
+	{
+		return clients.nextId();
+	}
+
+	/**
+	 * Binds a connection to a login ID in the registry.
+	 *
+	 * @param client  the connection.
+	 * @param loginID the login ID, or null to release the current one.
+	 * @return false if another open connection uses this login ID.
+	 */
+	final boolean bindLogin(ConnectionToClient client, String loginID)
+	{
+		return clients.bindLogin(client, loginID);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * A <code> BroadcastEncoder </code> encodes one message for a set of
+	 * recipients, once per codec. Few codecs are ever in use at the same
+	 * time, so the cache stays tiny.
+	 */
+	static final class BroadcastEncoder
+	{
+		/**
+		 * The message being broadcast.
+		 */
+		private final Object msg;
+
+		/**
+		 * The encoded forms produced so far, by codec.
+		 */
+		private final IdentityHashMap<MessageCodec, Object> encoded =
+			new IdentityHashMap<MessageCodec, Object>(4);
+
+		BroadcastEncoder(Object msg)
+		{
+			this.msg = msg;
+		}
+
+		/**
+		 * Returns what to send to a client: the message encoded with its
+		 * codec, or the message itself if it cannot be pre-encoded.
+		 *
+		 * @param client the recipient.
+		 * @return the object to pass to <code>sendToClient</code>.
+		 */
+		Object encodeFor(ConnectionToClient client)
+		{
+			MessageCodec codec = client.getCodec();
+			if (codec == null || msg instanceof EncodedMessage)
+				return msg;
+
+			Object result = encoded.get(codec);
+			if (result == null)
+			{
+				try
+				{
+					result = codec.encode(msg);
+				}
+				catch (IOException ex)
+				{
+					// Let each send report the failure as before.
+					result = msg;
+				}
+				encoded.put(codec, result);
+			}
+			return result;
+		}
 	}
 }
 // End of AbstractServer Class
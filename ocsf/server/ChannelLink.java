@@ -0,0 +1,726 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ocsf.common.*;
+
+/**
+ * A <code> ChannelLink </code> carries the socket-level state of one client
+ * connection served by the <code> SelectorEngine </code>. It plays, for a
+ * non-blocking channel, the role that the socket and object streams play
+ * inside a thread-driven <code> ConnectionToClient </code>.<p>
+ *
+ * Bytes read by the selector thread are queued in an
+ * <code> InboundBuffer </code>. Whenever bytes are pending, a single drain
+ * task per connection is submitted to the engine's dispatch pool; it decodes
+ * the objects with the codec the client chose and hands them to the server in
+ * arrival order. Outgoing objects are encoded by the sending thread and
+ * written without blocking; whatever the socket does not accept immediately
+ * is queued and written by the selector thread.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see SelectorEngine
+ */
+final class ChannelLink
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Number of unread inbound bytes above which the selector thread stops
+	 * reading from the channel until the dispatch pool catches up.
+	 */
+	private static final int MAX_PENDING_INPUT = 1024 * 1024;
+
+	/**
+	 * The most buffers written by one gathering write.
+	 */
+	private static final int MAX_GATHER = 64;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The engine that owns this link.
+	 */
+	private final SelectorEngine engine;
+
+	/**
+	 * The selector thread this channel is registered with.
+	 */
+	private final SelectorEngine.EventLoop loop;
+
+	/**
+	 * The non-blocking channel to the client.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The connection exposed to the server's hook methods.
+	 */
+	private ConnectionToClient connection;
+
+	/**
+	 * The registration of the channel with its selector.
+	 */
+	private volatile SelectionKey key;
+
+	/**
+	 * Bytes received from the client and not yet decoded.
+	 */
+	private final InboundBuffer inbound = new InboundBuffer();
+
+	/**
+	 * The codec chosen by the client, once its header has arrived.
+	 */
+	private volatile MessageCodec codec;
+
+	/**
+	 * Reader decoding the inbound bytes. Created by the first drain task,
+	 * since it needs the client's stream header.
+	 */
+	private MessageReader input;
+
+	/**
+	 * True while a drain task is scheduled or running; guarantees that
+	 * messages of this client are handled one at a time, in order.
+	 */
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+
+	/**
+	 * Set once <code>clientConnected</code> has been called.
+	 */
+	private boolean announced = false;
+
+	/**
+	 * A message decoded but delayed by the rate limits; delivered by the
+	 * next drain task, which the timer wheel schedules.
+	 */
+	private Object held;
+
+	/**
+	 * Receives the encoded form of outgoing objects.
+	 */
+	private final ByteArrayOutputStream encoded = new ByteArrayOutputStream(256);
+
+	/**
+	 * Writer encoding outgoing objects, created with the reader once the
+	 * client's codec is known. Guarded by the outbound lock.
+	 */
+	private MessageWriter output;
+
+	/**
+	 * Objects sent before the codec was known. Guarded by the outbound lock.
+	 */
+	private ArrayList<Object> early = new ArrayList<Object>();
+
+	/**
+	 * Serialized bytes not yet accepted by the socket. Guarded by itself,
+	 * which also serializes writers.
+	 */
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * The connection's queue of objects not yet encoded, if the server
+	 * gives connections one. Objects are taken from it only while no bytes
+	 * are waiting for the socket, so a slow client backs up into the bounded
+	 * queue rather than into encoded buffers. Guarded by the outbound lock.
+	 */
+	private OutboundQueue queued;
+
+	/**
+	 * The batching of the writes to the client, or null to write each
+	 * message at once.
+	 */
+	private final WriteBatcher batcher;
+
+	/**
+	 * Bytes encoded since the outbound buffers were last handed to the
+	 * socket, and whether the end of the batch window is scheduled.
+	 * Guarded by the outbound lock.
+	 */
+	private int unflushed = 0;
+	private boolean flushScheduled = false;
+
+	/**
+	 * Set once the link has been closed.
+	 */
+	private volatile boolean closed = false;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs the link for a freshly accepted channel.
+	 *
+	 * @param engine  the engine that accepted the channel.
+	 * @param loop    the selector thread that will serve the channel.
+	 * @param channel the accepted channel, already non-blocking.
+	 */
+	ChannelLink(SelectorEngine engine, SelectorEngine.EventLoop loop,
+		SocketChannel channel)
+	{
+		this.engine = engine;
+		this.loop = loop;
+		this.channel = channel;
+		this.batcher = engine.getServer().getWriteBatching();
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Encodes an object and writes it to the client, queueing the part
+	 * that the socket cannot take immediately. Objects sent before the
+	 * client's stream header has arrived are held until it does.
+	 *
+	 * @param msg the message to be sent.
+	 * @exception IOException if the link is closed or the write fails.
+	 */
+	void send(Object msg) throws IOException
+	{
+		synchronized (outbound)
+		{
+			if (closed)
+				throw new SocketException("socket does not exist");
+
+			if (output == null)
+			{
+				early.add(msg);
+				return;
+			}
+
+			ConnectionToClient.write(output, msg);
+			engine.getServer().getMetrics().recordMessageOut(msg);
+			takeEncoded();
+			if (batcher == null || unflushed >= batcher.getMaxBytes())
+				flushOutbound();
+			else if (!flushScheduled)
+			{
+				flushScheduled = true;
+				batcher.schedule(this::windowEnded);
+			}
+		}
+	}
+
+	/**
+	 * Writes the bytes held by write batching without waiting for the
+	 * window to end.
+	 *
+	 * @exception IOException if the link is closed or the write fails.
+	 */
+	void flush() throws IOException
+	{
+		synchronized (outbound)
+		{
+			if (closed)
+				throw new SocketException("socket does not exist");
+
+			flushOutbound();
+		}
+	}
+
+	/**
+	 * Encodes and writes queued objects for as long as the socket takes
+	 * them without blocking.
+	 *
+	 * @param queue the connection's outbound queue.
+	 * @exception IOException if the link is closed or the write fails.
+	 */
+	void pump(OutboundQueue queue) throws IOException
+	{
+		synchronized (outbound)
+		{
+			if (closed)
+				throw new SocketException("socket does not exist");
+
+			queued = queue;
+			pumpQueued();
+		}
+	}
+
+	/**
+	 * Attaches the link to the connection that represents it. Called once,
+	 * by the connection's constructor.
+	 *
+	 * @param connection the connection exposed to the server.
+	 */
+	void attach(ConnectionToClient connection)
+	{
+		this.connection = connection;
+	}
+
+	/**
+	 * Closes the channel and ends the inbound stream so that a drain task
+	 * waiting for bytes wakes up. Has no effect if already closed.
+	 *
+	 * @exception IOException if closing the channel fails.
+	 */
+	void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+
+		inbound.markEnd();
+		synchronized (outbound)
+		{
+			outbound.clear();
+			if (queued != null)
+				queued.clear();
+			if (early != null)
+				engine.getServer().getMetrics().recordDropped(early.size());
+		}
+
+		SelectionKey k = key;
+		if (k != null)
+			k.cancel();
+		channel.close();
+	}
+
+	/**
+	 * @return the codec chosen by the client, or null before its header
+	 * has arrived.
+	 */
+	MessageCodec getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * @return the address of the client, or null once closed.
+	 */
+	InetAddress getInetAddress()
+	{
+		Socket socket = channel.socket();
+		return closed ? null : socket.getInetAddress();
+	}
+
+	// METHODS CALLED BY THE SELECTOR THREAD ----------------------------
+
+	/**
+	 * Drops a link whose channel could not be registered. The client was
+	 * never announced, so the server is not notified.
+	 */
+	void abort()
+	{
+		if (draining.compareAndSet(false, true))
+			connection.discard();
+	}
+
+	/**
+	 * Drops a link that its event loop failed to serve, or that was still
+	 * open when the loop stopped. An announced client is reported to the
+	 * server as lost.
+	 *
+	 * @param cause what went wrong.
+	 */
+	void drop(Exception cause)
+	{
+		if (draining.compareAndSet(false, true))
+		{
+			if (announced)
+				connection.fail(cause);
+			else
+				connection.discard();
+			return;
+		}
+
+		// The running drain task reads the end of the stream and reports
+		// it.
+		try
+		{
+			close();
+		}
+		catch (IOException ex) {}
+	}
+
+	/**
+	 * Drops the link if the client's stream header has not arrived yet.
+	 * Called by the timer wheel once the handshake timeout has elapsed.
+	 * The client was never announced, so the server is not notified.
+	 *
+	 * @return true if the link was dropped.
+	 */
+	boolean expireHandshake()
+	{
+		if (codec != null || closed)
+			return false;
+
+		if (draining.compareAndSet(false, true))
+		{
+			// Nothing arrived at all.
+			connection.discard();
+		}
+		else
+		{
+			// A drain task waits for the rest of the header: ending the
+			// input makes it fail, and it discards the connection.
+			try
+			{
+				close();
+			}
+			catch (IOException ex) {}
+		}
+		return true;
+	}
+
+	/**
+	 * Registers the channel with the selector of its event loop.
+	 *
+	 * @param selector the selector of this link's event loop.
+	 * @exception IOException if the channel was closed meanwhile.
+	 */
+	void register(Selector selector) throws IOException
+	{
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Reads whatever the channel holds into the inbound buffer.
+	 *
+	 * @param buffer a scratch buffer owned by the selector thread.
+	 */
+	void readReady(ByteBuffer buffer)
+	{
+		int n;
+		try
+		{
+			do
+			{
+				buffer.clear();
+				n = channel.read(buffer);
+				if (n > 0)
+				{
+					buffer.flip();
+					inbound.append(buffer);
+					engine.getServer().getMetrics().recordBytesIn(n);
+				}
+			}
+			while (n > 0);
+		}
+		catch (IOException ex)
+		{
+			n = -1;
+		}
+
+		if (n < 0)
+		{
+			// The peer is gone. Messages already received are still
+			// delivered; the drain task then reports the end of stream.
+			key.cancel();
+			inbound.markEnd();
+		}
+		else if (inbound.size() > MAX_PENDING_INPUT && messageReady())
+		{
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+		scheduleDrain(false);
+	}
+
+	/**
+	 * Writes queued bytes now that the socket accepts more.
+	 */
+	void writeReady()
+	{
+		synchronized (outbound)
+		{
+			try
+			{
+				flushOutbound();
+				pumpQueued();
+			}
+			catch (IOException ex)
+			{
+				// The read side will observe the failure and report it.
+			}
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Moves the bytes produced by the writer to the outbound queue. Must be
+	 * called while holding the outbound lock.
+	 */
+	private void takeEncoded()
+	{
+		unflushed += encoded.size();
+		outbound.add(ByteBuffer.wrap(encoded.toByteArray()));
+		encoded.reset();
+	}
+
+	/**
+	 * Writes the batch whose window has ended. Runs on the batcher's timer
+	 * thread; the write does not block.
+	 */
+	private void windowEnded()
+	{
+		synchronized (outbound)
+		{
+			flushScheduled = false;
+			if (closed)
+				return;
+
+			try
+			{
+				flushOutbound();
+			}
+			catch (IOException ex)
+			{
+				// The read side will observe the failure and report it.
+			}
+		}
+	}
+
+	/**
+	 * Reads the client's stream header, creates the reader and writer of
+	 * the codec it chose, and sends what was held meanwhile. Runs on the
+	 * dispatch pool; blocks until the header has arrived.
+	 */
+	private void handshake() throws IOException
+	{
+		PushbackInputStream in = new PushbackInputStream(inbound, 2);
+		MessageCodec codec = engine.getServer().detectCodec(in);
+		input = codec.newReader(in);
+		this.codec = codec;
+		inbound.setReadTimeout(engine.getServer().getHandshakeTimeout());
+
+		synchronized (outbound)
+		{
+			if (closed)
+				throw new SocketException("socket does not exist");
+
+			output = codec.newWriter(encoded, input);
+			for (Object msg : early)
+			{
+				ConnectionToClient.write(output, msg);
+				engine.getServer().getMetrics().recordMessageOut(msg);
+			}
+			early = null;
+			takeEncoded();
+			flushOutbound();
+			pumpQueued();
+		}
+	}
+
+	/**
+	 * Moves objects from the connection's queue to the socket until the
+	 * queue is empty or the socket stops accepting bytes. With write
+	 * batching, objects are encoded up to the batch size and written
+	 * together; otherwise one at a time. Must be called while holding the
+	 * outbound lock.
+	 */
+	private void pumpQueued() throws IOException
+	{
+		if (queued == null || output == null)
+			return;
+
+		int batch = batcher == null ? 1 : batcher.getMaxBytes();
+		Object msg;
+		while (outbound.isEmpty() && !closed)
+		{
+			while (unflushed < batch && (msg = queued.poll()) != null)
+			{
+				ConnectionToClient.write(output, msg);
+				engine.getServer().getMetrics().recordMessageOut(msg);
+				takeEncoded();
+			}
+			if (outbound.isEmpty())
+				return;
+			flushOutbound();
+		}
+	}
+
+	/**
+	 * Writes queued buffers until the socket stops accepting bytes, and
+	 * keeps write interest registered only while bytes remain. Queued
+	 * buffers go out together in gathering writes. Must be called while
+	 * holding the outbound lock.
+	 */
+	private void flushOutbound() throws IOException
+	{
+		unflushed = 0;
+		ByteBuffer[] heads = new ByteBuffer[Math.min(outbound.size(), MAX_GATHER)];
+		while (!outbound.isEmpty())
+		{
+			int n = 0;
+			for (ByteBuffer buffer : outbound)
+			{
+				if (n == heads.length)
+					break;
+				heads[n++] = buffer;
+			}
+
+			long written = channel.write(heads, 0, n);
+			if (written > 0)
+				engine.getServer().getMetrics().recordBytesOut(written);
+			while (!outbound.isEmpty() && !outbound.peek().hasRemaining())
+				outbound.poll();
+			if (heads[n - 1].hasRemaining())
+				break;
+		}
+
+		SelectionKey k = key;
+		if (k != null && k.isValid())
+		{
+			int ops = k.interestOps();
+			int wanted = outbound.isEmpty()
+				? ops & ~SelectionKey.OP_WRITE
+				: ops | SelectionKey.OP_WRITE;
+			if (wanted != ops)
+			{
+				k.interestOps(wanted);
+				loop.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * Submits a drain task unless one is already scheduled or running.
+	 *
+	 * @param force true to schedule even if no bytes are pending.
+	 */
+	private void scheduleDrain(boolean force)
+	{
+		if ((force || messageReady()) && draining.compareAndSet(false, true))
+			engine.dispatch(this::drain);
+	}
+
+	/**
+	 * Returns true if the drain task can read without blocking: the stream
+	 * has ended, or the header or the next message has arrived whole. The
+	 * messages of a codec that cannot tell their length are read as soon
+	 * as they start; the inbound buffer bounds the wait for their end.
+	 */
+	private boolean messageReady()
+	{
+		if (inbound.isEnded())
+			return true;
+		if (inbound.size() == 0)
+			return false;
+
+		MessageCodec codec = this.codec;
+		if (codec == null)
+			return !awaitingHeader();
+
+		int length = codec.frameLength(inbound::peek);
+		return length == 0 || (length > 0 && inbound.size() >= length);
+	}
+
+	/**
+	 * Returns true while part of the client's stream header is missing, in
+	 * which case reading it would block a dispatch thread. A header that
+	 * matches no codec, or a stream that has ended, is left to the drain
+	 * task to reject.
+	 */
+	private boolean awaitingHeader()
+	{
+		if (codec != null || inbound.isEnded())
+			return false;
+
+		int first = inbound.peek(0);
+		int second = inbound.peek(1);
+		if (second < 0)
+			return true;
+
+		MessageCodec chosen = engine.getServer().codecFor((first << 8) | second);
+		return chosen != null && inbound.size() < chosen.getHeaderLength();
+	}
+
+	/**
+	 * Decodes every complete object pending for this client and hands it to
+	 * the server. Runs on the dispatch pool, one task per link at a time.
+	 * The first run also performs the handshake, then adds the client to
+	 * the server and announces it, before any of its messages.
+	 */
+	private void drain()
+	{
+		try
+		{
+			if (!announced)
+			{
+				handshake();
+				announced = true;
+				engine.getServer().addClient(connection);
+				connection.announce();
+			}
+
+			while (held != null || messageReady())
+			{
+				Object msg = held;
+				held = null;
+				long wait;
+				if (msg != null)
+				{
+					wait = connection.readmit();
+				}
+				else
+				{
+					msg = input.readMessage();
+					wait = connection.admit(msg);
+				}
+				if (wait > 0)
+				{
+					// The link stays marked as draining, so nothing is
+					// read meanwhile; the inbound buffer fills up and
+					// reading stops.
+					held = msg;
+					TimerWheel.shared().schedule(now ->
+					{
+						engine.dispatch(this::drain);
+						return -1;
+					}, (wait + 999999) / 1000000);
+					return;
+				}
+				if (wait < 0)
+				{
+					resumeReading();
+					continue;
+				}
+
+				connection.deliver(msg);
+				resumeReading();
+			}
+		}
+		catch (Exception exception)
+		{
+			// The task stays marked as running so that nothing else is
+			// scheduled for a link that has failed. A client lost before
+			// its handshake completed was never announced to the server.
+			if (announced)
+				connection.fail(exception);
+			else
+				connection.discard();
+			return;
+		}
+
+		draining.set(false);
+
+		// Bytes may have arrived after the last check.
+		scheduleDrain(false);
+	}
+
+	/**
+	 * Restores read interest once enough pending input has been decoded.
+	 */
+	private void resumeReading()
+	{
+		SelectionKey k = key;
+		if (k != null && k.isValid()
+			&& (k.interestOps() & SelectionKey.OP_READ) == 0
+			&& inbound.size() <= MAX_PENDING_INPUT / 2)
+		{
+			k.interestOps(k.interestOps() | SelectionKey.OP_READ);
+			loop.wakeup();
+		}
+	}
+}
+// End of ChannelLink Class
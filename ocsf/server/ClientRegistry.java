@@ -0,0 +1,179 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code> ClientRegistry </code> holds the open connections of a server.
+ * Readers never lock: the connections are published as a copy-on-write
+ * array that broadcasts and counts read as is, and two concurrent maps find
+ * a connection by its id or by the login ID bound to it. Only connecting
+ * and disconnecting clients copy the array, under the registry's lock.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see AbstractServer
+ */
+final class ClientRegistry
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * The snapshot published while no client is connected.
+	 */
+	private static final ConnectionToClient[] NONE = new ConnectionToClient[0];
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The open connections. Replaced, never modified, under this
+	 * registry's lock.
+	 */
+	private volatile ConnectionToClient[] connections = NONE;
+
+	/**
+	 * The open connections by id.
+	 */
+	private final ConcurrentHashMap<Long, ConnectionToClient> byId =
+		new ConcurrentHashMap<Long, ConnectionToClient>();
+
+	/**
+	 * The open connections by login ID, for those that have one.
+	 */
+	private final ConcurrentHashMap<String, ConnectionToClient> byLogin =
+		new ConcurrentHashMap<String, ConnectionToClient>();
+
+	/**
+	 * The id given to the next connection.
+	 */
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * @return a new connection id, unique for the life of the server.
+	 */
+	long nextId()
+	{
+		return nextId.getAndIncrement();
+	}
+
+	/**
+	 * Returns the open connections. The array is shared and must not be
+	 * modified; it does not change when clients connect or disconnect
+	 * afterwards.
+	 *
+	 * @return the current snapshot of open connections.
+	 */
+	ConnectionToClient[] snapshot()
+	{
+		return connections;
+	}
+
+	/**
+	 * @return the number of open connections.
+	 */
+	int size()
+	{
+		return connections.length;
+	}
+
+	/**
+	 * Adds a connection. Has no effect if it was already added.
+	 *
+	 * @param client the connection opened.
+	 */
+	synchronized void add(ConnectionToClient client)
+	{
+		if (byId.putIfAbsent(client.getId(), client) != null)
+			return;
+
+		ConnectionToClient[] current = connections;
+		ConnectionToClient[] next = new ConnectionToClient[current.length + 1];
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = client;
+		connections = next;
+	}
+
+	/**
+	 * Removes a connection and its login ID. Has no effect if it was
+	 * already removed.
+	 *
+	 * @param client the connection closed.
+	 */
+	synchronized void remove(ConnectionToClient client)
+	{
+		if (!byId.remove(client.getId(), client))
+			return;
+
+		String loginID = client.getLoginID();
+		if (loginID != null)
+			byLogin.remove(loginID, client);
+
+		ConnectionToClient[] current = connections;
+		if (current.length == 1)
+		{
+			connections = NONE;
+			return;
+		}
+
+		ConnectionToClient[] next = new ConnectionToClient[current.length - 1];
+		int j = 0;
+		for (int i = 0; i < current.length; i++)
+		{
+			if (current[i] != client)
+				next[j++] = current[i];
+		}
+		connections = next;
+	}
+
+	/**
+	 * @param id a connection id.
+	 * @return the open connection with this id, or null.
+	 */
+	ConnectionToClient get(long id)
+	{
+		return byId.get(id);
+	}
+
+	/**
+	 * @param loginID a login ID.
+	 * @return the open connection bound to this login ID, or null.
+	 */
+	ConnectionToClient getByLogin(String loginID)
+	{
+		return byLogin.get(loginID);
+	}
+
+	/**
+	 * Binds a connection to a login ID, releasing the one it had.
+	 *
+	 * @param client  the connection.
+	 * @param loginID the login ID, or null to release the current one.
+	 * @return false if another open connection is bound to this login ID,
+	 * in which case nothing changes.
+	 */
+	synchronized boolean bindLogin(ConnectionToClient client, String loginID)
+	{
+		String current = client.getLoginID();
+		if (loginID != null && !loginID.equals(current))
+		{
+			ConnectionToClient holder = byLogin.putIfAbsent(loginID, client);
+			if (holder != null)
+				return false;
+
+			// A connection that already closed must not be found by login.
+			if (!byId.containsKey(client.getId()))
+				byLogin.remove(loginID, client);
+		}
+
+		if (current != null && !current.equals(loginID))
+			byLogin.remove(current, client);
+		client.loginBound(loginID);
+		return true;
+	}
+}
+// End of ClientRegistry Class
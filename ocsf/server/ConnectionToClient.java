@@ -5,7 +5,14 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLSocket;
+
+import ocsf.common.*;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -14,6 +21,10 @@ import java.util.HashMap;
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * <p>
+ * A connection is not a thread itself. Depending on the server's engine, its
+ * messages are read by a platform thread, by a virtual thread, or by the
+ * selector engine; the connection stays the same object in every case.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -23,7 +34,7 @@ import java.util.HashMap;
  * @author Paul Holden
  * @version September 2024 (2.14)
  */
-public class ConnectionToClient extends Thread {
+public class ConnectionToClient implements Runnable {
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -42,54 +53,162 @@ public class ConnectionToClient extends Thread {
 	/**
 	 * Stream used to read from the client.
 	 */
-	private ObjectInputStream input;
+	private MessageReader input;
 
 	/**
 	 * Stream used to write to the client.
 	 */
-	private ObjectOutputStream output;
+	private MessageWriter output;
+
+	/**
+	 * The id of this connection, unique for the life of the server.
+	 */
+	private final long id;
+
+	/**
+	 * The login ID under which the server finds this connection; null until
+	 * one is set.
+	 */
+	private volatile String loginID;
+
+	/**
+	 * The codec chosen by the client.
+	 */
+	private MessageCodec codec;
+
+	/**
+	 * Lock serializing the writes to the client, which may come from
+	 * several threads when the server dispatches messages concurrently.
+	 * Not a monitor, so that a virtual thread blocked in a write does not
+	 * pin its carrier thread.
+	 */
+	private final ReentrantLock outputLock = new ReentrantLock();
+
+	/**
+	 * The stream batching the writes to the client; null if they are not
+	 * batched or the connection is served by the selector engine.
+	 */
+	private WriteBatcher.Output batched;
+
+	/**
+	 * The thread reading the client's messages; null when the connection is
+	 * served by the selector engine.
+	 */
+	private Thread reader;
+
+	/**
+	 * The messages waiting to be written, when the server gives connections
+	 * an outbound queue; null if messages are written by the sending thread.
+	 */
+	private final OutboundQueue outbound;
+
+	/**
+	 * True while a task draining the outbound queue is scheduled or running.
+	 */
+	private final AtomicBoolean writing = new AtomicBoolean(false);
 
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
 	 */
-	private boolean readyToStop;
+	private volatile boolean readyToStop;
 
 	/**
 	 * Map to save information about the client such as its login ID. The
 	 * initial size of the map is small since it is not expected that concrete
 	 * servers will want to store many different types of information about each
-	 * client. Used by the setInfo and getInfo methods.
+	 * client. Used by the setInfo and getInfo methods. Concurrent so that
+	 * other clients' handlers may read it.
+	 */
+	private ConcurrentHashMap<String, Object> savedInfo = new ConcurrentHashMap<String, Object>(10);
+
+	/**
+	 * The non-blocking channel state when this connection is served by the
+	 * selector engine; null when the connection runs as its own thread.
 	 */
-	private HashMap<String, Object> savedInfo	= new HashMap <String, Object>	(10);
+	private ChannelLink link;
+
+	/**
+	 * The time the last message was received from the client, from
+	 * <code>System.nanoTime</code>. Heartbeats count.
+	 */
+	private volatile long lastInbound = System.nanoTime();
+
+	/**
+	 * The time the last ping was sent. Only used by the timer wheel.
+	 */
+	private long lastPing;
+
+	/**
+	 * The tokens of this client under the server's per-client rate limit.
+	 */
+	private final TokenBucket inboundBucket = new TokenBucket();
+
+	/**
+	 * True while a message delayed by the per-client limit has yet to take
+	 * its token from the global bucket. Only used by the thread delivering
+	 * the client's messages.
+	 */
+	private boolean globalOwed = false;
+
+	/**
+	 * The number of messages of this client over a rate limit. Only
+	 * written by the thread delivering its messages.
+	 */
+	private volatile long throttled = 0;
 
 	// CONSTRUCTORS *****************************************************
 
 	/**
-	 * Constructs a new connection to a client.
+	 * Constructs a new connection to a client, read by a thread of its own.
 	 * 
-	 * @param group
-	 *            the thread groupSystem.out.println("Client at "+ client +
-	 *            "connected"); that contains the connections.
 	 * @param clientSocket
 	 *            contains the client's socket.
 	 * @param server
 	 *            a reference to the server that created this instance
+	 * @param virtual
+	 *            true to read the client with a virtual thread.
 	 * @exception IOException
 	 *                if an I/O error occur when creating the connection.
 	 */
-	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
-		super(group, (Runnable) null);
+	ConnectionToClient(Socket clientSocket, AbstractServer server, boolean virtual) throws IOException {
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
-
-		clientSocket.setSoTimeout(0); // make sure timeout is infinite
+		this.id = server.nextClientId();
+		this.outbound = server.newOutboundQueue();
 
 		// Initialize the objects streams
 		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
+			// A client that never sends its header must not hold the
+			// handshake thread forever.
+			clientSocket.setSoTimeout(server.getHandshakeTimeout());
+
+			// A TLS handshake is done by the first read. Its small flights
+			// each wait for the other side: Nagle's algorithm would hold
+			// them for a delayed acknowledgement.
+			if (clientSocket instanceof SSLSocket)
+				clientSocket.setTcpNoDelay(true);
+
+			// The client speaks first: its header tells which codec it uses,
+			// and the reply uses the same one.
+			ServerMetrics metrics = server.getMetrics();
+			PushbackInputStream in = new PushbackInputStream(
+					new BufferedInputStream(metrics.meter(clientSocket.getInputStream())), 2);
+			codec = server.detectCodec(in);
+			input = codec.newReader(in);
+
+			OutputStream out = metrics.meter(clientSocket.getOutputStream());
+			WriteBatcher batcher = server.getWriteBatching();
+			if (batcher != null)
+				out = batched = batcher.wrap(out);
+			output = codec.newWriter(out, input);
+			if (batched != null)
+				batched.flushNow();
+			// Only now: with TLS, the header must not wait behind the
+			// session ticket sent after the handshake.
+			clientSocket.setTcpNoDelay(server.isTcpNoDelay());
+			clientSocket.setSoTimeout(0); // make sure timeout is infinite
 		} catch (IOException ex) {
 			try {
 				closeAll();
@@ -100,13 +219,45 @@ public class ConnectionToClient extends Thread {
 		}
 
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
+		reader = VirtualThreads.newThread(virtual, "ConnectionToClient " + clientSocket.getRemoteSocketAddress(), this);
+		// Uncaught exceptions in the reader are sent to the clientException
+		// callback method.
+		reader.setUncaughtExceptionHandler((thread, exception) -> server.clientException(this, exception));
+
+		server.addClient(this);
+		reader.start(); // Start the thread waits for data from the socket
+	}
+
+	/**
+	 * Constructs a new connection served by the selector engine. Such a
+	 * connection has no thread: its messages are read by the engine and
+	 * delivered through the same server methods. It joins the server's
+	 * clients once the engine has read its stream header.
+	 * 
+	 * @param link
+	 *            the non-blocking channel state of the connection.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 */
+	ConnectionToClient(ChannelLink link, AbstractServer server) {
+		this.link = link;
+		this.server = server;
+		this.id = server.nextClientId();
+		this.outbound = server.newOutboundQueue();
+		readyToStop = false;
+		link.attach(this);
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. May be called from several threads at
+	 * once; each object is written whole. An <code>EncodedMessage</code> is
+	 * written as already encoded when it comes from the client's codec.
+	 * <p>
+	 * If the server gives connections an outbound queue, the message is only
+	 * queued and this method returns at once; a full queue applies the
+	 * server's overflow policy, possibly closing this connection.
 	 * 
 	 * @param msg
 	 *            the message to be sent.
@@ -114,13 +265,78 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when sending the message.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		// Counted once written, by whichever path writes it.
+		if (outbound != null) {
+			if (readyToStop)
+				throw new SocketException("socket does not exist");
+
+			if (!outbound.offer(msg)) {
+				close();
+				throw new SocketException("slow client disconnected");
+			}
+
+			if (link != null)
+				link.pump(outbound);
+			else
+				scheduleWrite();
+			return;
+		}
 
-		output.writeObject(msg);
+		if (link != null) {
+			link.send(msg);
+			return;
+		}
+
+		writeNow(msg);
+		server.getMetrics().recordMessageOut(msg);
+	}
+
+	/**
+	 * Writes a message to the socket, blocking while the socket does not
+	 * accept more bytes.
+	 * 
+	 * @param msg
+	 *            the message to be written.
+	 * @exception IOException
+	 *                if an I/O error occur when writing the message.
+	 */
+	private void writeNow(Object msg) throws IOException {
+		outputLock.lock();
+		try {
+			MessageWriter out = output;
+			if (clientSocket == null || out == null)
+				throw new SocketException("socket does not exist");
+
+			write(out, msg);
+		} finally {
+			outputLock.unlock();
+		}
 	}
 
 
+	/**
+	 * Sends the messages held by write batching at once, without waiting
+	 * for the batch to fill or its window to end. Has no effect if writes
+	 * are not batched. Messages still in the outbound queue are not sent.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occur when sending.
+	 */
+	final public void flush() throws IOException {
+		if (link != null) {
+			link.flush();
+			return;
+		}
+
+		outputLock.lock();
+		try {
+			if (batched != null)
+				batched.flushNow();
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
 	/**
 	 * Closes the client. If the connection is already closed, this call has no
 	 * effect.
@@ -146,22 +362,102 @@ public class ConnectionToClient extends Thread {
 	 * @return the client's Internet address.
 	 */
 	final public InetAddress getInetAddress() {
+		if (link != null)
+			return link.getInetAddress();
+
 		return clientSocket == null ? null : clientSocket.getInetAddress();
 	}
 
+	/**
+	 * Returns the number of messages waiting in this connection's outbound
+	 * queue.
+	 * 
+	 * @return the queue depth, 0 if the connection has no outbound queue.
+	 */
+	final public int getOutboundQueueDepth() {
+		return outbound == null ? 0 : outbound.size();
+	}
+
+	/**
+	 * Returns the number of messages discarded because this connection's
+	 * outbound queue was full, including those still queued when the
+	 * connection failed or closed.
+	 * 
+	 * @return the number of messages dropped.
+	 */
+	final public long getDroppedMessageCount() {
+		return outbound == null ? 0 : outbound.getDropped();
+	}
+
+	/**
+	 * Returns the number of messages of this client that exceeded a rate
+	 * limit, whatever the action applied to them.
+	 * 
+	 * @return the number of messages throttled.
+	 */
+	final public long getThrottledCount() {
+		return throttled;
+	}
+
+	/**
+	 * Returns the thread reading the client's messages.
+	 * 
+	 * @return the reader thread, or null if the connection is served by the
+	 *         selector engine.
+	 */
+	final public Thread getReaderThread() {
+		return reader;
+	}
+
 	/**
 	 * Returns a string representation of the client.
 	 * 
 	 * @return the client's description.
 	 */
 	public String toString() {
-		return clientSocket == null ? null : clientSocket.getInetAddress().getHostName() + " ("
-				+ clientSocket.getInetAddress().getHostAddress() + ")";
+		InetAddress address = getInetAddress();
+		return address == null ? null : address.getHostName() + " ("
+				+ address.getHostAddress() + ")";
+	}
+
+	/**
+	 * Returns the id of this connection, which the server can look it up
+	 * by. Ids are never reused while the server runs.
+	 * 
+	 * @return the connection id.
+	 */
+	final public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the login ID set with <code>setLoginID</code>.
+	 * 
+	 * @return the login ID, or null if none was set.
+	 */
+	final public String getLoginID() {
+		return loginID;
+	}
+
+	/**
+	 * Sets the login ID of this client, so that
+	 * <code>AbstractServer.getClientConnection(String)</code> finds it. A
+	 * login ID identifies at most one open connection; it is released when
+	 * the connection closes.
+	 * 
+	 * @param loginID
+	 *            the login ID, or null to release the current one.
+	 * @return false if another open connection uses this login ID, in which
+	 *         case this client keeps its previous login ID.
+	 */
+	final public boolean setLoginID(String loginID) {
+		return server.bindLogin(this, loginID);
 	}
 
 	/**
 	 * Saves arbitrary information about this client. Designed to be used by
-	 * concrete subclasses of AbstractServer. Based on a hash map.
+	 * concrete subclasses of AbstractServer. Based on a hash map. Saving null
+	 * removes the information.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
@@ -169,7 +465,10 @@ public class ConnectionToClient extends Thread {
 	 *            the information itself.
 	 */
 	public void setInfo(String infoType, Object info) {
-		savedInfo.put(infoType, info);
+		if (info == null)
+			savedInfo.remove(infoType);
+		else
+			savedInfo.put(infoType, info);
 	}
 
 	/**
@@ -190,7 +489,10 @@ public class ConnectionToClient extends Thread {
 	 * read to the server. Not to be called.
 	 */
 	final public void run() {
-		server.clientConnected(this);
+		// A connection closed before its reader started is never announced.
+		if (readyToStop)
+			return;
+		announce();
 
 		// This loop reads the input stream and responds to messages
 		// from clients
@@ -201,22 +503,278 @@ public class ConnectionToClient extends Thread {
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				msg = input.readObject();
-				server.receiveMessageFromClient(msg, this);
+				msg = input.readMessage();
+
+				// A delayed message holds up the reading, so TCP flow
+				// control slows the client down.
+				long wait = admit(msg);
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+					wait = readmit();
+					if (wait > 0)
+						LockSupport.parkNanos(wait);
+				}
+				if (wait >= 0)
+					deliver(msg);
 			}
 		} catch (Exception exception) {
-			if (!readyToStop) {
-				try {
-					closeAll();
-				} catch (Exception ex) {
-				}
+			fail(exception);
+		}
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Returns the codec chosen by the client.
+	 * 
+	 * @return the codec, or null if the client's header has not arrived yet.
+	 */
+	MessageCodec getCodec() {
+		return link != null ? link.getCodec() : codec;
+	}
 
-				server.clientException(this, exception);
+	/**
+	 * Writes a message, using the pre-encoded path for encoded messages.
+	 * 
+	 * @param out
+	 *            the writer of the connection.
+	 * @param msg
+	 *            the message, possibly an <code>EncodedMessage</code>.
+	 */
+	static void write(MessageWriter out, Object msg) throws IOException {
+		if (msg instanceof EncodedMessage)
+			out.writeEncoded((EncodedMessage) msg);
+		else
+			out.writeMessage(msg);
+	}
+
+	/**
+	 * Submits a task draining the outbound queue unless one is already
+	 * scheduled or running.
+	 */
+	private void scheduleWrite() {
+		if (writing.compareAndSet(false, true)) {
+			try {
+				server.executeWrite(this::drainOutbound);
+			} catch (RejectedExecutionException ex) {
+				// The server is closing.
+				writing.set(false);
 			}
 		}
 	}
 
-	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+	/**
+	 * Writes the queued messages in order. A write failure discards the
+	 * queue; the reader notices the broken socket and reports it.
+	 */
+	private void drainOutbound() {
+		ServerMetrics metrics = server.getMetrics();
+		Object msg = null;
+		try {
+			while ((msg = outbound.poll()) != null) {
+				writeNow(msg);
+				metrics.recordMessageOut(msg);
+			}
+
+			// What one drain took is a batch already.
+			flush();
+		} catch (IOException ex) {
+			if (msg != null)
+				metrics.recordDropped(1);
+			outbound.clear();
+		}
+
+		writing.set(false);
+
+		// Messages may have been queued after the last poll.
+		if (outbound.size() > 0 && !readyToStop)
+			scheduleWrite();
+	}
+
+	/**
+	 * @return the tokens of this client under the per-client rate limit.
+	 */
+	TokenBucket getInboundBucket() {
+		return inboundBucket;
+	}
+
+	/**
+	 * Notes that the message being delayed takes its global token only
+	 * once it is due.
+	 */
+	void oweGlobalToken() {
+		globalOwed = true;
+	}
+
+	void recordThrottled() {
+		throttled++;
+	}
+
+	/**
+	 * Records the login ID bound to this connection. Called by the
+	 * server's registry, under its lock.
+	 * 
+	 * @param loginID
+	 *            the login ID, or null.
+	 */
+	void loginBound(String loginID) {
+		this.loginID = loginID;
+	}
+
+	/**
+	 * Closes a connection that failed before it was announced to the
+	 * server. No hook method is called.
+	 */
+	void discard() {
+		readyToStop = true;
+		try {
+			closeAll();
+		} catch (Exception ex) {
+		}
+	}
+
+	/**
+	 * Notifies the server that this client is connected. Called before any
+	 * message of the client is delivered.
+	 */
+	void announce() {
+		server.clientConnected(this);
+	}
+
+	/**
+	 * Records that a message was read from the client and applies the
+	 * server's rate limits to it. Heartbeats are never limited.
+	 * 
+	 * @param msg
+	 *            the message read.
+	 * @return 0 to deliver the message now, the time to wait in ns before
+	 *         delivering it, or -1 if it must not be delivered.
+	 */
+	long admit(Object msg) {
+		lastInbound = System.nanoTime();
+		if (readyToStop || msg instanceof Heartbeat)
+			return 0;
+
+		return server.admit(this, msg);
+	}
+
+	/**
+	 * Admits a delayed message once its delay has elapsed: a message
+	 * delayed by the per-client limit now takes its global token.
+	 * 
+	 * @return 0 to deliver the message now, or the time to wait in ns
+	 *         before delivering it.
+	 */
+	long readmit() {
+		if (!globalOwed)
+			return 0;
+
+		globalOwed = false;
+		return server.admitGlobal();
+	}
+
+	/**
+	 * Hands a message read from the client, and admitted, to the server.
+	 * 
+	 * @param msg
+	 *            the message read.
+	 */
+	void deliver(Object msg) {
+		if (readyToStop)
+			return;
+
+		// Heartbeats only prove the client is alive; the server never sees
+		// them.
+		if (msg instanceof Heartbeat) {
+			if (msg == Heartbeat.PING)
+				sendHeartbeat(Heartbeat.PONG);
+			return;
+		}
+		server.receiveMessageFromClient(msg, this);
+	}
+
+	/**
+	 * Checks how long the client has been silent. Run by the timer wheel:
+	 * pings a client silent for a heartbeat interval, and closes one silent
+	 * for the idle timeout, reporting a <code>SocketTimeoutException</code>
+	 * to <code>clientException</code>.
+	 * 
+	 * @param now
+	 *            the current time, from <code>System.nanoTime</code>.
+	 * @return the delay in milliseconds until the next check, or -1 once the
+	 *         connection is closed or the checks are disabled.
+	 */
+	long checkHeartbeat(long now) {
+		long interval = server.getHeartbeatInterval();
+		long timeout = server.getIdleTimeout();
+		if (readyToStop || (interval == 0 && timeout == 0))
+			return -1;
+
+		long idle = (now - lastInbound) / 1000000;
+		if (timeout > 0 && idle >= timeout) {
+			server.getMetrics().recordEviction();
+			fail(new SocketTimeoutException("client silent for " + idle + " ms"));
+			return -1;
+		}
+
+		long next = timeout > 0 ? timeout - idle : interval;
+		if (interval > 0) {
+			if (idle >= interval && (now - lastPing) / 1000000 >= interval) {
+				lastPing = now;
+				sendHeartbeat(Heartbeat.PING);
+			}
+			next = Math.min(next, interval);
+		}
+		return next;
+	}
+
+	/**
+	 * Sends a heartbeat without blocking the calling thread, which may be
+	 * the timer wheel or the selector. A heartbeat that cannot be sent is
+	 * dropped; a dead connection is noticed by the reader or the idle
+	 * timeout.
+	 * 
+	 * @param beat
+	 *            the heartbeat to send.
+	 */
+	private void sendHeartbeat(Heartbeat beat) {
+		try {
+			if (link != null) {
+				link.send(beat);
+			} else if (outbound != null) {
+				if (outbound.offer(beat))
+					scheduleWrite();
+			} else {
+				server.executeWrite(() -> {
+					try {
+						writeNow(beat);
+					} catch (IOException ex) {
+					}
+				});
+			}
+		} catch (IOException | RejectedExecutionException ex) {
+		}
+	}
+
+	/**
+	 * Handles the failure of the connection while reading. Unless the
+	 * connection is being closed on purpose, it is closed and the server is
+	 * notified.
+	 * 
+	 * @param exception
+	 *            the exception that ended the reading.
+	 */
+	void fail(Exception exception) {
+		if (!readyToStop) {
+			readyToStop = true;
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			server.clientException(this, exception);
+		}
+	}
 
 	/**
 	 * Closes all connection to the server.
@@ -225,7 +783,25 @@ public class ConnectionToClient extends Thread {
 	 *                if an I/O error occur when closing the connection.
 	 */
 	private void closeAll() throws IOException {
+		server.removeClient(this);
+		if (outbound != null)
+			outbound.clear();
+
+		if (link != null) {
+			link.close();
+			return;
+		}
+
 		try {
+			// Send what write batching still holds
+			WriteBatcher.Output pending = batched;
+			if (pending != null && clientSocket != null && !clientSocket.isClosed()) {
+				try {
+					pending.flushNow();
+				} catch (IOException ex) {
+				}
+			}
+
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
@@ -0,0 +1,238 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * An <code> InboundBuffer </code> collects the bytes that a selector thread
+ * reads from a non-blocking channel and presents them as a blocking
+ * <code> InputStream </code>, so that an <code> ObjectInputStream </code> can
+ * decode them exactly as it would from a socket stream. Reads only block
+ * while a message has been partially received.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ChannelLink
+ */
+final class InboundBuffer extends InputStream
+{
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Largest ring kept once all of its bytes have been read.
+	 */
+	private static final int MAX_IDLE_CAPACITY = 64 * 1024;
+
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The bytes received but not yet consumed, stored as a ring.
+	 */
+	private byte[] data = new byte[512];
+
+	/**
+	 * Index of the next byte to be read.
+	 */
+	private int head = 0;
+
+	/**
+	 * Number of bytes waiting to be read.
+	 */
+	private int count = 0;
+
+	/**
+	 * Set once the peer has closed its side or the connection was closed.
+	 */
+	private boolean atEnd = false;
+
+	/**
+	 * How long a read waits for more bytes, in milliseconds; 0 to wait
+	 * until they arrive.
+	 */
+	private long readTimeout = 0;
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Bounds how long a read waits for the rest of a message.
+	 *
+	 * @param millis the timeout in milliseconds; 0 to wait until the bytes
+	 *               arrive.
+	 */
+	synchronized void setReadTimeout(long millis)
+	{
+		readTimeout = millis;
+	}
+
+	/**
+	 * Appends the remaining bytes of a buffer. Called by the selector thread.
+	 *
+	 * @param src the bytes read from the channel.
+	 */
+	synchronized void append(ByteBuffer src)
+	{
+		int n = src.remaining();
+		ensureCapacity(count + n);
+
+		int tail = (head + count) % data.length;
+		int first = Math.min(n, data.length - tail);
+		src.get(data, tail, first);
+		src.get(data, 0, n - first);
+		count += n;
+
+		notifyAll();
+	}
+
+	/**
+	 * Marks the end of the stream. Pending bytes can still be read, after
+	 * which reads return -1.
+	 */
+	synchronized void markEnd()
+	{
+		atEnd = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return true if a read would not block: either bytes are waiting or
+	 * the end of the stream has been reached.
+	 */
+	synchronized boolean isReadable()
+	{
+		return count > 0 || atEnd;
+	}
+
+	/**
+	 * @return true once the end of the stream has been marked, whether or
+	 * not bytes are still waiting.
+	 */
+	synchronized boolean isEnded()
+	{
+		return atEnd;
+	}
+
+	/**
+	 * Returns a waiting byte without consuming it.
+	 *
+	 * @param index the position of the byte among those waiting.
+	 * @return the byte, or -1 if fewer bytes are waiting.
+	 */
+	synchronized int peek(int index)
+	{
+		return index < count ? data[(head + index) % data.length] & 0xFF : -1;
+	}
+
+	/**
+	 * @return the number of bytes waiting to be read.
+	 */
+	synchronized int size()
+	{
+		return count;
+	}
+
+	public synchronized int available()
+	{
+		return count;
+	}
+
+	public synchronized int read() throws IOException
+	{
+		if (!awaitData())
+			return -1;
+
+		int b = data[head] & 0xFF;
+		head = (head + 1) % data.length;
+		count--;
+		return b;
+	}
+
+	public synchronized int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		if (!awaitData())
+			return -1;
+
+		int n = Math.min(len, count);
+		int first = Math.min(n, data.length - head);
+		System.arraycopy(data, head, b, off, first);
+		System.arraycopy(data, 0, b, off + first, n - first);
+		head = (head + n) % data.length;
+		count -= n;
+		if (count == 0)
+			shrink();
+		return n;
+	}
+
+	public void close()
+	{
+		markEnd();
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Waits until bytes are available or the stream has ended.
+	 *
+	 * @return false if the stream ended with no bytes left.
+	 * @exception SocketTimeoutException if the read timeout expires first.
+	 */
+	private boolean awaitData() throws IOException
+	{
+		try
+		{
+			long deadline = System.nanoTime() + readTimeout * 1000000;
+			while (count == 0 && !atEnd)
+			{
+				if (readTimeout == 0)
+				{
+					wait();
+					continue;
+				}
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					throw new SocketTimeoutException("rest of the message not received in time");
+				wait(left / 1000000 + 1);
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		return count > 0;
+	}
+
+	/**
+	 * Releases a ring that grew for a large message once it is empty, so
+	 * that idle connections stay small.
+	 */
+	private void shrink()
+	{
+		head = 0;
+		if (data.length > MAX_IDLE_CAPACITY)
+			data = new byte[512];
+	}
+
+	/**
+	 * Grows the ring so that it can hold at least the given number of
+	 * bytes, unwrapping its content to the start of the new array.
+	 */
+	private void ensureCapacity(int needed)
+	{
+		if (needed <= data.length)
+			return;
+
+		byte[] grown = new byte[Math.max(needed, data.length * 2)];
+		int first = Math.min(count, data.length - head);
+		System.arraycopy(data, head, grown, 0, first);
+		System.arraycopy(data, 0, grown, first, count - first);
+		data = grown;
+		head = 0;
+	}
+}
+// End of InboundBuffer Class
@@ -0,0 +1,139 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * An <code> OutboundQueue </code> holds the messages sent to one client and
+ * not yet written to its socket. It is bounded: when full, its
+ * <code> OverflowPolicy </code> decides what happens to the next message.
+ * Messages are queued before they are encoded, so dropping one never
+ * corrupts the stream of a codec that keeps state between messages.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see OverflowPolicy
+ */
+final class OutboundQueue
+{
+	/**
+	 * The messages waiting, oldest first. Guarded by this queue.
+	 */
+	private final ArrayDeque<Object> messages;
+
+	/**
+	 * The maximum number of messages waiting.
+	 */
+	private final int capacity;
+
+	/**
+	 * What to do when the queue is full.
+	 */
+	private final OverflowPolicy policy;
+
+	/**
+	 * The metrics of the server, counting the messages discarded.
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * The number of messages discarded so far. Guarded by this queue.
+	 */
+	private long dropped = 0;
+
+	/**
+	 * Constructs an empty queue.
+	 *
+	 * @param capacity the maximum number of messages waiting.
+	 * @param policy   what to do when the queue is full.
+	 * @param metrics  the metrics of the server.
+	 */
+	OutboundQueue(int capacity, OverflowPolicy policy, ServerMetrics metrics)
+	{
+		this.messages = new ArrayDeque<Object>(Math.min(capacity, 64));
+		this.capacity = capacity;
+		this.policy = policy;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Queues a message, applying the overflow policy if the queue is full.
+	 *
+	 * @param msg the message to be sent.
+	 * @return false if the policy requires the connection to be closed.
+	 */
+	synchronized boolean offer(Object msg)
+	{
+		if (messages.size() < capacity)
+		{
+			messages.add(msg);
+			return true;
+		}
+
+		switch (policy)
+		{
+			case DROP_OLDEST:
+				messages.poll();
+				messages.add(msg);
+				drop(1);
+				return true;
+
+			case DROP_NEWEST:
+				drop(1);
+				return true;
+
+			default:
+				drop(messages.size() + 1);
+				messages.clear();
+				return false;
+		}
+	}
+
+	/**
+	 * @return the oldest message waiting, removed from the queue, or null
+	 * if the queue is empty.
+	 */
+	synchronized Object poll()
+	{
+		return messages.poll();
+	}
+
+	/**
+	 * Discards every message waiting. Called when the connection closes.
+	 */
+	synchronized void clear()
+	{
+		drop(messages.size());
+		messages.clear();
+	}
+
+	/**
+	 * Counts discarded messages. Must be called while holding this queue.
+	 *
+	 * @param count the number of messages discarded.
+	 */
+	private void drop(int count)
+	{
+		dropped += count;
+		metrics.recordDropped(count);
+	}
+
+	/**
+	 * @return the number of messages waiting.
+	 */
+	synchronized int size()
+	{
+		return messages.size();
+	}
+
+	/**
+	 * @return the number of messages discarded so far.
+	 */
+	synchronized long getDropped()
+	{
+		return dropped;
+	}
+}
+// End of OutboundQueue Class
@@ -0,0 +1,34 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+/**
+ * The <code> OverflowPolicy </code> enumeration lists what a connection does
+ * when a message is sent while its outbound queue is full, which happens
+ * when the client reads more slowly than the server sends.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see AbstractServer#setOutboundQueue
+ */
+public enum OverflowPolicy
+{
+	/**
+	 * Discard the oldest queued message to make room for the new one. The
+	 * client misses part of the history but sees the latest messages.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the new message. The client sees everything up to the point
+	 * where it fell behind.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Close the connection of the slow client.
+	 */
+	DISCONNECT
+}
+// End of OverflowPolicy Enum
@@ -0,0 +1,39 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+/**
+ * The <code> RateLimitAction </code> enumeration lists what the server does
+ * with a message that a client sends faster than its rate limit, or faster
+ * than the server-wide limit, allows.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see AbstractServer#setClientRateLimit
+ * @see AbstractServer#setGlobalRateLimit
+ */
+public enum RateLimitAction
+{
+	/**
+	 * Hold the message until the limit allows it, and stop reading from the
+	 * client meanwhile, so that it is slowed down by TCP flow control.
+	 */
+	DELAY,
+
+	/**
+	 * Discard the message.
+	 */
+	DROP,
+
+	/**
+	 * Handle the message anyway; only <code>clientThrottled</code> is told.
+	 */
+	WARN,
+
+	/**
+	 * Close the connection of the client.
+	 */
+	DISCONNECT
+}
+// End of RateLimitAction Enum
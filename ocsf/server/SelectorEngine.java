@@ -0,0 +1,417 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+import ocsf.common.TimerWheel;
+
+/**
+ * The <code> SelectorEngine </code> serves client connections with
+ * non-blocking channels instead of one thread per client. The server's
+ * listening thread accepts channels and spreads them over a small pool of
+ * event loops, each owning a <code> Selector</code>. Decoding and the
+ * server's hook methods run on a shared dispatch pool, one task per
+ * connection at a time, so the order of each client's messages is kept.<p>
+ *
+ * The engine is created by <code> AbstractServer.listen </code> when the
+ * server was constructed with <code> ServerEngine.SELECTOR</code>, and is
+ * discarded when the server is closed. The listening channel only exists
+ * while the server listens, so stopping it neither polls nor leaves
+ * connection attempts waiting in the backlog.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see ServerEngine
+ * @see ChannelLink
+ */
+final class SelectorEngine
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The server whose hook methods are called.
+	 */
+	private final AbstractServer server;
+
+	/**
+	 * The listening channel; null while the server is not listening.
+	 */
+	private volatile ServerSocketChannel serverChannel;
+
+	/**
+	 * Selector used by the listening thread to wait for connections.
+	 */
+	private volatile Selector acceptSelector;
+
+	/**
+	 * The event loops that read from and write to the client channels.
+	 */
+	private final EventLoop[] loops;
+
+	/**
+	 * Pool running the drain tasks of the connections.
+	 */
+	private final ExecutorService dispatcher;
+
+	/**
+	 * Index of the event loop that receives the next accepted channel.
+	 */
+	private int nextLoop = 0;
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Starts the event loops. The listening channel is opened separately.
+	 *
+	 * @param server    the server using this engine.
+	 * @param loopCount the number of event loop threads.
+	 * @exception IOException if a selector cannot be opened.
+	 */
+	SelectorEngine(AbstractServer server, int loopCount) throws IOException
+	{
+		this.server = server;
+
+		// A fixed pool: a burst of connections must not turn into a burst
+		// of threads. A task only starts once a whole message has arrived,
+		// so a few threads per processor are enough.
+		int dispatchThreads =
+			Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+		dispatcher = Executors.newFixedThreadPool(dispatchThreads, runnable ->
+		{
+			Thread thread = new Thread(runnable, "ConnectionToClient dispatcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		loops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < loops.length; i++)
+		{
+			loops[i] = new EventLoop("ConnectionToClient selector " + i);
+			loops[i].start();
+		}
+	}
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Opens the listening channel, unless it is already open.
+	 *
+	 * @param port    the port number on which to listen.
+	 * @param backlog the maximum number of pending connections.
+	 * @exception IOException if the channel cannot be opened or bound.
+	 */
+	void openServerChannel(int port, int backlog) throws IOException
+	{
+		if (serverChannel != null)
+			return;
+
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try
+		{
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(port), backlog);
+			channel.configureBlocking(false);
+			Selector selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_ACCEPT);
+			acceptSelector = selector;
+		}
+		catch (IOException ex)
+		{
+			channel.close();
+			throw ex;
+		}
+		serverChannel = channel;
+	}
+
+	/**
+	 * Waits for connection attempts and accepts all that are pending. Called
+	 * repeatedly by the server's listening thread; closing the listening
+	 * channel ends the wait.
+	 *
+	 * @exception IOException if accepting fails or the channel is closed.
+	 */
+	void acceptConnections() throws IOException
+	{
+		ServerSocketChannel listening = serverChannel;
+		Selector selector = acceptSelector;
+		if (listening == null)
+			throw new SocketException("server channel closed");
+
+		try
+		{
+			if (selector.select() == 0)
+				return;
+			selector.selectedKeys().clear();
+		}
+		catch (ClosedSelectorException ex)
+		{
+			// Closing the server interrupts the wait, as it does for accept.
+			throw new SocketException("server channel closed");
+		}
+
+		// Drain the backlog before waiting again, so a burst of
+		// connections costs one wake-up.
+		SocketChannel channel;
+		while ((channel = listening.accept()) != null)
+		{
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+
+			try
+			{
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, server.isTcpNoDelay());
+				ChannelLink link = new ChannelLink(this, loop, channel);
+				new ConnectionToClient(link, server);
+				loop.register(link);
+
+				int timeout = server.getHandshakeTimeout();
+				if (timeout > 0)
+				{
+					TimerWheel.shared().schedule(now ->
+					{
+						if (link.expireHandshake())
+							server.getMetrics().recordHandshakeTimeout();
+						return -1;
+					}, timeout);
+				}
+			}
+			catch (IOException ex)
+			{
+				// Only this client is lost; keep accepting the others.
+				try
+				{
+					channel.close();
+				}
+				catch (IOException exc) {}
+			}
+		}
+	}
+
+	/**
+	 * Closes the listening channel, which wakes the listening thread.
+	 * Connections already accepted are kept. Has no effect if the channel
+	 * is not open.
+	 *
+	 * @exception IOException if closing the channel fails.
+	 */
+	void closeServerChannel() throws IOException
+	{
+		ServerSocketChannel channel = serverChannel;
+		if (channel == null)
+			return;
+		serverChannel = null;
+
+		try
+		{
+			acceptSelector.close();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Stops the event loops and the dispatch pool. The connections must
+	 * have been closed beforehand; those whose header had not arrived yet
+	 * are dropped by their loop.
+	 */
+	void shutdown()
+	{
+		for (int i = 0; i < loops.length; i++)
+			loops[i].shutdown();
+		dispatcher.shutdown();
+	}
+
+	/**
+	 * @return the server using this engine.
+	 */
+	AbstractServer getServer()
+	{
+		return server;
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	/**
+	 * Runs a drain task on the dispatch pool.
+	 *
+	 * @param task the task to run.
+	 */
+	void dispatch(Runnable task)
+	{
+		dispatcher.execute(task);
+	}
+
+	// INNER CLASSES ****************************************************
+
+	/**
+	 * An <code> EventLoop </code> is a thread that waits on its own
+	 * selector for channels ready to be read or written and serves them.
+	 */
+	final class EventLoop extends Thread
+	{
+		/**
+		 * The selector on which the channels of this loop are registered.
+		 */
+		private final Selector selector;
+
+		/**
+		 * Links waiting to be registered by this thread.
+		 */
+		private final ConcurrentLinkedQueue<ChannelLink> pending =
+			new ConcurrentLinkedQueue<ChannelLink>();
+
+		/**
+		 * Scratch buffer for channel reads.
+		 */
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+		/**
+		 * Indicates if the loop is ready to stop.
+		 */
+		private volatile boolean readyToStop = false;
+
+		/**
+		 * Constructs a loop with its own selector.
+		 *
+		 * @param name the name of the thread.
+		 */
+		EventLoop(String name) throws IOException
+		{
+			super(name);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Hands a new link to this loop. Registration happens on the loop's
+		 * own thread so that it never contends with <code>select</code>.
+		 *
+		 * @param link the link of the accepted channel.
+		 */
+		void register(ChannelLink link)
+		{
+			pending.add(link);
+			selector.wakeup();
+		}
+
+		/**
+		 * Makes the loop notice changes made from other threads.
+		 */
+		void wakeup()
+		{
+			selector.wakeup();
+		}
+
+		/**
+		 * Stops the loop and closes its selector.
+		 */
+		void shutdown()
+		{
+			readyToStop = true;
+			selector.wakeup();
+		}
+
+		/**
+		 * Serves the registered channels until the loop is shut down.
+		 * Not to be called.
+		 */
+		public void run()
+		{
+			try
+			{
+				while (!readyToStop)
+				{
+					selector.select();
+					registerPending();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext())
+					{
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						ChannelLink link = (ChannelLink) key.attachment();
+						try
+						{
+							if (key.isValid() && key.isReadable())
+								link.readReady(readBuffer);
+							if (key.isValid() && key.isWritable())
+								link.writeReady();
+						}
+						catch (CancelledKeyException ex)
+						{
+							// Closed by another thread meanwhile.
+						}
+						catch (RuntimeException ex)
+						{
+							// Only this client is lost; keep serving the
+							// others.
+							link.drop(ex);
+						}
+					}
+				}
+			}
+			catch (IOException | ClosedSelectorException ex)
+			{
+				// The selector is unusable; nothing more can be served.
+			}
+			finally
+			{
+				dropAll();
+				try
+				{
+					selector.close();
+				}
+				catch (IOException ex) {}
+			}
+		}
+
+		/**
+		 * Drops the links still open when the loop stops.
+		 */
+		private void dropAll()
+		{
+			SocketException cause = new SocketException("server stopped");
+			try
+			{
+				for (SelectionKey key : selector.keys())
+					((ChannelLink) key.attachment()).drop(cause);
+			}
+			catch (ClosedSelectorException ex) {}
+
+			ChannelLink link;
+			while ((link = pending.poll()) != null)
+				link.abort();
+		}
+
+		/**
+		 * Registers the links handed over since the last pass.
+		 */
+		private void registerPending()
+		{
+			ChannelLink link;
+			while ((link = pending.poll()) != null)
+			{
+				try
+				{
+					link.register(selector);
+				}
+				catch (IOException | RuntimeException ex)
+				{
+					link.abort();
+				}
+			}
+		}
+	}
+}
+// End of SelectorEngine Class
@@ -0,0 +1,45 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+/**
+ * The <code> ServerEngine </code> enumeration lists the ways an
+ * <code> AbstractServer </code> can drive its client connections. The
+ * engine is chosen when the server is constructed and cannot be changed
+ * afterwards.<p>
+ *
+ * Both engines call the same hook methods
+ * (<code>clientConnected</code>, <code>handleMessageFromClient</code>,
+ * <code>clientDisconnected</code> and <code>clientException</code>) and
+ * speak the same wire protocol, so concrete servers and existing clients
+ * run unchanged on either of them.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see AbstractServer
+ */
+public enum ServerEngine
+{
+	/**
+	 * The original engine: one <code> ConnectionToClient </code> thread
+	 * per socket, blocked in <code>readObject</code> while the client is
+	 * idle.
+	 */
+	THREAD_PER_CONNECTION,
+
+	/**
+	 * Like <code> THREAD_PER_CONNECTION</code>, but each connection is read
+	 * by a virtual thread, which costs almost nothing while the client is
+	 * idle. Requires Java 21 or later.
+	 */
+	VIRTUAL_THREAD_PER_CONNECTION,
+
+	/**
+	 * Non-blocking sockets multiplexed by a small pool of selector
+	 * threads. Idle clients cost no thread; incoming bytes are handed to a
+	 * shared dispatch pool only while a message is being decoded.
+	 */
+	SELECTOR
+}
+// End of ServerEngine Enum
@@ -0,0 +1,334 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import ocsf.common.Heartbeat;
+import ocsf.common.LatencyHistogram;
+
+/**
+ * The <code> ServerMetrics </code> of an <code> AbstractServer </code> count
+ * what the server does while it runs: connections accepted, messages and
+ * bytes in each direction, the time spent in
+ * <code>handleMessageFromClient</code> and the time each broadcast takes to
+ * reach all its recipients. Counters are striped, so threads recording at
+ * the same time do not contend; the histograms take one atomic increment
+ * per sample.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see AbstractServer#getMetrics
+ */
+public final class ServerMetrics
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The server measured.
+	 */
+	private final AbstractServer server;
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+	private final LongAdder handshakeTimeouts = new LongAdder();
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	private final LongAdder messagesDropped = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Time spent in <code>handleMessageFromClient</code>, per message.
+	 */
+	private final LatencyHistogram handleTime = new LatencyHistogram();
+
+	/**
+	 * Time taken by each call to <code>sendToAllClients</code> or
+	 * <code>sendToClients</code>.
+	 */
+	private final LatencyHistogram broadcastTime = new LatencyHistogram();
+
+	/**
+	 * The counter values and time of the previous report, from which the
+	 * rates of the next one are computed. Guarded by this object.
+	 */
+	private long[] lastCounts = new long[5];
+	private long lastReport = System.nanoTime();
+
+	// CONSTRUCTORS *****************************************************
+
+	/**
+	 * Constructs the metrics of a server.
+	 *
+	 * @param server the server measured.
+	 */
+	ServerMetrics(AbstractServer server)
+	{
+		this.server = server;
+	}
+
+	// ACCESSING METHODS ------------------------------------------------
+
+	/**
+	 * @return the number of clients currently connected.
+	 */
+	public int getConnectedClients()
+	{
+		return server.getNumberOfClients();
+	}
+
+	/**
+	 * @return the number of connections accepted so far.
+	 */
+	public long getAccepted()
+	{
+		return accepted.sum();
+	}
+
+	/**
+	 * @return the number of connections closed so far because the client
+	 * was silent for longer than the idle timeout.
+	 */
+	public long getEvicted()
+	{
+		return evicted.sum();
+	}
+
+	/**
+	 * @return the number of connections dropped so far because the client
+	 * did not send its stream header within the handshake timeout.
+	 */
+	public long getHandshakeTimeouts()
+	{
+		return handshakeTimeouts.sum();
+	}
+
+	/**
+	 * @return the number of messages received from clients so far.
+	 */
+	public long getMessagesIn()
+	{
+		return messagesIn.sum();
+	}
+
+	/**
+	 * @return the number of messages received so far that exceeded a rate
+	 * limit, whether they were delayed, dropped, let through with a warning
+	 * or ended the connection.
+	 */
+	public long getThrottled()
+	{
+		return throttled.sum();
+	}
+
+	/**
+	 * @return the number of messages written to clients so far; a
+	 * broadcast counts once per recipient. Heartbeats are not counted.
+	 */
+	public long getMessagesOut()
+	{
+		return messagesOut.sum();
+	}
+
+	/**
+	 * @return the number of messages sent to clients that were never
+	 * written: discarded by the overflow policy of an outbound queue, or
+	 * still waiting when the connection failed or closed.
+	 */
+	public long getMessagesDropped()
+	{
+		return messagesDropped.sum();
+	}
+
+	/**
+	 * @return the number of bytes read from clients so far.
+	 */
+	public long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+
+	/**
+	 * @return the number of bytes written to clients so far.
+	 */
+	public long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+
+	/**
+	 * @return the time spent in <code>handleMessageFromClient</code>, per
+	 * message.
+	 */
+	public LatencyHistogram getHandleTime()
+	{
+		return handleTime;
+	}
+
+	/**
+	 * @return the time taken by each broadcast to be handed to all its
+	 * recipients.
+	 */
+	public LatencyHistogram getBroadcastTime()
+	{
+		return broadcastTime;
+	}
+
+	/**
+	 * Formats the metrics for a console. Rates are averaged over the time
+	 * since the previous report, or since the server was created for the
+	 * first one.
+	 *
+	 * @return the report, one line per group of metrics.
+	 */
+	public synchronized String report()
+	{
+		long now = System.nanoTime();
+		long[] counts = { getAccepted(), getMessagesIn(), getMessagesOut(),
+			getBytesIn(), getBytesOut() };
+		double seconds = Math.max(1e-9, (now - lastReport) / 1e9);
+		double[] rates = new double[counts.length];
+		for (int i = 0; i < counts.length; i++)
+			rates[i] = (counts[i] - lastCounts[i]) / seconds;
+		lastCounts = counts;
+		lastReport = now;
+
+		return String.format(
+			"clients    %d connected, %d accepted (%.1f/s), %d evicted%n"
+			+ "handshake  %d timed out%n"
+			+ "messages   %d in (%.1f/s), %d out (%.1f/s), %d dropped, %d throttled%n"
+			+ "bytes      %d in (%.0f/s), %d out (%.0f/s)%n"
+			+ "handle     %s%n"
+			+ "broadcast  %s",
+			getConnectedClients(), counts[0], rates[0], getEvicted(),
+			getHandshakeTimeouts(),
+			counts[1], rates[1], counts[2], rates[2], getMessagesDropped(), getThrottled(),
+			counts[3], rates[3], counts[4], rates[4],
+			handleTime, broadcastTime);
+	}
+
+	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+	void recordAccept()
+	{
+		accepted.increment();
+	}
+
+	void recordEviction()
+	{
+		evicted.increment();
+	}
+
+	void recordHandshakeTimeout()
+	{
+		handshakeTimeouts.increment();
+	}
+
+	/**
+	 * @param nanos the time the handler took.
+	 */
+	void recordMessageIn(long nanos)
+	{
+		messagesIn.increment();
+		handleTime.record(nanos);
+	}
+
+	void recordThrottled()
+	{
+		throttled.increment();
+	}
+
+	/**
+	 * @param msg the message written, ignored if it is a heartbeat.
+	 */
+	void recordMessageOut(Object msg)
+	{
+		if (!(msg instanceof Heartbeat))
+			messagesOut.increment();
+	}
+
+	/**
+	 * @param count the number of messages discarded.
+	 */
+	void recordDropped(long count)
+	{
+		if (count > 0)
+			messagesDropped.add(count);
+	}
+
+	void recordBytesIn(long count)
+	{
+		bytesIn.add(count);
+	}
+
+	void recordBytesOut(long count)
+	{
+		bytesOut.add(count);
+	}
+
+	/**
+	 * @param nanos the time the broadcast took.
+	 */
+	void recordBroadcast(long nanos)
+	{
+		broadcastTime.record(nanos);
+	}
+
+	/**
+	 * Wraps the input stream of a socket so that the bytes read are counted.
+	 *
+	 * @param in the socket's input stream.
+	 * @return the metered stream.
+	 */
+	InputStream meter(InputStream in)
+	{
+		return new FilterInputStream(in)
+		{
+			public int read() throws IOException
+			{
+				int b = super.read();
+				if (b >= 0)
+					bytesIn.increment();
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				int n = super.read(b, off, len);
+				if (n > 0)
+					bytesIn.add(n);
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * Wraps the output stream of a socket so that the bytes written are
+	 * counted.
+	 *
+	 * @param out the socket's output stream.
+	 * @return the metered stream.
+	 */
+	OutputStream meter(OutputStream out)
+	{
+		return new FilterOutputStream(out)
+		{
+			public void write(int b) throws IOException
+			{
+				out.write(b);
+				bytesOut.increment();
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				out.write(b, off, len);
+				bytesOut.add(len);
+			}
+		};
+	}
+}
+// End of ServerMetrics Class
@@ -0,0 +1,68 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+
+package ocsf.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code> TokenBucket </code> limits the rate of messages with a single
+ * number: the time at which the bucket would be full again, as in the
+ * generic cell rate algorithm. Taking a token is one compare-and-set, with
+ * no lock and no allocation, so a bucket can sit on the path of every
+ * message. The rate and the burst are passed on each call, which lets the
+ * server change them without touching the buckets.<p>
+ *
+ * Project Name: OCSF (Object Client-Server Framework)<p>
+ *
+ * @see AbstractServer#setClientRateLimit
+ */
+final class TokenBucket
+{
+	// INSTANCE VARIABLES ***********************************************
+
+	/**
+	 * The time, from <code>System.nanoTime</code>, at which every token
+	 * taken so far will have been replenished.
+	 */
+	private final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+
+	// INSTANCE METHODS *************************************************
+
+	/**
+	 * Takes a token if one is available.
+	 *
+	 * @param now       the current time, from <code>System.nanoTime</code>.
+	 * @param interval  the time to replenish one token, in ns.
+	 * @param tolerance the time to replenish a full burst but one token.
+	 * @param reserve   true to take the token even if it is not available
+	 *                  yet, reserving it for the time returned.
+	 * @return 0 if a token was taken, or the time to wait, in ns, before
+	 *         one is available.
+	 */
+	long take(long now, long interval, long tolerance, boolean reserve)
+	{
+		while (true)
+		{
+			long current = full.get();
+			long start = Math.max(current, now);
+			long wait = start - tolerance - now;
+			if (wait > 0 && !reserve)
+				return wait;
+
+			if (full.compareAndSet(current, start + interval))
+				return Math.max(0, wait);
+		}
+	}
+
+	/**
+	 * Gives back a token taken with <code>take</code>.
+	 *
+	 * @param interval the time to replenish one token, in ns.
+	 */
+	void refund(long interval)
+	{
+		full.addAndGet(-interval);
+	}
+}
+// End of TokenBucket Class